@@ -0,0 +1,295 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.runtime;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash set with structural sharing: {@link #plus(Object)} returns a new set
+ * that shares all the unchanged nodes with this one.
+ *
+ * The elements are kept in a hash array mapped trie: each node is indexed by 5 bits of the hash code
+ * and stores only the occupied slots, a bitmap tells which ones these are. Elements with equal hash codes
+ * end up in a collision node.
+ *
+ * @author abreslav
+ */
+public class PersistentSet<E> extends AbstractSet<E> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // 7 levels of 5 hash bits, then a collision node
+    private static final int MAX_DEPTH = 8;
+
+    private static final Node EMPTY_NODE = new BitmapNode(0, new Object[0]);
+
+    private static final PersistentSet<Object> EMPTY = new PersistentSet<Object>(EMPTY_NODE, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentSet<E> empty() {
+        return (PersistentSet<E>) EMPTY;
+    }
+
+    /**
+     * A persistent set is returned as is, elements of other collections are copied
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentSet<E> copyOf(Collection<? extends E> elements) {
+        if (elements instanceof PersistentSet) {
+            return (PersistentSet<E>) elements;
+        }
+        return PersistentSet.<E>empty().plusAll(elements);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return root.contains(0, hash(o), o);
+    }
+
+    /**
+     * @return a set with the element added, or this set if the element is already there
+     */
+    public PersistentSet<E> plus(E element) {
+        Node newRoot = root.plus(0, hash(element), element);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentSet<E>(newRoot, size + 1);
+    }
+
+    public PersistentSet<E> plusAll(Collection<? extends E> elements) {
+        PersistentSet<E> result = this;
+        for (E element : elements) {
+            result = result.plus(element);
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new NodeIterator<E>(root);
+    }
+
+    private static int hash(Object o) {
+        if (o == null) {
+            return 0;
+        }
+        int h = o.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static abstract class Node {
+        // Elements and child nodes
+        protected final Object[] array;
+
+        protected Node(Object[] array) {
+            this.array = array;
+        }
+
+        public abstract boolean contains(int shift, int hash, Object element);
+
+        /**
+         * @return this very node if the element is already there
+         */
+        public abstract Node plus(int shift, int hash, Object element);
+    }
+
+    private static class BitmapNode extends Node {
+        private final int bitmap;
+
+        private BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public boolean contains(int shift, int hash, Object element) {
+            int bit = bit(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return false;
+            }
+            Object slot = array[index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).contains(shift + BITS, hash, element);
+            }
+            return equal(slot, element);
+        }
+
+        @Override
+        public Node plus(int shift, int hash, Object element) {
+            int bit = bit(shift, hash);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 1];
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = element;
+                System.arraycopy(array, index, newArray, index + 1, array.length - index);
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            Object slot = array[index];
+            Node newChild;
+            if (slot instanceof Node) {
+                Node child = (Node) slot;
+                newChild = child.plus(shift + BITS, hash, element);
+                if (newChild == child) {
+                    return this;
+                }
+            }
+            else if (equal(slot, element)) {
+                return this;
+            }
+            else {
+                newChild = createNode(shift + BITS, slot, hash(slot), element, hash);
+            }
+            Object[] newArray = array.clone();
+            newArray[index] = newChild;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        private static int bit(int shift, int hash) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private static Node createNode(int shift, Object a, int hashA, Object b, int hashB) {
+            if (hashA == hashB) {
+                return new CollisionNode(hashA, new Object[] {a, b});
+            }
+            return EMPTY_NODE.plus(shift, hashA, a).plus(shift, hashB, b);
+        }
+    }
+
+    private static class CollisionNode extends Node {
+        private final int hash;
+
+        private CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean contains(int shift, int hash, Object element) {
+            if (hash != this.hash) {
+                return false;
+            }
+            for (Object o : array) {
+                if (equal(o, element)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Node plus(int shift, int hash, Object element) {
+            if (hash != this.hash) {
+                // This node moves one level down, next to the new element
+                return new BitmapNode(BitmapNode.bit(shift, this.hash), new Object[] {this}).plus(shift, hash, element);
+            }
+            if (contains(shift, hash, element)) {
+                return this;
+            }
+            Object[] newArray = new Object[array.length + 1];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = element;
+            return new CollisionNode(hash, newArray);
+        }
+    }
+
+    /**
+     * Depth-first traversal, the path from the root is kept on a stack
+     */
+    private static class NodeIterator<E> implements Iterator<E> {
+        private final Object[][] arrays = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth;
+        private Object next;
+        private boolean hasNext;
+
+        private NodeIterator(Node root) {
+            arrays[0] = root.array;
+            advance();
+        }
+
+        private void advance() {
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                if (positions[depth] == array.length) {
+                    depth--;
+                    continue;
+                }
+                Object slot = array[positions[depth]++];
+                if (slot instanceof Node) {
+                    depth++;
+                    arrays[depth] = ((Node) slot).array;
+                    positions[depth] = 0;
+                }
+                else {
+                    next = slot;
+                    hasNext = true;
+                    return;
+                }
+            }
+            hasNext = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            E result = (E) next;
+            next = null;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("The set is immutable");
+        }
+    }
+}
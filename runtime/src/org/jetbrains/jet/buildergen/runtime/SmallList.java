@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.runtime;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A list optimized for zero and one elements: a single element is stored inline, more go to an array that grows as needed.
+ * Most collection relations of beans hold no or one element
+ *
+ * @author abreslav
+ */
+public class SmallList<E> extends AbstractList<E> implements RandomAccess {
+    private int size;
+    // null, the only element, or an Object[] if there are two or more
+    private Object elements;
+
+    public SmallList() {
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        checkIndex(index, size);
+        if (size == 1) {
+            return (E) elements;
+        }
+        return (E) ((Object[]) elements)[index];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        checkIndex(index, size);
+        E old;
+        if (size == 1) {
+            old = (E) elements;
+            elements = element;
+        }
+        else {
+            Object[] array = (Object[]) elements;
+            old = (E) array[index];
+            array[index] = element;
+        }
+        return old;
+    }
+
+    @Override
+    public boolean add(E element) {
+        add(size, element);
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        checkIndex(index, size + 1);
+        if (size == 0) {
+            elements = element;
+        }
+        else if (size == 1) {
+            elements = index == 0 ? new Object[] {element, elements, null, null} : new Object[] {elements, element, null, null};
+        }
+        else {
+            Object[] array = (Object[]) elements;
+            if (size == array.length) {
+                array = Arrays.copyOf(array, size * 2);
+                elements = array;
+            }
+            System.arraycopy(array, index, array, index + 1, size - index);
+            array[index] = element;
+        }
+        size++;
+        modCount++;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int index) {
+        checkIndex(index, size);
+        E old;
+        if (size == 1) {
+            old = (E) elements;
+            elements = null;
+        }
+        else {
+            Object[] array = (Object[]) elements;
+            old = (E) array[index];
+            if (size == 2) {
+                elements = array[1 - index];
+            }
+            else {
+                System.arraycopy(array, index + 1, array, index, size - index - 1);
+                array[size - 1] = null;
+            }
+        }
+        size--;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        elements = null;
+        size = 0;
+        modCount++;
+    }
+
+    private void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+}
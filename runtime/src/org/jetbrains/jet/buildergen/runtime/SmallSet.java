@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.runtime;
+
+import java.util.*;
+
+/**
+ * A set that keeps up to {@link #MAX_ARRAY_SIZE} elements in an array searched linearly, and switches to a hash set
+ * once it grows larger. Iteration order is the insertion order while the set is small
+ *
+ * @author abreslav
+ */
+public class SmallSet<E> extends AbstractSet<E> {
+    private static final int MAX_ARRAY_SIZE = 8;
+
+    private Object[] array;
+    private int size;
+    // Not null once the set has outgrown the array
+    private Set<E> hashed;
+
+    public SmallSet() {
+    }
+
+    @Override
+    public int size() {
+        return hashed != null ? hashed.size() : size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (hashed != null) {
+            return hashed.contains(o);
+        }
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean add(E element) {
+        if (hashed != null) {
+            return hashed.add(element);
+        }
+        if (indexOf(element) >= 0) {
+            return false;
+        }
+        if (size == MAX_ARRAY_SIZE) {
+            hashed = new HashSet<E>(MAX_ARRAY_SIZE * 4);
+            for (int i = 0; i < size; i++) {
+                hashed.add((E) array[i]);
+            }
+            hashed.add(element);
+            array = null;
+            size = 0;
+            return true;
+        }
+        if (array == null) {
+            array = new Object[2];
+        }
+        else if (size == array.length) {
+            array = Arrays.copyOf(array, Math.min(size * 2, MAX_ARRAY_SIZE));
+        }
+        array[size++] = element;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (hashed != null) {
+            return hashed.remove(o);
+        }
+        int index = indexOf(o);
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        hashed = null;
+        array = null;
+        size = 0;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        if (hashed != null) {
+            return hashed.iterator();
+        }
+        return new Iterator<E>() {
+            private int next = 0;
+            private boolean canRemove = false;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                canRemove = true;
+                return (E) array[next++];
+            }
+
+            @Override
+            public void remove() {
+                if (!canRemove) {
+                    throw new IllegalStateException();
+                }
+                canRemove = false;
+                removeAt(--next);
+            }
+        };
+    }
+
+    private int indexOf(Object o) {
+        for (int i = 0; i < size; i++) {
+            Object element = array[i];
+            if (o == null ? element == null : o.equals(element)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(array, index + 1, array, index, size - index - 1);
+        array[--size] = null;
+    }
+}
@@ -21,6 +21,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jet.buildergen.entities.Entity;
 import org.jetbrains.jet.buildergen.entities.Relation;
 import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.code.BinaryOperation;
 import org.jetbrains.jet.buildergen.java.code.CodeFactory;
 import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
 import org.jetbrains.jet.buildergen.java.declarations.ClassKind;
@@ -161,9 +162,12 @@ public class BeanBuilderClassGenerator extends EntityRepresentationGenerator {
                     String name = relation.getMultiplicity().isCollection()
                                   ? MutableBeanInterfaceGenerator.getAllElementAdderName(relation)
                                   : getSetterName(relation);
-                    statements.add(
-                            methodCallStatement(f, bean(f), name, f.variableReference(parameter.getName()))
-                    );
+                    E statement = methodCallStatement(f, bean(f), name, f.variableReference(parameter.getName()));
+                    if (MutableBeanInterfaceGenerator.isOptionalPrimitive(relation)) {
+                        // null stands for no value
+                        statement = _if(f, f.binary(f.variableReference(parameter.getName()), BinaryOperation.NEQ, f._null()), statement);
+                    }
+                    statements.add(statement);
                 }
                 return f.block(statements);
             }
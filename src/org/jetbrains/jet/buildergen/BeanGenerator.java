@@ -18,29 +18,44 @@ package org.jetbrains.jet.buildergen;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jet.lang.descriptors.*;
 import org.jetbrains.jet.lang.descriptors.annotations.Annotated;
 import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.entities.EntityUtil;
 import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.bytecode.ClassFileWriter;
+import org.jetbrains.jet.buildergen.java.bytecode.ClassHierarchy;
 import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
 import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
 import org.jetbrains.jet.lang.types.TypeConstructor;
-import org.jetbrains.jet.utils.Printer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author abreslav
  */
 public class BeanGenerator {
 
+    private static final String STATE_FILE_NAME = ".bean-generator-state";
+    private static final String MODEL_CACHE_FILE_NAME = ".bean-generator-model";
+
     public static void main(String[] args) throws IOException {
         List<Class<?>> classesWithBuilders = Lists.<Class<?>>newArrayList(
                 Named.class,
@@ -85,31 +100,311 @@ public class BeanGenerator {
             String builderClassPackage,
             String beanBuilderPackage
     ) throws IOException {
-        Context context = new Context();
-        EntityBuilder.javaClassesToEntities(classesWithBuilders, context.dataClasses);
-        Collection<Entity> entities = context.dataClasses.getEntities();
+        generateBeans(classesWithBuilders, generatedSourceRoot, mutableBeanPackage, mutableBeanClassPackage, builderClassPackage,
+                      beanBuilderPackage, new GenerationOptions());
+    }
+
+    public static void generateBeans(
+            List<? extends Class<?>> classesWithBuilders,
+            String generatedSourceRoot,
+            String mutableBeanPackage,
+            String mutableBeanClassPackage,
+            String builderClassPackage,
+            String beanBuilderPackage,
+            @NotNull GenerationOptions options
+    ) throws IOException {
+        EntityRepresentationContext<ClassBean> dataClasses = new ConcurrentRepresentationContext<ClassBean>();
+        if (options.isModelCache()) {
+            EntityModelCache.javaClassesToEntities(classesWithBuilders, new File(generatedSourceRoot, MODEL_CACHE_FILE_NAME), dataClasses);
+        }
+        else {
+            EntityBuilder.javaClassesToEntities(classesWithBuilders, dataClasses);
+        }
+        // Data classes are referred to from the generated code: they must be loadable by the same loader
+        ClassLoader classLoader = classesWithBuilders.isEmpty()
+                                  ? BeanGenerator.class.getClassLoader()
+                                  : classesWithBuilders.get(0).getClassLoader();
+        generateBeans(dataClasses, classLoader, generatedSourceRoot, mutableBeanPackage, mutableBeanClassPackage, builderClassPackage,
+                      beanBuilderPackage, options);
+    }
+
+    /**
+     * Entities are discovered in class files, which are not loaded (unless class files are generated)
+     */
+    public static void generateBeans(
+            @NotNull ClassFileEntityBuilder entityClasses,
+            String generatedSourceRoot,
+            String mutableBeanPackage,
+            String mutableBeanClassPackage,
+            String builderClassPackage,
+            String beanBuilderPackage,
+            @NotNull GenerationOptions options
+    ) throws IOException {
+        EntityRepresentationContext<ClassBean> dataClasses = new ConcurrentRepresentationContext<ClassBean>();
+        entityClasses.classFilesToEntities(dataClasses);
+        generateBeans(dataClasses, entityClasses.createClassLoader(BeanGenerator.class.getClassLoader()), generatedSourceRoot,
+                      mutableBeanPackage, mutableBeanClassPackage, builderClassPackage, beanBuilderPackage, options);
+    }
+
+    /**
+     * Entities are read from a schema (see {@link SchemaEntityBuilder}), no entity classes are needed
+     */
+    public static void generateBeansFromSchema(
+            @NotNull File schemaFile,
+            String generatedSourceRoot,
+            String mutableBeanPackage,
+            String mutableBeanClassPackage,
+            String builderClassPackage,
+            String beanBuilderPackage,
+            @NotNull GenerationOptions options
+    ) throws IOException {
+        EntityRepresentationContext<ClassBean> dataClasses = new ConcurrentRepresentationContext<ClassBean>();
+        Reader schema = new InputStreamReader(new FileInputStream(schemaFile), "UTF-8");
+        try {
+            SchemaEntityBuilder.schemaToEntities(schema, dataClasses);
+        }
+        finally {
+            schema.close();
+        }
+        generateBeans(dataClasses, BeanGenerator.class.getClassLoader(), generatedSourceRoot, mutableBeanPackage,
+                      mutableBeanClassPackage, builderClassPackage, beanBuilderPackage, options);
+    }
+
+    private static void generateBeans(
+            @NotNull EntityRepresentationContext<ClassBean> dataClasses,
+            @NotNull ClassLoader classLoader,
+            String generatedSourceRoot,
+            String mutableBeanPackage,
+            String mutableBeanClassPackage,
+            String builderClassPackage,
+            String beanBuilderPackage,
+            @NotNull GenerationOptions options
+    ) throws IOException {
+        if (options.isStreaming() && options.isBytecode()) {
+            throw new IllegalArgumentException("Class files can't be streamed: the whole class hierarchy is needed to write them");
+        }
+        if (options.isStreaming() && options.isPipelined()) {
+            throw new IllegalArgumentException("Streaming and pipelined generation can't be combined");
+        }
+        if (options.isStreaming() && options.getUtilShardSize() > 0) {
+            throw new IllegalArgumentException("Util classes can't be sharded in the streaming mode");
+        }
+        if (options.isStreaming() && options.getPersistentBeanPackage() != null) {
+            throw new IllegalArgumentException("Persistent beans can't be generated in the streaming mode");
+        }
+        if (!options.getRoots().isEmpty()) {
+            dataClasses = getReachableDataClasses(dataClasses, options.getRoots());
+        }
+        boolean parallel = options.isParallel() && !options.isStreaming();
+        ExecutorService executor = parallel ? Executors.newFixedThreadPool(options.getThreadCount()) : null;
+        try {
+            generateBeans(dataClasses, classLoader, generatedSourceRoot, mutableBeanPackage, mutableBeanClassPackage, builderClassPackage,
+                          beanBuilderPackage, options, executor);
+        }
+        finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static void generateBeans(
+            @NotNull final EntityRepresentationContext<ClassBean> dataClasses,
+            @NotNull ClassLoader classLoader,
+            String generatedSourceRoot,
+            final String mutableBeanPackage,
+            final String mutableBeanClassPackage,
+            final String builderClassPackage,
+            final String beanBuilderPackage,
+            @NotNull final GenerationOptions options,
+            @Nullable ExecutorService executor
+    ) throws IOException {
+        Collection<Entity> entities = dataClasses.getEntities();
+
+        // The whole model is always built: representations of unchanged entities are referred to by the changed ones
+        File stateFile = new File(generatedSourceRoot, STATE_FILE_NAME);
+        IncrementalState state = IncrementalState.compute(
+                entities,
+                StringUtil.join(new String[] {mutableBeanPackage, mutableBeanClassPackage, builderClassPackage, beanBuilderPackage,
+                        options.isBytecode() ? "class" : "java", StringUtil.join(options.getRoots(), "+"),
+                        String.valueOf(options.getUtilShardSize()), options.isLazyCollections() ? "lazy" : "eager",
+                        options.isSmallCollections() ? "small" : "jdk", options.isCompactLayout() ? "compact" : "plain",
+                        options.getPersistentBeanPackage() != null ? options.getPersistentBeanPackage() : "-"}, ",")
+        );
+        Set<String> dirty = null;
+        if (options.isIncremental()) {
+            dirty = state.getDirtyEntities(IncrementalState.load(stateFile));
+        }
+
+        File sourceRoot = new File(generatedSourceRoot);
+        assert sourceRoot.isDirectory();
+        OutputSink sink = options.getArchive() != null ? new ZipOutputSink(options.getArchive()) : GeneratedFilesManifest.load(sourceRoot);
+
+        boolean generated = false;
+        try {
+            if (options.isStreaming()) {
+                StreamingBeanGenerator.generate(dataClasses, mutableBeanPackage, mutableBeanClassPackage, builderClassPackage,
+                                                beanBuilderPackage, options.isLazyCollections(), options.isSmallCollections(),
+                                                options.isCompactLayout(), sink, dirty);
+            }
+            else if (options.isPipelined()) {
+                int renderThreadCount = options.isParallel() ? options.getThreadCount() : 1;
+                if (options.isBytecode()) {
+                    // Class files are written against the complete hierarchy: only rendering and writing overlap
+                    final List<ClassModel> classes = generateClasses(dataClasses, mutableBeanPackage, mutableBeanClassPackage,
+                                                                     builderClassPackage, beanBuilderPackage, options, executor);
+                    GenerationPipeline.run(new GenerationPipeline.Generator() {
+                        @Override
+                        public void generate(@NotNull GenerationPipeline.Output output) throws InterruptedException {
+                            for (ClassModel classModel : classes) {
+                                output.put(classModel);
+                            }
+                        }
+                    }, classFileRenderer(new ClassHierarchy(classes, classLoader)), renderThreadCount, sink, dirty, ".class");
+                }
+                else {
+                    GenerationPipeline.run(new GenerationPipeline.Generator() {
+                        @Override
+                        public void generate(@NotNull GenerationPipeline.Output output) throws InterruptedException {
+                            generateClassesToOutput(dataClasses, mutableBeanPackage, mutableBeanClassPackage, builderClassPackage,
+                                                    beanBuilderPackage, options, output);
+                        }
+                    }, SOURCE_RENDERER, renderThreadCount, sink, dirty, ".java");
+                }
+            }
+            else {
+                List<ClassModel> classes = generateClasses(dataClasses, mutableBeanPackage, mutableBeanClassPackage, builderClassPackage,
+                                                           beanBuilderPackage, options, executor);
+                if (options.isBytecode()) {
+                    writeClassFiles(sink, classes, new ClassHierarchy(classes, classLoader), dirty, executor);
+                }
+                else {
+                    writeToFiles(sink, classes, dirty, executor);
+                }
+            }
+            generated = true;
+        }
+        finally {
+            if (!generated) {
+                // Neither the archive nor the state is saved: the next run starts over
+                sink.abort();
+            }
+        }
+
+        // Deletes files of the entities that no longer exist, or completes the archive
+        sink.close();
+        state.save(stateFile);
+    }
+
+    /**
+     * Only the entities reachable from the roots, in the original order
+     */
+    @NotNull
+    private static EntityRepresentationContext<ClassBean> getReachableDataClasses(
+            @NotNull EntityRepresentationContext<ClassBean> dataClasses,
+            @NotNull Set<String> rootNames
+    ) {
+        Map<String, Entity> entitiesByName = Maps.newHashMap();
+        for (Entity entity : dataClasses.getEntities()) {
+            entitiesByName.put(entity.getName(), entity);
+        }
+        List<Entity> roots = Lists.newArrayList();
+        for (String rootName : rootNames) {
+            Entity root = entitiesByName.get(rootName);
+            if (root == null) {
+                throw new IllegalArgumentException("Unknown root entity: " + rootName);
+            }
+            roots.add(root);
+        }
+
+        Set<Entity> reachable = EntityUtil.getReachableEntities(roots);
+        EntityRepresentationContext<ClassBean> result = new ConcurrentRepresentationContext<ClassBean>();
+        for (Entity entity : dataClasses.getEntities()) {
+            if (reachable.contains(entity)) {
+                result.registerRepresentation(entity, dataClasses.getRepresentation(entity));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Generates the classes and compiles them with javac in memory: nothing is written to the source tree
+     */
+    @NotNull
+    public static CompiledClasses compileBeans(
+            List<? extends Class<?>> classesWithBuilders,
+            String mutableBeanPackage,
+            String mutableBeanClassPackage,
+            String builderClassPackage,
+            String beanBuilderPackage
+    ) {
+        EntityRepresentationContext<ClassBean> dataClasses = new ConcurrentRepresentationContext<ClassBean>();
+        EntityBuilder.javaClassesToEntities(classesWithBuilders, dataClasses);
+
+        List<ClassModel> classes = generateClasses(dataClasses, mutableBeanPackage, mutableBeanClassPackage, builderClassPackage,
+                                                   beanBuilderPackage, null);
+        List<Class<?>> classpathRoots = Lists.<Class<?>>newArrayList(classesWithBuilders);
+        // Generated code is annotated with @NotNull/@Nullable
+        classpathRoots.add(NotNull.class);
+        return InMemoryCompiler.compile(classes, InMemoryCompiler.getClasspath(classpathRoots));
+    }
+
+    /**
+     * Generates all the classes for the entities registered in {@code dataClasses}, in the order they are written out
+     */
+    @NotNull
+    static List<ClassModel> generateClasses(
+            @NotNull EntityRepresentationContext<ClassBean> dataClasses,
+            String mutableBeanPackage,
+            String mutableBeanClassPackage,
+            String builderClassPackage,
+            String beanBuilderPackage,
+            @Nullable ExecutorService executor
+    ) {
+        return generateClasses(dataClasses, mutableBeanPackage, mutableBeanClassPackage, builderClassPackage, beanBuilderPackage,
+                               new GenerationOptions(), executor);
+    }
+
+    /**
+     * Only the options that affect the generated classes are taken into account, e.g. {@link GenerationOptions#getUtilShardSize()}
+     */
+    @NotNull
+    static List<ClassModel> generateClasses(
+            @NotNull EntityRepresentationContext<ClassBean> dataClasses,
+            String mutableBeanPackage,
+            String mutableBeanClassPackage,
+            String builderClassPackage,
+            String beanBuilderPackage,
+            @NotNull GenerationOptions options,
+            @Nullable ExecutorService executor
+    ) {
+        Context context = new Context(dataClasses);
+        Collection<Entity> entities = dataClasses.getEntities();
 
         Collection<ClassModel> mutableBeans = new MutableBeanInterfaceGenerator().generate(
                 entities,
                 context.mutableBeanInterfaces,
-                mutableBeanPackage
+                mutableBeanPackage,
+                executor
         );
 
-        Collection<ClassModel> mutableBeanClasses = new MutableBeanImplementationGenerator(context.mutableBeanInterfaces).generate(
+        Collection<ClassModel> mutableBeanClasses = new MutableBeanImplementationGenerator(
+                context.mutableBeanInterfaces, options.isLazyCollections(), options.isSmallCollections(), options.isCompactLayout()
+        ).generate(
                 entities,
                 context.mutableBeanImplementationClasses,
-                mutableBeanClassPackage
+                mutableBeanClassPackage,
+                executor
         );
 
-        ClassModel beanUtil = BeanUtilGenerator.generate(mutableBeanPackage, "BeanUtil", context.mutableBeanInterfaces,
-                                                         context.mutableBeanImplementationClasses);
-        ClassModel dataToBeanUtil = DataToBeanGenerator.generate(mutableBeanPackage, "DataToBean", context.mutableBeanInterfaces,
-                                                                 context.mutableBeanImplementationClasses);
+        List<ClassModel> beanUtil = generateBeanUtil(context, mutableBeanPackage, options.getUtilShardSize());
+        List<ClassModel> dataToBeanUtil = generateDataToBean(context, mutableBeanPackage, options.getUtilShardSize());
 
         Collection<ClassModel> builderClasses = new BuilderClassGenerator().generate(
                 entities,
                 context.builderClasses,
-                builderClassPackage
+                builderClassPackage,
+                executor
         );
 
         Collection<ClassModel> beanBuilderClasses = new BeanBuilderClassGenerator(
@@ -117,71 +412,279 @@ public class BeanGenerator {
         ).generate(
                 entities,
                 context.beanBuilders,
-                beanBuilderPackage
+                beanBuilderPackage,
+                executor
         );
 
-        ClassModel builderUtil = DataBuilderGenerator.generate(builderClassPackage, "DataBuilder", context.dataClasses,
-                                                               context.builderClasses);
+        List<ClassModel> builderUtil = generateDataBuilder(context, builderClassPackage, options.getUtilShardSize());
+
+        List<ClassModel> persistentBeans = Lists.newArrayList();
+        String persistentBeanPackage = options.getPersistentBeanPackage();
+        if (persistentBeanPackage != null) {
+            persistentBeans.addAll(new PersistentBeanInterfaceGenerator().generate(
+                    entities,
+                    context.persistentBeanInterfaces,
+                    persistentBeanPackage,
+                    executor
+            ));
+            persistentBeans.addAll(new PersistentBeanImplementationGenerator(context.persistentBeanInterfaces).generate(
+                    entities,
+                    context.persistentBeanImplementationClasses,
+                    persistentBeanPackage,
+                    executor
+            ));
+            persistentBeans.addAll(generateToPersistentBean(context, persistentBeanPackage, options.getUtilShardSize()));
+        }
 
-        writeToFiles(generatedSourceRoot, mutableBeanPackage, mutableBeans);
-        writeToFiles(generatedSourceRoot, mutableBeanClassPackage, mutableBeanClasses);
-        writeToFiles(generatedSourceRoot, mutableBeanPackage, Collections.singletonList(beanUtil));
-        writeToFiles(generatedSourceRoot, mutableBeanPackage, Collections.singletonList(dataToBeanUtil));
-        writeToFiles(generatedSourceRoot, builderClassPackage, builderClasses);
-        writeToFiles(generatedSourceRoot, beanBuilderPackage, beanBuilderClasses);
-        writeToFiles(generatedSourceRoot, builderClassPackage, Collections.singletonList(builderUtil));
+        List<ClassModel> result = Lists.newArrayList();
+        result.addAll(mutableBeans);
+        result.addAll(mutableBeanClasses);
+        result.addAll(beanUtil);
+        result.addAll(dataToBeanUtil);
+        result.addAll(builderClasses);
+        result.addAll(beanBuilderClasses);
+        result.addAll(builderUtil);
+        result.addAll(persistentBeans);
+        return result;
     }
 
-    private static void writeToFiles(String generatedSourceRoot, String packageName, Collection<ClassModel> readOnlyBeans)
-            throws IOException {
-        File sourceRoot = new File(generatedSourceRoot);
-        assert sourceRoot.isDirectory();
-        File packageDir = new File(sourceRoot, packageToPath(packageName));
-        for (ClassModel classModel : readOnlyBeans) {
-            StringBuilder out = new StringBuilder();
-            Printer p = new Printer(out);
-            ClassPrinter.printClass(classModel, p);
-            File file = new File(packageDir, classModel.getName() + ".java");
-            FileUtil.writeToFile(file, out.toString());
+    /**
+     * Same as {@link #generateClasses(EntityRepresentationContext, String, String, String, String, GenerationOptions, ExecutorService)},
+     * but each class is passed on as soon as it is complete
+     */
+    private static void generateClassesToOutput(
+            @NotNull EntityRepresentationContext<ClassBean> dataClasses,
+            String mutableBeanPackage,
+            String mutableBeanClassPackage,
+            String builderClassPackage,
+            String beanBuilderPackage,
+            @NotNull GenerationOptions options,
+            @NotNull GenerationPipeline.Output output
+    ) throws InterruptedException {
+        Context context = new Context(dataClasses);
+        Collection<Entity> entities = dataClasses.getEntities();
+
+        new MutableBeanInterfaceGenerator().generateToOutput(entities, context.mutableBeanInterfaces, mutableBeanPackage, output);
+
+        new MutableBeanImplementationGenerator(
+                context.mutableBeanInterfaces, options.isLazyCollections(), options.isSmallCollections(), options.isCompactLayout()
+        ).generateToOutput(
+                entities,
+                context.mutableBeanImplementationClasses,
+                mutableBeanClassPackage,
+                output
+        );
+
+        for (ClassModel classModel : generateBeanUtil(context, mutableBeanPackage, options.getUtilShardSize())) {
+            output.put(classModel);
+        }
+        for (ClassModel classModel : generateDataToBean(context, mutableBeanPackage, options.getUtilShardSize())) {
+            output.put(classModel);
+        }
+
+        new BuilderClassGenerator().generateToOutput(entities, context.builderClasses, builderClassPackage, output);
+
+        new BeanBuilderClassGenerator(
+                context.mutableBeanInterfaces, context.mutableBeanImplementationClasses, context.builderClasses
+        ).generateToOutput(
+                entities,
+                context.beanBuilders,
+                beanBuilderPackage,
+                output
+        );
+
+        for (ClassModel classModel : generateDataBuilder(context, builderClassPackage, options.getUtilShardSize())) {
+            output.put(classModel);
+        }
+
+        String persistentBeanPackage = options.getPersistentBeanPackage();
+        if (persistentBeanPackage != null) {
+            new PersistentBeanInterfaceGenerator().generateToOutput(entities, context.persistentBeanInterfaces, persistentBeanPackage,
+                                                                    output);
+            new PersistentBeanImplementationGenerator(context.persistentBeanInterfaces).generateToOutput(
+                    entities,
+                    context.persistentBeanImplementationClasses,
+                    persistentBeanPackage,
+                    output
+            );
+            for (ClassModel classModel : generateToPersistentBean(context, persistentBeanPackage, options.getUtilShardSize())) {
+                output.put(classModel);
+            }
         }
     }
 
-    private static String packageToPath(String packageFqName) {
-        return packageFqName.replace('.', '/');
+    @NotNull
+    private static List<ClassModel> generateBeanUtil(@NotNull final Context context, @NotNull final String packageName, int shardSize) {
+        return UtilClassShards.generate(new UtilClassShards.UtilClassGenerator() {
+            @NotNull
+            @Override
+            public ClassModel generate(@NotNull String className, @NotNull List<Entity> entities, @Nullable ClassModel facade) {
+                return BeanUtilGenerator.generate(packageName, className, UtilClassShards.subset(context.mutableBeanInterfaces, entities),
+                                                  context.mutableBeanImplementationClasses, facade);
+            }
+        }, packageName, "BeanUtil", context.mutableBeanInterfaces.getEntities(), shardSize);
     }
 
-    private static class Context {
-        RepresentationContext mutableBeanInterfaces = new RepresentationContext();
-        RepresentationContext mutableBeanImplementationClasses = new RepresentationContext();
-        RepresentationContext builderClasses = new RepresentationContext();
-        RepresentationContext dataClasses = new RepresentationContext();
-        RepresentationContext beanBuilders = new RepresentationContext();
+    @NotNull
+    private static List<ClassModel> generateDataToBean(@NotNull final Context context, @NotNull final String packageName, int shardSize) {
+        return UtilClassShards.generate(new UtilClassShards.UtilClassGenerator() {
+            @NotNull
+            @Override
+            public ClassModel generate(@NotNull String className, @NotNull List<Entity> entities, @Nullable ClassModel facade) {
+                return DataToBeanGenerator.generate(packageName, className, UtilClassShards.subset(context.mutableBeanInterfaces, entities),
+                                                    context.mutableBeanImplementationClasses, facade);
+            }
+        }, packageName, "DataToBean", context.mutableBeanInterfaces.getEntities(), shardSize);
     }
 
-    private static class RepresentationContext implements EntityRepresentationContext<ClassBean> {
-        private final Map<Entity, ClassBean> map = Maps.newLinkedHashMap();
+    @NotNull
+    private static List<ClassModel> generateToPersistentBean(
+            @NotNull final Context context,
+            @NotNull final String packageName,
+            int shardSize
+    ) {
+        return UtilClassShards.generate(new UtilClassShards.UtilClassGenerator() {
+            @NotNull
+            @Override
+            public ClassModel generate(@NotNull String className, @NotNull List<Entity> entities, @Nullable ClassModel facade) {
+                return ToPersistentBeanGenerator.generate(packageName, className,
+                                                          UtilClassShards.subset(context.persistentBeanInterfaces, entities),
+                                                          context.persistentBeanImplementationClasses, context.mutableBeanInterfaces,
+                                                          facade);
+            }
+        }, packageName, "ToPersistentBean", context.persistentBeanInterfaces.getEntities(), shardSize);
+    }
 
-        @Override
-        public void registerRepresentation(@NotNull Entity entity, @NotNull ClassBean representation) {
-            map.put(entity, representation);
+    @NotNull
+    private static List<ClassModel> generateDataBuilder(@NotNull final Context context, @NotNull final String packageName, int shardSize) {
+        return UtilClassShards.generate(new UtilClassShards.UtilClassGenerator() {
+            @NotNull
+            @Override
+            public ClassModel generate(@NotNull String className, @NotNull List<Entity> entities, @Nullable ClassModel facade) {
+                return DataBuilderGenerator.generate(packageName, className, UtilClassShards.subset(context.dataClasses, entities),
+                                                     context.builderClasses, facade);
+            }
+        }, packageName, "DataBuilder", context.dataClasses.getEntities(), shardSize);
+    }
+
+    private static boolean needsRegeneration(@NotNull ClassModel classModel, @Nullable Set<String> dirty) {
+        if (dirty == null) return true;
+        Entity entity = classModel.getData(EntityRepresentationGenerator.ENTITY);
+        if (entity == null) {
+            // Util classes (BeanUtil, DataToBean, DataBuilder) mention all the entities
+            return !dirty.isEmpty();
         }
+        return dirty.contains(entity.getName());
+    }
 
-        @Override
-        public ClassBean getRepresentation(@NotNull Entity entity) {
-            return map.get(entity);
+    private static void writeToFiles(
+            final OutputSink sink,
+            Collection<ClassModel> readOnlyBeans,
+            @Nullable Set<String> dirty,
+            @Nullable ExecutorService executor
+    ) throws IOException {
+        // Each class is streamed to its file, unchanged files are not touched: javac and the IDE won't recompile them
+        List<Callable<Boolean>> writes = Lists.newArrayList();
+        for (final ClassModel classModel : getClassesToWrite(sink, readOnlyBeans, dirty, ".java")) {
+            final String path = getRelativePath(classModel, ".java");
+            writes.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return sink.write(path, new OutputSink.Content() {
+                        @Override
+                        public void writeTo(@NotNull Writer writer) throws IOException {
+                            ClassPrinter.printClass(classModel, writer);
+                        }
+                    });
+                }
+            });
         }
+        ParallelUtil.invokeAll(executor, writes);
+    }
 
-        @NotNull
-        @Override
-        public Collection<Entity> getEntities() {
-            return map.keySet();
+    private static void writeClassFiles(
+            final OutputSink sink,
+            Collection<ClassModel> classes,
+            final ClassHierarchy hierarchy,
+            @Nullable Set<String> dirty,
+            @Nullable ExecutorService executor
+    ) throws IOException {
+        List<Callable<Boolean>> writes = Lists.newArrayList();
+        for (final ClassModel classModel : getClassesToWrite(sink, classes, dirty, ".class")) {
+            final String path = getRelativePath(classModel, ".class");
+            writes.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return sink.write(path, ClassFileWriter.writeClass(classModel, hierarchy));
+                }
+            });
         }
+        ParallelUtil.invokeAll(executor, writes);
+    }
 
+    private static final GenerationPipeline.Renderer SOURCE_RENDERER = new GenerationPipeline.Renderer() {
         @NotNull
         @Override
-        public Collection<ClassBean> getRepresentations() {
-            return map.values();
+        public byte[] render(@NotNull ClassModel classModel) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(bytes, "UTF-8");
+            ClassPrinter.printClass(classModel, writer);
+            writer.close();
+            return bytes.toByteArray();
         }
+    };
+
+    @NotNull
+    private static GenerationPipeline.Renderer classFileRenderer(@NotNull final ClassHierarchy hierarchy) {
+        return new GenerationPipeline.Renderer() {
+            @NotNull
+            @Override
+            public byte[] render(@NotNull ClassModel classModel) {
+                return ClassFileWriter.writeClass(classModel, hierarchy);
+            }
+        };
+    }
+
+    @NotNull
+    static List<ClassModel> getClassesToWrite(
+            @NotNull OutputSink sink,
+            @NotNull Collection<ClassModel> classes,
+            @Nullable Set<String> dirty,
+            @NotNull String extension
+    ) {
+        List<ClassModel> classesToWrite = Lists.newArrayList();
+        for (ClassModel classModel : classes) {
+            String path = getRelativePath(classModel, extension);
+            if (needsRegeneration(classModel, dirty) || !sink.exists(path)) {
+                classesToWrite.add(classModel);
+            }
+            else {
+                sink.retain(path);
+            }
+        }
+        return classesToWrite;
+    }
+
+    @NotNull
+    static String getRelativePath(@NotNull ClassModel classModel, @NotNull String extension) {
+        return packageToPath(classModel.getPackageFqName()) + "/" + classModel.getName() + extension;
     }
 
+    private static String packageToPath(String packageFqName) {
+        return packageFqName.replace('.', '/');
+    }
+
+    private static class Context {
+        EntityRepresentationContext<ClassBean> mutableBeanInterfaces = new ConcurrentRepresentationContext<ClassBean>();
+        EntityRepresentationContext<ClassBean> mutableBeanImplementationClasses = new ConcurrentRepresentationContext<ClassBean>();
+        EntityRepresentationContext<ClassBean> builderClasses = new ConcurrentRepresentationContext<ClassBean>();
+        EntityRepresentationContext<ClassBean> dataClasses;
+        EntityRepresentationContext<ClassBean> beanBuilders = new ConcurrentRepresentationContext<ClassBean>();
+        EntityRepresentationContext<ClassBean> persistentBeanInterfaces = new ConcurrentRepresentationContext<ClassBean>();
+        EntityRepresentationContext<ClassBean> persistentBeanImplementationClasses = new ConcurrentRepresentationContext<ClassBean>();
+
+        Context(@NotNull EntityRepresentationContext<ClassBean> dataClasses) {
+            this.dataClasses = dataClasses;
+        }
+    }
 }
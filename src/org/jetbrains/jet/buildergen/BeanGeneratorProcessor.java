@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.entities.EntityUtil;
+import org.jetbrains.jet.buildergen.entities.Relation;
+import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the generator inside javac. The entities are listed in the {@code buildergen.entities} option
+ * (comma-separated qualified names), generated sources are handed to the compiler through the Filer.
+ *
+ * @author abreslav
+ */
+public class BeanGeneratorProcessor extends AbstractProcessor {
+
+    public static final String ENTITIES_OPTION = "buildergen.entities";
+    public static final String MUTABLE_BEAN_PACKAGE_OPTION = "buildergen.mutableBeanPackage";
+    public static final String MUTABLE_BEAN_CLASS_PACKAGE_OPTION = "buildergen.mutableBeanClassPackage";
+    public static final String BUILDER_CLASS_PACKAGE_OPTION = "buildergen.builderClassPackage";
+    public static final String BEAN_BUILDER_PACKAGE_OPTION = "buildergen.beanBuilderPackage";
+
+    private boolean generated = false;
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return ImmutableSet.of(ENTITIES_OPTION, MUTABLE_BEAN_PACKAGE_OPTION, MUTABLE_BEAN_CLASS_PACKAGE_OPTION,
+                               BUILDER_CLASS_PACKAGE_OPTION, BEAN_BUILDER_PACKAGE_OPTION);
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        // Entities are not annotated, they are listed in the options
+        return ImmutableSet.of("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        String entityNames = processingEnv.getOptions().get(ENTITIES_OPTION);
+        if (generated || entityNames == null || roundEnv.processingOver()) {
+            return false;
+        }
+        generated = true;
+
+        List<TypeElement> entityElements = Lists.newArrayList();
+        for (String entityName : entityNames.split(",")) {
+            String name = entityName.trim();
+            if (name.isEmpty()) continue;
+            TypeElement element = processingEnv.getElementUtils().getTypeElement(name);
+            if (element == null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Entity class not found: " + name);
+                return false;
+            }
+            entityElements.add(element);
+        }
+
+        EntityRepresentationContext<ClassBean> dataClasses = new ConcurrentRepresentationContext<ClassBean>();
+        ElementEntityBuilder.typeElementsToEntities(entityElements, dataClasses, processingEnv);
+
+        List<ClassModel> classes = BeanGenerator.generateClasses(
+                dataClasses,
+                getOption(MUTABLE_BEAN_PACKAGE_OPTION, "beans"),
+                getOption(MUTABLE_BEAN_CLASS_PACKAGE_OPTION, "beans.impl"),
+                getOption(BUILDER_CLASS_PACKAGE_OPTION, "builders"),
+                getOption(BEAN_BUILDER_PACKAGE_OPTION, "beans.builders"),
+                null
+        );
+
+        Element[] allEntityElements = entityElements.toArray(new Element[entityElements.size()]);
+        for (ClassModel classModel : classes) {
+            try {
+                writeClass(classModel, getOriginatingElements(classModel, entityElements, allEntityElements));
+            }
+            catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                                                         "Could not write " + classModel.getName() + ": " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private void writeClass(@NotNull ClassModel classModel, @NotNull Element[] originatingElements) throws IOException {
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                classModel.getPackageFqName() + "." + classModel.getName(), originatingElements);
+        Writer writer = file.openWriter();
+        try {
+            ClassPrinter.printClass(classModel, writer);
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Lets the incremental compiler know which entities each generated class depends on: a representation of an entity
+     * depends on all its super-entities (their relations are implemented or copied too) and on the entities its relations
+     * refer to
+     */
+    @NotNull
+    private static Element[] getOriginatingElements(
+            @NotNull ClassModel classModel,
+            @NotNull List<TypeElement> entityElements,
+            @NotNull Element[] allEntityElements
+    ) {
+        Entity entity = classModel.getData(EntityRepresentationGenerator.ENTITY);
+        if (entity == null) {
+            // Util classes mention all the entities
+            return allEntityElements;
+        }
+        Set<Entity> dependencies = Sets.newLinkedHashSet(EntityUtil.getHierarchy(entity).getEntitiesBreadthFirst());
+        for (Relation<?> relation : EntityUtil.getAllRelations(entity)) {
+            if (relation.getTarget() instanceof Entity) {
+                dependencies.add((Entity) relation.getTarget());
+            }
+        }
+
+        List<Element> result = Lists.newArrayList();
+        for (Entity dependency : dependencies) {
+            TypeElement element = findElement(dependency, entityElements);
+            if (element == null) {
+                return allEntityElements;
+            }
+            result.add(element);
+        }
+        return result.toArray(new Element[result.size()]);
+    }
+
+    @Nullable
+    private static TypeElement findElement(@NotNull Entity entity, @NotNull List<TypeElement> entityElements) {
+        for (TypeElement element : entityElements) {
+            if (element.getSimpleName().contentEquals(entity.getName())) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    @NotNull
+    private String getOption(@NotNull String name, @NotNull String defaultValue) {
+        Map<String, String> options = processingEnv.getOptions();
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+}
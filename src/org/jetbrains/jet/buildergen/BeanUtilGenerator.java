@@ -18,12 +18,14 @@ package org.jetbrains.jet.buildergen;
 
 import com.google.common.collect.Lists;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jet.buildergen.entities.Entity;
 import org.jetbrains.jet.buildergen.entities.EntityUtil;
 import org.jetbrains.jet.buildergen.entities.Multiplicity;
 import org.jetbrains.jet.buildergen.entities.Relation;
 import org.jetbrains.jet.buildergen.java.ClassPrinter;
 import org.jetbrains.jet.buildergen.java.code.CodeFactory;
+import org.jetbrains.jet.buildergen.java.code.CodeTemplate;
 import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
 import org.jetbrains.jet.buildergen.java.declarations.ClassKind;
 import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
@@ -34,8 +36,10 @@ import org.jetbrains.jet.buildergen.java.declarations.beans.ParameterBean;
 import org.jetbrains.jet.buildergen.java.types.TypeData;
 import org.jetbrains.jet.buildergen.java.types.TypeUtil;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import static org.jetbrains.jet.buildergen.java.code.CodeUtil.*;
 
@@ -49,12 +53,27 @@ public class BeanUtilGenerator {
     private static final String SHALLOW_COPY = "shallowCopy";
     private static final String DEEP_COPY = "deepCopy";
     private static final String LOOP_INDEX = "item";
+    private static final String SETTER = "setter";
+    private static final String GETTER = "getter";
 
     public static ClassModel generate(
             String packageName,
             String className,
             EntityRepresentationContext<ClassBean> interfaces,
             EntityRepresentationContext<ClassBean> implementations
+    ) {
+        return generate(packageName, className, interfaces, implementations, null);
+    }
+
+    /**
+     * @param facade if the util class is a shard, deep copies of other entities are called through the facade
+     */
+    public static ClassModel generate(
+            String packageName,
+            String className,
+            EntityRepresentationContext<ClassBean> interfaces,
+            EntityRepresentationContext<ClassBean> implementations,
+            @Nullable ClassModel facade
     ) {
         ClassBean utilClass = new ClassBean()
                 .setVisibility(Visibility.PUBLIC)
@@ -62,7 +81,7 @@ public class BeanUtilGenerator {
                 .setPackageFqName(packageName)
                 .setName(className);
         utilClass.getMethods().addAll(generateShallowCopyMethods(interfaces, implementations));
-        utilClass.getMethods().addAll(generateDeepCopyMethods(interfaces, implementations));
+        utilClass.getMethods().addAll(generateDeepCopyMethods(interfaces, implementations, facade));
         return utilClass;
     }
 
@@ -123,7 +142,8 @@ public class BeanUtilGenerator {
 
     private static Collection<MethodBean> generateDeepCopyMethods(
             final EntityRepresentationContext<ClassBean> interfaces,
-            final EntityRepresentationContext<ClassBean> implementations
+            final EntityRepresentationContext<ClassBean> implementations,
+            @Nullable final ClassModel facade
     ) {
         Collection<MethodBean> result = Lists.newArrayList();
         for (final Entity entity : interfaces.getEntities()) {
@@ -143,14 +163,14 @@ public class BeanUtilGenerator {
                                                    E statement;
                                                    if (!relation.getMultiplicity().isCollection()) {
                                                        if (relation.getTarget() instanceof Entity) {
-                                                           statement = deepCopyStatement(f, relation);
+                                                           statement = deepCopyStatement(f, relation, facade);
                                                        }
                                                        else {
                                                            statement = directCopyStatement(f, relation);
                                                        }
                                                    }
                                                    else {
-                                                       statement = deepCopyCollectionStatement(f, relation, interfaces);
+                                                       statement = deepCopyCollectionStatement(f, relation, interfaces, facade);
                                                    }
                                                    statements.add(statement);
                                                }
@@ -170,19 +190,48 @@ public class BeanUtilGenerator {
         );
     }
 
+    // The setter may also be an adder of all elements
+    private static final CodeTemplate COPY_TEMPLATE = new CodeTemplate(SETTER, GETTER) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return methodCallStatement(f, f.variableReference(RESULT), values.get(SETTER),
+                                       methodCall(f, f.variableReference(ORIGINAL), values.get(GETTER)));
+        }
+    };
+
+    private static final CodeTemplate DEEP_COPY_TEMPLATE = new CodeTemplate(SETTER, GETTER) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return deepCopyStatement(f, null, values.get(SETTER), values.get(GETTER));
+        }
+    };
+
     private static <E> E directCopyStatement(CodeFactory<E> f, Relation<?> relation) {
         String setterName = EntityRepresentationGenerator.getSetterName(relation);
         String getterName = EntityRepresentationGenerator.getGetterName(relation);
-        return methodCallStatement(f, f.variableReference(RESULT), setterName,
-                                   methodCall(f, f.variableReference(ORIGINAL), getterName));
+        E copy = f.template(COPY_TEMPLATE, Arrays.asList(setterName, getterName));
+        if (MutableBeanInterfaceGenerator.isOptionalPrimitive(relation)) {
+            // An unset value is not copied: it would become set in the copy
+            return _if(f, methodCall(f, f.variableReference(ORIGINAL), MutableBeanInterfaceGenerator.getHasValueName(relation)), copy);
+        }
+        return copy;
     }
 
-    private static <E> E deepCopyStatement(CodeFactory<E> f, Relation<?> relation) {
+    private static <E> E deepCopyStatement(CodeFactory<E> f, Relation<?> relation, @Nullable ClassModel facade) {
         String getterName = EntityRepresentationGenerator.getGetterName(relation);
         String setterName = EntityRepresentationGenerator.getSetterName(relation);
+        if (facade != null) {
+            return deepCopyStatement(f, f.classReference(facade), setterName, getterName);
+        }
+        return f.template(DEEP_COPY_TEMPLATE, Arrays.asList(setterName, getterName));
+    }
+
+    private static <E> E deepCopyStatement(CodeFactory<E> f, @Nullable E utilClass, String setterName, String getterName) {
         return methodCallStatement(f, f.variableReference(RESULT),
                                    setterName,
-                                   methodCall(f, null, DEEP_COPY,
+                                   methodCall(f, utilClass, DEEP_COPY,
                                               methodCall(f, f.variableReference(ORIGINAL), getterName))
         );
     }
@@ -190,24 +239,29 @@ public class BeanUtilGenerator {
     private static <E> E shallowCopyCollectionStatement(CodeFactory<E> f, Relation<?> relation) {
         String allAdderName = MutableBeanInterfaceGenerator.getAllElementAdderName(relation);
         String getterName = EntityRepresentationGenerator.getGetterName(relation);
-        return methodCallStatement(f, f.variableReference(RESULT), allAdderName,
-                                   methodCall(f, f.variableReference(ORIGINAL), getterName));
+        return f.template(COPY_TEMPLATE, Arrays.asList(allAdderName, getterName));
     }
 
-    private static <E> E deepCopyCollectionStatement(CodeFactory<E> f, Relation<?> relation, EntityRepresentationContext<ClassBean> context) {
+    private static <E> E deepCopyCollectionStatement(
+            CodeFactory<E> f,
+            Relation<?> relation,
+            EntityRepresentationContext<ClassBean> context,
+            @Nullable ClassModel facade
+    ) {
         TypeTransformer typeTransformer = new TypeTransformer(context);
         TypeData elementType = typeTransformer.targetToType(relation.getTarget(), Multiplicity.ONE);
         String getterName = EntityRepresentationGenerator.getGetterName(relation);
         return _for(f, elementType, LOOP_INDEX, methodCall(f, f.variableReference(ORIGINAL), getterName),
-                    copyCollectionElementStatement(f, relation)
+                    copyCollectionElementStatement(f, relation, facade)
         );
     }
 
-    private static <E> E copyCollectionElementStatement(CodeFactory<E> f, Relation<?> relation) {
+    private static <E> E copyCollectionElementStatement(CodeFactory<E> f, Relation<?> relation, @Nullable ClassModel facade) {
         String oneElementAdderName = MutableBeanInterfaceGenerator.getSingleElementAdderName(relation);
         if (relation.getTarget() instanceof Entity) {
+            E utilClass = facade != null ? f.classReference(facade) : null;
             return methodCallStatement(f, f.variableReference(RESULT), oneElementAdderName,
-                                            methodCall(f, null, DEEP_COPY, f.variableReference(LOOP_INDEX)));
+                                            methodCall(f, utilClass, DEEP_COPY, f.variableReference(LOOP_INDEX)));
         }
         else {
             return methodCallStatement(f, f.variableReference(RESULT), oneElementAdderName,
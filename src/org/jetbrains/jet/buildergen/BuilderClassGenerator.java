@@ -28,6 +28,7 @@ import org.jetbrains.jet.buildergen.entities.Relation;
 import org.jetbrains.jet.buildergen.java.ClassPrinter;
 import org.jetbrains.jet.buildergen.java.code.BinaryOperation;
 import org.jetbrains.jet.buildergen.java.code.CodeFactory;
+import org.jetbrains.jet.buildergen.java.code.CodeTemplate;
 import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
 import org.jetbrains.jet.buildergen.java.declarations.ClassKind;
 import org.jetbrains.jet.buildergen.java.declarations.MethodModel;
@@ -39,6 +40,7 @@ import org.jetbrains.jet.buildergen.java.types.TypeUtil;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static org.jetbrains.jet.buildergen.java.code.CodeUtil.*;
 import static org.jetbrains.jet.buildergen.java.types.TypeUtil._void;
@@ -159,9 +161,7 @@ public class BuilderClassGenerator extends EntityRepresentationGenerator {
                          @NotNull
                          @Override
                          public <E> E create(@NotNull CodeFactory<E> f) {
-                             return _if(f, delegateNullCheck(f),
-                                        f.statement(delegateCall(f, name, Collections.singletonList(f.variableReference(ENTITY))))
-                             );
+                             return f.template(DELEGATE_SETTER_TEMPLATE, Collections.singletonList(name));
                          }
                      })
                 .put(RELATION_FOR_METHOD, relation);
@@ -183,12 +183,7 @@ public class BuilderClassGenerator extends EntityRepresentationGenerator {
                          @NotNull
                          @Override
                          public <E> E create(@NotNull CodeFactory<E> f) {
-                             return block(f,
-                                          _if(f, delegateNullCheck(f),
-                                              f._return(delegateCall(f, name))
-                                          ),
-                                          f._throw(constructorCall(f, "java.lang", "IllegalStateException", f.string("No delegate")))
-                             );
+                             return f.template(DELEGATE_BUILDER_TEMPLATE, Collections.singletonList(name));
                          }
                      })
                 .put(RELATION_FOR_METHOD, relation);
@@ -204,9 +199,7 @@ public class BuilderClassGenerator extends EntityRepresentationGenerator {
                          @NotNull
                          @Override
                          public <E> E create(@NotNull CodeFactory<E> f) {
-                             return _if(f, delegateNullCheck(f),
-                                        f.statement(delegateCall(f, CLOSE))
-                             );
+                             return f.template(DELEGATE_CALL_TEMPLATE, Collections.singletonList(CLOSE));
                          }
                      });
     }
@@ -218,7 +211,7 @@ public class BuilderClassGenerator extends EntityRepresentationGenerator {
                 .setName(OPEN);
         for (Relation<?> relation : relations) {
             open.addParameter(new ParameterBean()
-                                      .setType(types.targetToType(relation.getTarget(), relation.getMultiplicity(), TypeTransformer.Variance.OUT))
+                                      .setType(types.relationToNullableType(relation, TypeTransformer.Variance.OUT))
                                       .setName(getParameterName(relation))
                                       .put(RELATION_FOR_PARAMETER, relation)
             );
@@ -240,6 +233,41 @@ public class BuilderClassGenerator extends EntityRepresentationGenerator {
         return open;
     }
 
+    private static final String METHOD = "method";
+
+    private static final CodeTemplate DELEGATE_CALL_TEMPLATE = new CodeTemplate(METHOD) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return _if(f, delegateNullCheck(f),
+                       f.statement(delegateCall(f, values.get(METHOD)))
+            );
+        }
+    };
+
+    private static final CodeTemplate DELEGATE_SETTER_TEMPLATE = new CodeTemplate(METHOD) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return _if(f, delegateNullCheck(f),
+                       f.statement(delegateCall(f, values.get(METHOD), Collections.singletonList(f.variableReference(ENTITY))))
+            );
+        }
+    };
+
+    private static final CodeTemplate DELEGATE_BUILDER_TEMPLATE = new CodeTemplate(METHOD) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return block(f,
+                         _if(f, delegateNullCheck(f),
+                             f._return(delegateCall(f, values.get(METHOD)))
+                         ),
+                         f._throw(constructorCall(f, "java.lang", "IllegalStateException", f.string("No delegate")))
+            );
+        }
+    };
+
     private static <E> E delegateCall(CodeFactory<E> f, String name) {
         return delegateCall(f, name, Collections.<E>emptyList());
     }
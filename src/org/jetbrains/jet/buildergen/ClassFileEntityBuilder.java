@@ -0,0 +1,674 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.*;
+import org.jetbrains.jet.buildergen.java.declarations.WildcardKind;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
+import org.jetbrains.jet.buildergen.java.types.TypeUtil;
+import org.jetbrains.jet.buildergen.runtime.Optional;
+import org.jetbrains.jet.buildergen.runtime.Reference;
+import org.jetbrains.jet.buildergen.runtime.Skip;
+import org.objectweb.asm.*;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Builds the same model as {@link EntityBuilder} from class files in directories and jars, which are read with ASM:
+ * no class is loaded or initialized. Non-entity targets are represented by {@link TypeNode}s.
+ *
+ * Entities are the public interfaces declared in the given packages (subpackages are not included)
+ * and the classes annotated with the marker annotation. Nested classes are never taken as entities.
+ *
+ * @author abreslav
+ */
+public class ClassFileEntityBuilder {
+
+    private static final String SKIP = Type.getDescriptor(Skip.class);
+    private static final String OPTIONAL = Type.getDescriptor(Optional.class);
+    private static final String REFERENCE = Type.getDescriptor(Reference.class);
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String COLLECTION = "java/util/Collection";
+    private static final String LIST = "java/util/List";
+    private static final String SET = "java/util/Set";
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    private static final Map<Character, TypeNode> PRIMITIVES = ImmutableMap.<Character, TypeNode>builder()
+            .put('B', TypeUtil.simpleType("", "byte"))
+            .put('S', TypeUtil.simpleType("", "short"))
+            .put('I', TypeUtil.simpleType("", "int"))
+            .put('J', TypeUtil.simpleType("", "long"))
+            .put('F', TypeUtil.simpleType("", "float"))
+            .put('D', TypeUtil.simpleType("", "double"))
+            .put('C', TypeUtil.simpleType("", "char"))
+            .put('Z', TypeUtil.simpleType("", "boolean"))
+            .build();
+
+    private final List<File> roots = Lists.newArrayList();
+    private final Set<String> packages = Sets.newLinkedHashSet();
+    private String markerAnnotation;
+
+    /**
+     * A directory with class files or a jar
+     */
+    @NotNull
+    public ClassFileEntityBuilder addRoot(@NotNull File root) {
+        roots.add(root);
+        return this;
+    }
+
+    @NotNull
+    public ClassFileEntityBuilder addPackage(@NotNull String packageFqName) {
+        packages.add(packageFqName);
+        return this;
+    }
+
+    @NotNull
+    public ClassFileEntityBuilder setMarkerAnnotation(@Nullable String annotationFqName) {
+        this.markerAnnotation = annotationFqName;
+        return this;
+    }
+
+    /**
+     * Entities are created in the order of their qualified names
+     */
+    public void classFilesToEntities(@NotNull EntityRepresentationContext<ClassBean> context) throws IOException {
+        Context c = new Context(roots);
+        try {
+            findEntityClasses(c);
+
+            createEmptyEntities(c, context);
+
+            for (EntityClass entityClass : c.getEntityClasses()) {
+
+                // Super entities
+                createSuperEntities(c, entityClass);
+
+                // Relations
+                createRelations(c, entityClass);
+            }
+        }
+        finally {
+            c.close();
+        }
+        EntityBuilder.bindOverriddenRelations(c.getEntities());
+
+        EntityBuilder.removeOverriddenRelations(c.getEntities());
+    }
+
+    /**
+     * A loader for the scanned classes: needed only if the classes themselves are to be inspected, e.g. by the bytecode backend
+     */
+    @NotNull
+    public ClassLoader createClassLoader(@NotNull ClassLoader parent) throws IOException {
+        URL[] urls = new URL[roots.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = roots.get(i).toURI().toURL();
+        }
+        return new URLClassLoader(urls, parent);
+    }
+
+    private void findEntityClasses(@NotNull Context c) throws IOException {
+        Map<String, EntityClass> found = Maps.newTreeMap();
+        for (File root : roots) {
+            if (root.isDirectory()) {
+                findInDirectory(found, root, "");
+            }
+            else {
+                ZipFile jar = c.getJar(root);
+                for (Enumeration<? extends ZipEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (!entry.isDirectory() && name.endsWith(CLASS_FILE_EXTENSION)
+                        && mayBeEntity(name.substring(0, name.length() - CLASS_FILE_EXTENSION.length()))) {
+                        addIfEntity(found, readFully(jar.getInputStream(entry)));
+                    }
+                }
+            }
+        }
+        c.entityClasses.putAll(found);
+    }
+
+    private void findInDirectory(@NotNull Map<String, EntityClass> found, @NotNull File directory, @NotNull String prefix)
+            throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                findInDirectory(found, file, prefix + name + "/");
+            }
+            else if (name.endsWith(CLASS_FILE_EXTENSION)
+                     && mayBeEntity(prefix + name.substring(0, name.length() - CLASS_FILE_EXTENSION.length()))) {
+                addIfEntity(found, FileUtil.loadFileBytes(file));
+            }
+        }
+    }
+
+    private boolean mayBeEntity(@NotNull String internalName) {
+        if (internalName.contains("$") || internalName.endsWith("package-info") || internalName.endsWith("module-info")) {
+            return false;
+        }
+        // Without a marker there is no need to read the classes outside the packages
+        return markerAnnotation != null || packages.contains(getPackageFqName(internalName));
+    }
+
+    private void addIfEntity(@NotNull Map<String, EntityClass> found, @NotNull byte[] classFile) {
+        EntityClass entityClass = new EntityClass();
+        new ClassReader(classFile).accept(new EntityClassReader(entityClass),
+                                          ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if ((entityClass.access & Opcodes.ACC_SYNTHETIC) != 0) return;
+
+        boolean marked = markerAnnotation != null && entityClass.annotations.contains("L" + markerAnnotation.replace('.', '/') + ";");
+        boolean inPackage = packages.contains(getPackageFqName(entityClass.name))
+                            && (entityClass.access & Opcodes.ACC_INTERFACE) != 0
+                            && (entityClass.access & Opcodes.ACC_PUBLIC) != 0;
+        if (marked || inPackage) {
+            found.put(entityClass.name, entityClass);
+        }
+    }
+
+    private static void createEmptyEntities(Context c, EntityRepresentationContext<ClassBean> context) {
+        for (EntityClass entityClass : c.getEntityClasses()) {
+            String name = getSimpleName(entityClass.name);
+            String packageName = getPackageFqName(entityClass.name);
+            EntityImpl entity = new EntityImpl(name);
+            entity.put(EntityBuilder.DATA_CLASS, new EntityBuilder.ClassName(packageName, name));
+            context.registerRepresentation(entity, new ClassBean().setPackageFqName(packageName).setName(name));
+            c.entities.put(entityClass.name, entity);
+        }
+    }
+
+    private static void createSuperEntities(Context c, EntityClass entityClass) {
+        Entity entity = c.safeGet(entityClass.name);
+        List<String> superClassifiers = Lists.newArrayList(entityClass.interfaces);
+        // The superclass of an interface is always Object, but reflection doesn't report it
+        if (entityClass.superName != null && (entityClass.access & Opcodes.ACC_INTERFACE) == 0) {
+            superClassifiers.add(entityClass.superName);
+        }
+
+        for (String classifier : superClassifiers) {
+            if (c.isEntityClass(classifier)) {
+                entity.getSuperEntities().add(c.safeGet(classifier));
+            }
+            else {
+                EntityBuilder.warning("Skipping supertype " + getSimpleName(classifier) + " of " + entityClass);
+            }
+        }
+    }
+
+    private static void createRelations(Context c, EntityClass entityClass) {
+        Entity entity = c.safeGet(entityClass.name);
+        for (MethodData method : entityClass.methods) {
+            if (method.annotations.contains(SKIP)
+                || (method.access & (Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE)) != 0
+                || method.name.startsWith("<")) {
+                continue;
+            }
+            String relationName;
+            String methodName = method.name;
+            if (methodName.startsWith("get")) {
+                relationName = methodName.substring(3);
+            }
+            else if (methodName.startsWith("is")) {
+                relationName = methodName.substring(2);
+            }
+            else {
+                EntityBuilder.warning("[Wrong prefix] Skipping method " + methodName + " of " + entityClass);
+                continue;
+            }
+            if (Type.getArgumentTypes(method.desc).length > 0) {
+                EntityBuilder.warning("[Wrong parameter count] Skipping method " + methodName + " of " + entityClass);
+                continue;
+            }
+            if (Type.getReturnType(method.desc) == Type.VOID_TYPE) {
+                EntityBuilder.warning("[Void return type] Skipping method " + methodName + " of " + entityClass);
+                continue;
+            }
+
+            RelationWithTarget<?> relation = createRelation(c, entityClass, method, relationName, getReturnType(method));
+            if (method.annotations.contains(REFERENCE)) {
+                relation.put(EntityBuilder.REFERENCE, true);
+            }
+            entity.getRelations().add(relation);
+        }
+    }
+
+    private static RelationWithTarget<?> createRelation(
+            Context c,
+            EntityClass entityClass,
+            MethodData method,
+            String relationName,
+            JvmType returnType
+    ) {
+        if (returnType.kind == 'L' && c.isEntityClass(returnType.name)) {
+            return new RelationWithTarget<Entity>(getMultiplicity(method), relationName, c.safeGet(returnType.name));
+        }
+        if (returnType.kind == 'L' && c.isSubclass(returnType.name, COLLECTION)) {
+            String methodText = entityClass.name.replace('/', '.') + "." + method.name + "()";
+            if (returnType.arguments.isEmpty()) {
+                EntityBuilder.warning("Collection return type is not parameterized in " + methodText);
+                return createRelationToJavaType(method, relationName, returnType);
+            }
+            if (returnType.arguments.size() != 1) {
+                EntityBuilder.warning("Unsupported number of type arguments for collection in " + methodText);
+                return createRelationToJavaType(method, relationName, returnType);
+            }
+            String elementClass = getClassFromType(returnType.arguments.get(0));
+            if (c.isEntityClass(elementClass)) {
+                return new RelationWithTarget<Entity>(getMultiplicityFromCollectionType(c, returnType.name),
+                                                      relationName, c.safeGet(elementClass));
+            }
+            return new RelationWithTarget<TypeNode>(getMultiplicityFromCollectionType(c, returnType.name),
+                                                    relationName, classToType(elementClass));
+        }
+        return createRelationToJavaType(method, relationName, returnType);
+    }
+
+    @NotNull
+    private static String getClassFromType(@NotNull JvmType typeArgument) {
+        if (typeArgument.wildcard == SignatureVisitor.SUPER || typeArgument.wildcard == '*') {
+            return OBJECT;
+        }
+        if (typeArgument.kind != 'L') {
+            throw new IllegalArgumentException("Unsupported type: " + typeArgument);
+        }
+        return typeArgument.name;
+    }
+
+    private static Multiplicity getMultiplicityFromCollectionType(Context c, String internalName) {
+        if (c.isSubclass(internalName, LIST)) {
+            return Multiplicity.LIST;
+        }
+        if (c.isSubclass(internalName, SET)) {
+            return Multiplicity.SET;
+        }
+        return Multiplicity.COLLECTION;
+    }
+
+    private static RelationWithTarget<TypeNode> createRelationToJavaType(MethodData method, String relationName, JvmType type) {
+        TypeNode primitive = PRIMITIVES.get(type.kind);
+        return new RelationWithTarget<TypeNode>(getMultiplicity(method), relationName, primitive == null ? toTypeNode(type) : primitive);
+    }
+
+    private static Multiplicity getMultiplicity(MethodData method) {
+        return method.annotations.contains(OPTIONAL) ? Multiplicity.ZERO_OR_ONE : Multiplicity.ONE;
+    }
+
+    @NotNull
+    private static JvmType getReturnType(@NotNull MethodData method) {
+        final JvmType returnType = new JvmType(SignatureVisitor.INSTANCEOF);
+        if (method.signature != null) {
+            new SignatureReader(method.signature).accept(new SignatureVisitor(Opcodes.ASM9) {
+                @Override
+                public SignatureVisitor visitReturnType() {
+                    return new JvmTypeReader(returnType);
+                }
+            });
+        }
+        else {
+            new SignatureReader(Type.getReturnType(method.desc).getDescriptor()).acceptType(new JvmTypeReader(returnType));
+        }
+        return returnType;
+    }
+
+    @NotNull
+    private static TypeNode toTypeNode(@NotNull JvmType type) {
+        if (type.kind != 'L') {
+            throw new IllegalArgumentException("Unsupported type: " + type);
+        }
+        List<TypeNode> arguments = Lists.newArrayList();
+        for (JvmType argument : type.arguments) {
+            switch (argument.wildcard) {
+                case '*':
+                    arguments.add(TypeNode.wildcard(WildcardKind.BARE, null));
+                    break;
+                case SignatureVisitor.EXTENDS:
+                    arguments.add(TypeNode.wildcard(WildcardKind.EXTENDS, toTypeNode(argument)));
+                    break;
+                case SignatureVisitor.SUPER:
+                    arguments.add(TypeNode.wildcard(WildcardKind.SUPER, toTypeNode(argument)));
+                    break;
+                default:
+                    arguments.add(toTypeNode(argument));
+            }
+        }
+        return TypeNode.constructed(getPackageFqName(type.name), getNameWithEnclosingClasses(type.name), arguments);
+    }
+
+    @NotNull
+    private static TypeNode classToType(@NotNull String internalName) {
+        return TypeNode.constructed(getPackageFqName(internalName), getNameWithEnclosingClasses(internalName));
+    }
+
+    @NotNull
+    private static String getPackageFqName(@NotNull String internalName) {
+        int index = internalName.lastIndexOf('/');
+        return index < 0 ? "" : internalName.substring(0, index).replace('/', '.');
+    }
+
+    // Class files don't tell nested classes from names with '$' without reading the InnerClasses attribute
+    @NotNull
+    private static String getNameWithEnclosingClasses(@NotNull String internalName) {
+        return internalName.substring(internalName.lastIndexOf('/') + 1).replace('$', '.');
+    }
+
+    @NotNull
+    private static String getSimpleName(@NotNull String internalName) {
+        String name = getNameWithEnclosingClasses(internalName);
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    @NotNull
+    private static byte[] readFully(@NotNull InputStream stream) throws IOException {
+        try {
+            return FileUtil.loadBytes(stream);
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    private static class EntityClass {
+        private int access;
+        private String name;
+        private String superName;
+        private List<String> interfaces;
+        private final Set<String> annotations = Sets.newHashSet();
+        private final List<MethodData> methods = Lists.newArrayList();
+
+        // The way reflection prints classes
+        @Override
+        public String toString() {
+            return ((access & Opcodes.ACC_INTERFACE) != 0 ? "interface " : "class ") + name.replace('/', '.');
+        }
+    }
+
+    private static class MethodData {
+        private final int access;
+        private final String name;
+        private final String desc;
+        private final String signature;
+        // Descriptors of the annotations, retained or not
+        private final Set<String> annotations = Sets.newHashSet();
+
+        private MethodData(int access, @NotNull String name, @NotNull String desc, @Nullable String signature) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+            this.signature = signature;
+        }
+    }
+
+    private static class EntityClassReader extends ClassVisitor {
+        private final EntityClass entityClass;
+
+        private EntityClassReader(@NotNull EntityClass entityClass) {
+            super(Opcodes.ASM9);
+            this.entityClass = entityClass;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            entityClass.access = access;
+            entityClass.name = name;
+            entityClass.superName = superName;
+            entityClass.interfaces = interfaces == null ? Collections.<String>emptyList() : Arrays.asList(interfaces);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            entityClass.annotations.add(desc);
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            final MethodData method = new MethodData(access, name, desc, signature);
+            entityClass.methods.add(method);
+            return new MethodVisitor(Opcodes.ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    method.annotations.add(desc);
+                    return null;
+                }
+            };
+        }
+    }
+
+    /**
+     * A type from a generic signature or a descriptor
+     */
+    private static class JvmType {
+        // 'L' for classes, 'T' for type variables, '[' for arrays, descriptors of primitive types
+        private char kind;
+        // Internal name of a class or the name of a type variable
+        private String name;
+        // Type arguments of a class or the component type of an array
+        private final List<JvmType> arguments = Lists.newArrayList();
+        // How this type is used as a type argument: '=', '+', '-', or '*' for an unbounded wildcard (nothing else is set then)
+        private final char wildcard;
+
+        private JvmType(char wildcard) {
+            this.wildcard = wildcard;
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case 'L':
+                    return name.replace('/', '.') + (arguments.isEmpty() ? "" : "<...>");
+                case 'T':
+                    return name;
+                case '[':
+                    return arguments.get(0) + "[]";
+                default:
+                    return wildcard == '*' ? "?" : String.valueOf(kind);
+            }
+        }
+    }
+
+    private static class JvmTypeReader extends SignatureVisitor {
+        private final JvmType type;
+
+        private JvmTypeReader(@NotNull JvmType type) {
+            super(Opcodes.ASM9);
+            this.type = type;
+        }
+
+        @Override
+        public void visitBaseType(char descriptor) {
+            type.kind = descriptor;
+        }
+
+        @Override
+        public void visitTypeVariable(String name) {
+            type.kind = 'T';
+            type.name = name;
+        }
+
+        @Override
+        public SignatureVisitor visitArrayType() {
+            type.kind = '[';
+            JvmType componentType = new JvmType(SignatureVisitor.INSTANCEOF);
+            type.arguments.add(componentType);
+            return new JvmTypeReader(componentType);
+        }
+
+        @Override
+        public void visitClassType(String name) {
+            type.kind = 'L';
+            type.name = name;
+        }
+
+        @Override
+        public void visitInnerClassType(String name) {
+            // Type arguments of the outer class are dropped
+            type.name += "$" + name;
+            type.arguments.clear();
+        }
+
+        @Override
+        public void visitTypeArgument() {
+            type.arguments.add(new JvmType('*'));
+        }
+
+        @Override
+        public SignatureVisitor visitTypeArgument(char wildcard) {
+            JvmType argument = new JvmType(wildcard);
+            type.arguments.add(argument);
+            return new JvmTypeReader(argument);
+        }
+    }
+
+    private static class ClassHeader {
+        private final String superName;
+        private final String[] interfaces;
+
+        private ClassHeader(@Nullable String superName, @NotNull String[] interfaces) {
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+    }
+
+    private static class Context {
+        private final List<File> roots;
+        private final Map<File, ZipFile> jars = Maps.newHashMap();
+
+        private final Map<String, EntityClass> entityClasses = Maps.newLinkedHashMap();
+        private final Map<String, Entity> entities = Maps.newLinkedHashMap();
+
+        // Supertypes of the classes met in the signatures, null values for classes that were not found
+        private final Map<String, ClassHeader> headers = Maps.newHashMap();
+
+        public Context(@NotNull List<File> roots) {
+            this.roots = roots;
+        }
+
+        @NotNull
+        public Entity safeGet(@NotNull String internalName) {
+            Entity entity = entities.get(internalName);
+            if (entity == null) {
+                throw new IllegalStateException("Entity must have been created already: " + internalName);
+            }
+            return entity;
+        }
+
+        public boolean isEntityClass(@NotNull String internalName) {
+            return entityClasses.containsKey(internalName);
+        }
+
+        public boolean isSubclass(@NotNull String internalName, @NotNull String superName) {
+            if (internalName.equals(superName)) return true;
+            ClassHeader header = getHeader(internalName);
+            if (header == null) return false;
+            if (header.superName != null && isSubclass(header.superName, superName)) return true;
+            for (String anInterface : header.interfaces) {
+                if (isSubclass(anInterface, superName)) return true;
+            }
+            return false;
+        }
+
+        @Nullable
+        private ClassHeader getHeader(@NotNull String internalName) {
+            if (headers.containsKey(internalName)) {
+                return headers.get(internalName);
+            }
+            ClassHeader header = null;
+            try {
+                byte[] classFile = findClassFile(internalName);
+                if (classFile != null) {
+                    ClassReader reader = new ClassReader(classFile);
+                    header = new ClassHeader(reader.getSuperName(), reader.getInterfaces());
+                }
+            }
+            catch (IOException e) {
+                EntityBuilder.warning("Can't read class " + internalName + ": " + e.getMessage());
+            }
+            headers.put(internalName, header);
+            return header;
+        }
+
+        // Classes outside the roots (e.g. the JDK) are read as resources of the class path
+        @Nullable
+        private byte[] findClassFile(@NotNull String internalName) throws IOException {
+            String path = internalName + CLASS_FILE_EXTENSION;
+            for (File root : roots) {
+                if (root.isDirectory()) {
+                    File file = new File(root, path);
+                    if (file.isFile()) {
+                        return FileUtil.loadFileBytes(file);
+                    }
+                }
+                else {
+                    ZipFile jar = getJar(root);
+                    ZipEntry entry = jar.getEntry(path);
+                    if (entry != null) {
+                        return readFully(jar.getInputStream(entry));
+                    }
+                }
+            }
+            InputStream stream = ClassLoader.getSystemResourceAsStream(path);
+            return stream == null ? null : readFully(stream);
+        }
+
+        @NotNull
+        public ZipFile getJar(@NotNull File root) throws IOException {
+            ZipFile jar = jars.get(root);
+            if (jar == null) {
+                jar = new ZipFile(root);
+                jars.put(root, jar);
+            }
+            return jar;
+        }
+
+        public void close() throws IOException {
+            for (ZipFile jar : jars.values()) {
+                jar.close();
+            }
+        }
+
+        @NotNull
+        public Collection<EntityClass> getEntityClasses() {
+            return entityClasses.values();
+        }
+
+        @NotNull
+        public Collection<Entity> getEntities() {
+            return entities.values();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.ImmutableMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Class files produced in memory, keyed by binary class names
+ *
+ * @author abreslav
+ */
+public class CompiledClasses {
+    private final Map<String, byte[]> classFiles;
+
+    public CompiledClasses(@NotNull Map<String, byte[]> classFiles) {
+        this.classFiles = ImmutableMap.copyOf(classFiles);
+    }
+
+    @NotNull
+    public Map<String, byte[]> getClassFiles() {
+        return classFiles;
+    }
+
+    @NotNull
+    public ClassLoader createClassLoader(@NotNull ClassLoader parent) {
+        return new GeneratedClassLoader(parent, classFiles);
+    }
+
+    public void writeJar(@NotNull File jarFile) throws IOException {
+        OutputStream stream = new FileOutputStream(jarFile);
+        try {
+            writeJar(stream);
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    public void writeJar(@NotNull OutputStream stream) throws IOException {
+        JarOutputStream jar = new JarOutputStream(stream);
+        // Sorted, so that the same classes give the same jar
+        for (Map.Entry<String, byte[]> entry : new TreeMap<String, byte[]>(classFiles).entrySet()) {
+            JarEntry jarEntry = new JarEntry(entry.getKey().replace('.', '/') + ".class");
+            jarEntry.setTime(0);
+            jar.putNextEntry(jarEntry);
+            jar.write(entry.getValue());
+            jar.closeEntry();
+        }
+        jar.finish();
+    }
+}
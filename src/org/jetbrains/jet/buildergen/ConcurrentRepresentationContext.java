@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.buildergen.entities.Entity;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe representation context: lookups may happen concurrently with registrations,
+ * and entities are always reported in the order they were first registered in.
+ *
+ * @author abreslav
+ */
+public class ConcurrentRepresentationContext<R> implements EntityRepresentationContext<R> {
+    private final ConcurrentMap<Entity, R> map = new ConcurrentHashMap<Entity, R>();
+    private final List<Entity> entities = Lists.newArrayList();
+
+    @Override
+    public void registerRepresentation(@NotNull Entity entity, @NotNull R representation) {
+        if (map.put(entity, representation) == null) {
+            synchronized (entities) {
+                entities.add(entity);
+            }
+        }
+    }
+
+    @Override
+    public R getRepresentation(@NotNull Entity entity) {
+        return map.get(entity);
+    }
+
+    @NotNull
+    @Override
+    public Collection<Entity> getEntities() {
+        return getEntityList();
+    }
+
+    @NotNull
+    @Override
+    public Collection<R> getRepresentations() {
+        return Lists.transform(getEntityList(), new Function<Entity, R>() {
+            @Override
+            public R apply(Entity entity) {
+                return map.get(entity);
+            }
+        });
+    }
+
+    @NotNull
+    private List<Entity> getEntityList() {
+        synchronized (entities) {
+            return ImmutableList.copyOf(entities);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.jetbrains.jet.buildergen;
 
 import com.google.common.collect.Lists;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jet.buildergen.entities.Entity;
 import org.jetbrains.jet.buildergen.entities.EntityUtil;
 import org.jetbrains.jet.buildergen.entities.Relation;
@@ -54,19 +55,33 @@ public class DataBuilderGenerator {
             String className,
             EntityRepresentationContext<ClassBean> beans,
             EntityRepresentationContext<ClassBean> builders
+    ) {
+        return generate(packageName, className, beans, builders, null);
+    }
+
+    /**
+     * @param facade if the util class is a shard, other entities are built through the facade
+     */
+    public static ClassModel generate(
+            String packageName,
+            String className,
+            EntityRepresentationContext<ClassBean> beans,
+            EntityRepresentationContext<ClassBean> builders,
+            @Nullable ClassModel facade
     ) {
         ClassBean utilClass = new ClassBean()
                 .setVisibility(Visibility.PUBLIC)
                 .setKind(ClassKind.CLASS)
                 .setPackageFqName(packageName)
                 .setName(className);
-        utilClass.getMethods().addAll(generateBeanToBuilderMethods(beans, builders));
+        utilClass.getMethods().addAll(generateBeanToBuilderMethods(beans, builders, facade));
         return utilClass;
     }
 
     private static Collection<MethodBean> generateBeanToBuilderMethods(
             final EntityRepresentationContext<ClassBean> beans,
-            final EntityRepresentationContext<ClassBean> builders
+            final EntityRepresentationContext<ClassBean> builders,
+            @Nullable final ClassModel facade
     ) {
         Collection<MethodBean> result = Lists.newArrayList();
         for (final Entity entity : beans.getEntities()) {
@@ -91,7 +106,7 @@ public class DataBuilderGenerator {
                                                        if (!relation.getMultiplicity().isCollection()) {
                                                            // buildSubEntity(entity.getSubEntity(), builder.addSubEntity())
                                                            statement =
-                                                                   buildEntityStatement(f, relation, getterCall(f, relation), subEntity);
+                                                                   buildEntityStatement(f, relation, getterCall(f, relation), subEntity, facade);
                                                        }
                                                        else {
                                                            ClassBean subEntityClass = beans.getRepresentation(subEntity);
@@ -101,7 +116,7 @@ public class DataBuilderGenerator {
                                                            // }
                                                            statement = _for(f, subEntityType, ITEM, getterCall(f, relation),
                                                                             buildEntityStatement(f, relation, f.variableReference(ITEM),
-                                                                                                 subEntity)
+                                                                                                 subEntity, facade)
                                                            );
                                                        }
                                                        statements.add(statement);
@@ -152,7 +167,13 @@ public class DataBuilderGenerator {
         return "build" + entity.getName();
     }
 
-    private static <E> E buildEntityStatement(CodeFactory<E> f, Relation<?> relation, E sourceExpression, Entity target) {
+    private static <E> E buildEntityStatement(
+            CodeFactory<E> f,
+            Relation<?> relation,
+            E sourceExpression,
+            Entity target,
+            @Nullable ClassModel facade
+    ) {
         if (relation.getData(EntityBuilder.REFERENCE) == Boolean.TRUE) {
             // builder.setTargetEntity(source)
             return f.statement(
@@ -162,7 +183,7 @@ public class DataBuilderGenerator {
         else {
             // buildEntity(source), builder.addTargetEntity())
             return f.statement(
-                    methodCall(f, null, getBuilderMethodName(target),
+                    methodCall(f, facade != null ? f.classReference(facade) : null, getBuilderMethodName(target),
                                sourceExpression,
                                methodCall(f, builder(f), BuilderClassGenerator.getBuilderMethodName(relation))
                     )
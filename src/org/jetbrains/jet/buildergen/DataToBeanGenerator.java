@@ -18,6 +18,7 @@ package org.jetbrains.jet.buildergen;
 
 import com.google.common.collect.Lists;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jet.buildergen.entities.Entity;
 import org.jetbrains.jet.buildergen.entities.EntityUtil;
 import org.jetbrains.jet.buildergen.entities.Multiplicity;
@@ -54,19 +55,33 @@ public class DataToBeanGenerator {
             String className,
             EntityRepresentationContext<ClassBean> interfaces,
             EntityRepresentationContext<ClassBean> implementations
+    ) {
+        return generate(packageName, className, interfaces, implementations, null);
+    }
+
+    /**
+     * @param facade if the util class is a shard, other entities are converted through the facade
+     */
+    public static ClassModel generate(
+            String packageName,
+            String className,
+            EntityRepresentationContext<ClassBean> interfaces,
+            EntityRepresentationContext<ClassBean> implementations,
+            @Nullable ClassModel facade
     ) {
         ClassBean utilClass = new ClassBean()
                 .setVisibility(Visibility.PUBLIC)
                 .setKind(ClassKind.CLASS)
                 .setPackageFqName(packageName)
                 .setName(className);
-        utilClass.getMethods().addAll(generateDeepCopyMethods(interfaces, implementations));
+        utilClass.getMethods().addAll(generateDeepCopyMethods(interfaces, implementations, facade));
         return utilClass;
     }
 
     private static Collection<MethodBean> generateDeepCopyMethods(
             final EntityRepresentationContext<ClassBean> interfaces,
-            final EntityRepresentationContext<ClassBean> implementations
+            final EntityRepresentationContext<ClassBean> implementations,
+            @Nullable final ClassModel facade
     ) {
         Collection<MethodBean> result = Lists.newArrayList();
         for (final Entity entity : interfaces.getEntities()) {
@@ -99,14 +114,14 @@ public class DataToBeanGenerator {
                                                    E statement;
                                                    if (!relation.getMultiplicity().isCollection()) {
                                                        if (relation.getTarget() instanceof Entity) {
-                                                           statement = deepCopyStatement(f, relation);
+                                                           statement = deepCopyStatement(f, relation, facade);
                                                        }
                                                        else {
                                                            statement = directCopyStatement(f, relation);
                                                        }
                                                    }
                                                    else {
-                                                       statement = deepCopyCollectionStatement(f, relation, interfaces);
+                                                       statement = deepCopyCollectionStatement(f, relation, interfaces, facade);
                                                    }
                                                    statements.add(statement);
                                                }
@@ -133,17 +148,22 @@ public class DataToBeanGenerator {
                                    methodCall(f, f.variableReference(ORIGINAL), getterName));
     }
 
-    private static <E> E deepCopyStatement(CodeFactory<E> f, Relation<?> relation) {
+    private static <E> E deepCopyStatement(CodeFactory<E> f, Relation<?> relation, @Nullable ClassModel facade) {
         String getterName = EntityRepresentationGenerator.getGetterName(relation);
         String setterName = EntityRepresentationGenerator.getSetterName(relation);
         return methodCallStatement(f, f.variableReference(RESULT),
                                    setterName,
-                                   methodCall(f, null, DATA_TO_BEAN,
+                                   methodCall(f, utilClass(f, facade), DATA_TO_BEAN,
                                               methodCall(f, f.variableReference(ORIGINAL), getterName))
         );
     }
 
-    private static <E> E deepCopyCollectionStatement(CodeFactory<E> f, Relation<?> relation, EntityRepresentationContext<ClassBean> context) {
+    private static <E> E deepCopyCollectionStatement(
+            CodeFactory<E> f,
+            Relation<?> relation,
+            EntityRepresentationContext<ClassBean> context,
+            @Nullable ClassModel facade
+    ) {
         TypeData elementType;
         Object target = relation.getTarget();
         if (target instanceof Entity) {
@@ -155,19 +175,24 @@ public class DataToBeanGenerator {
         }
         String getterName = EntityRepresentationGenerator.getGetterName(relation);
         return _for(f, elementType, LOOP_INDEX, methodCall(f, f.variableReference(ORIGINAL), getterName),
-                    copyCollectionElementStatement(f, relation)
+                    copyCollectionElementStatement(f, relation, facade)
         );
     }
 
-    private static <E> E copyCollectionElementStatement(CodeFactory<E> f, Relation<?> relation) {
+    private static <E> E copyCollectionElementStatement(CodeFactory<E> f, Relation<?> relation, @Nullable ClassModel facade) {
         String oneElementAdderName = MutableBeanInterfaceGenerator.getSingleElementAdderName(relation);
         if (relation.getTarget() instanceof Entity) {
             return methodCallStatement(f, f.variableReference(RESULT), oneElementAdderName,
-                                            methodCall(f, null, DATA_TO_BEAN, f.variableReference(LOOP_INDEX)));
+                                            methodCall(f, utilClass(f, facade), DATA_TO_BEAN, f.variableReference(LOOP_INDEX)));
         }
         else {
             return methodCallStatement(f, f.variableReference(RESULT), oneElementAdderName,
                                             f.variableReference(LOOP_INDEX));
         }
     }
+
+    @Nullable
+    private static <E> E utilClass(CodeFactory<E> f, @Nullable ClassModel facade) {
+        return facade != null ? f.classReference(facade) : null;
+    }
 }
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.buildergen.entities.*;
+import org.jetbrains.jet.buildergen.java.declarations.WildcardKind;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
+import org.jetbrains.jet.buildergen.runtime.Optional;
+import org.jetbrains.jet.buildergen.runtime.Reference;
+import org.jetbrains.jet.buildergen.runtime.Skip;
+
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the same model as {@link EntityBuilder}, but from source elements, so that entity classes don't need to be loaded.
+ * Non-entity targets are represented by {@link TypeNode}s.
+ *
+ * @author abreslav
+ */
+public class ElementEntityBuilder {
+
+    public static void typeElementsToEntities(
+            @NotNull Collection<? extends TypeElement> entityElements,
+            @NotNull EntityRepresentationContext<ClassBean> context,
+            @NotNull ProcessingEnvironment environment
+    ) {
+        Context c = new Context(entityElements, environment);
+
+        createEmptyEntities(c, context);
+
+        for (TypeElement entityElement : c.getEntityElements()) {
+
+            // Super entities
+            createSuperEntities(c, entityElement);
+
+            // Relations
+            createRelations(c, entityElement);
+        }
+        EntityBuilder.bindOverriddenRelations(c.getEntities());
+
+        EntityBuilder.removeOverriddenRelations(c.getEntities());
+    }
+
+    private static void createEmptyEntities(Context c, EntityRepresentationContext<ClassBean> context) {
+        for (TypeElement entityElement : c.entityElements) {
+            String name = entityElement.getSimpleName().toString();
+            String packageName = c.elements.getPackageOf(entityElement).getQualifiedName().toString();
+            EntityImpl entity = new EntityImpl(name);
+            entity.put(EntityBuilder.DATA_CLASS, new EntityBuilder.ClassName(packageName, name));
+            context.registerRepresentation(entity, new ClassBean().setPackageFqName(packageName).setName(name));
+            c.entities.put(entityElement, entity);
+        }
+    }
+
+    private static void createSuperEntities(Context c, TypeElement entityElement) {
+        Entity entity = c.safeGet(entityElement);
+        List<TypeMirror> superClassifiers = Lists.<TypeMirror>newArrayList(entityElement.getInterfaces());
+        TypeMirror superclass = entityElement.getSuperclass();
+        if (superclass.getKind() != TypeKind.NONE) {
+            superClassifiers.add(superclass);
+        }
+
+        for (TypeMirror classifier : superClassifiers) {
+            TypeElement classifierElement = asTypeElement(c, classifier);
+            if (classifierElement != null && c.isEntityElement(classifierElement)) {
+                entity.getSuperEntities().add(c.safeGet(classifierElement));
+            }
+            else {
+                c.warning("Skipping supertype " + classifier + " of " + entityElement, entityElement);
+            }
+        }
+    }
+
+    private static void createRelations(Context c, TypeElement entityElement) {
+        Entity entity = c.safeGet(entityElement);
+        for (ExecutableElement method : ElementFilter.methodsIn(entityElement.getEnclosedElements())) {
+            if (method.getAnnotation(Skip.class) != null || method.getModifiers().contains(Modifier.STATIC)) {
+                continue;
+            }
+            String relationName;
+            String methodName = method.getSimpleName().toString();
+            if (methodName.startsWith("get")) {
+                relationName = methodName.substring(3);
+            }
+            else if (methodName.startsWith("is")) {
+                relationName = methodName.substring(2);
+            }
+            else {
+                c.warning("[Wrong prefix] Skipping method " + methodName + " of " + entityElement, method);
+                continue;
+            }
+            if (!method.getParameters().isEmpty()) {
+                c.warning("[Wrong parameter count] Skipping method " + methodName + " of " + entityElement, method);
+                continue;
+            }
+            TypeMirror returnType = method.getReturnType();
+            if (returnType.getKind() == TypeKind.VOID) {
+                c.warning("[Void return type] Skipping method " + methodName + " of " + entityElement, method);
+                continue;
+            }
+
+            RelationWithTarget<?> relation = createRelation(c, method, relationName, returnType);
+            if (method.getAnnotation(Reference.class) != null) {
+                relation.put(EntityBuilder.REFERENCE, true);
+            }
+            entity.getRelations().add(relation);
+        }
+    }
+
+    private static RelationWithTarget<?> createRelation(Context c, ExecutableElement method, String relationName, TypeMirror returnType) {
+        TypeElement returnElement = asTypeElement(c, returnType);
+        if (returnElement != null && c.isEntityElement(returnElement)) {
+            return new RelationWithTarget<Entity>(getMultiplicity(method), relationName, c.safeGet(returnElement));
+        }
+        if (returnElement != null && c.isSubclass(returnType, c.collectionElement)) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) returnType).getTypeArguments();
+            if (arguments.isEmpty()) {
+                c.warning("Collection return type is not parameterized in " + method, method);
+                return createRelationToJavaType(c, method, relationName, returnType);
+            }
+            if (arguments.size() != 1) {
+                c.warning("Unsupported number of type arguments for collection in " + method, method);
+                return createRelationToJavaType(c, method, relationName, returnType);
+            }
+            TypeElement elementClass = getClassFromType(c, arguments.get(0));
+            if (c.isEntityElement(elementClass)) {
+                return new RelationWithTarget<Entity>(getMultiplicityFromCollectionType(c, returnType),
+                                                      relationName, c.safeGet(elementClass));
+            }
+            return new RelationWithTarget<TypeData>(getMultiplicityFromCollectionType(c, returnType),
+                                                    relationName, elementToType(elementClass));
+        }
+        return createRelationToJavaType(c, method, relationName, returnType);
+    }
+
+    private static TypeElement getClassFromType(Context c, TypeMirror type) {
+        if (type.getKind() == TypeKind.WILDCARD) {
+            TypeMirror bound = ((WildcardType) type).getExtendsBound();
+            return bound == null ? c.elements.getTypeElement(Object.class.getName()) : getClassFromType(c, bound);
+        }
+        TypeElement element = asTypeElement(c, type);
+        if (element == null) {
+            throw new IllegalArgumentException("Unsupported type: " + type);
+        }
+        return element;
+    }
+
+    private static Multiplicity getMultiplicityFromCollectionType(Context c, TypeMirror type) {
+        if (c.isSubclass(type, c.listElement)) {
+            return Multiplicity.LIST;
+        }
+        if (c.isSubclass(type, c.setElement)) {
+            return Multiplicity.SET;
+        }
+        return Multiplicity.COLLECTION;
+    }
+
+    private static RelationWithTarget<TypeData> createRelationToJavaType(Context c, ExecutableElement method, String relationName, TypeMirror type) {
+        TypeData target = type.getKind().isPrimitive() ? TypeNode.constructed("", type.getKind().name().toLowerCase()) : mirrorToType(type);
+        return new RelationWithTarget<TypeData>(getMultiplicity(method), relationName, target);
+    }
+
+    private static Multiplicity getMultiplicity(ExecutableElement method) {
+        Optional optional = method.getAnnotation(Optional.class);
+        return optional == null ? Multiplicity.ONE : Multiplicity.ZERO_OR_ONE;
+    }
+
+    @NotNull
+    private static TypeNode mirrorToType(@NotNull TypeMirror type) {
+        switch (type.getKind()) {
+            case DECLARED:
+                DeclaredType declaredType = (DeclaredType) type;
+                List<TypeNode> arguments = Lists.newArrayList();
+                for (TypeMirror argument : declaredType.getTypeArguments()) {
+                    arguments.add(mirrorToType(argument));
+                }
+                TypeElement element = (TypeElement) declaredType.asElement();
+                return TypeNode.constructed(getPackageName(element), getNameWithEnclosingClasses(element), arguments);
+            case WILDCARD:
+                WildcardType wildcardType = (WildcardType) type;
+                if (wildcardType.getExtendsBound() != null) {
+                    return TypeNode.wildcard(WildcardKind.EXTENDS, mirrorToType(wildcardType.getExtendsBound()));
+                }
+                if (wildcardType.getSuperBound() != null) {
+                    return TypeNode.wildcard(WildcardKind.SUPER, mirrorToType(wildcardType.getSuperBound()));
+                }
+                return TypeNode.wildcard(WildcardKind.BARE, null);
+        }
+        throw new IllegalArgumentException("Unsupported type: " + type);
+    }
+
+    @NotNull
+    private static TypeNode elementToType(@NotNull TypeElement element) {
+        return TypeNode.constructed(getPackageName(element), getNameWithEnclosingClasses(element));
+    }
+
+    private static String getPackageName(TypeElement element) {
+        Element current = element;
+        while (current.getKind() != ElementKind.PACKAGE) {
+            current = current.getEnclosingElement();
+        }
+        return ((PackageElement) current).getQualifiedName().toString();
+    }
+
+    private static String getNameWithEnclosingClasses(TypeElement element) {
+        List<String> names = Lists.newArrayList();
+        Element current = element;
+        while (current instanceof TypeElement) {
+            names.add(0, current.getSimpleName().toString());
+            current = current.getEnclosingElement();
+        }
+        return StringUtil.join(names, ".");
+    }
+
+    private static TypeElement asTypeElement(Context c, TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) return null;
+        Element element = c.types.asElement(type);
+        return element instanceof TypeElement ? (TypeElement) element : null;
+    }
+
+    private static class Context {
+        private final Set<TypeElement> entityElements;
+        private final Map<TypeElement, Entity> entities = Maps.newLinkedHashMap();
+
+        private final Elements elements;
+        private final Types types;
+        private final Messager messager;
+
+        private final TypeElement collectionElement;
+        private final TypeElement listElement;
+        private final TypeElement setElement;
+
+        public Context(@NotNull Collection<? extends TypeElement> entityElements, @NotNull ProcessingEnvironment environment) {
+            this.entityElements = Sets.newLinkedHashSet(entityElements);
+            this.elements = environment.getElementUtils();
+            this.types = environment.getTypeUtils();
+            this.messager = environment.getMessager();
+            this.collectionElement = elements.getTypeElement(Collection.class.getName());
+            this.listElement = elements.getTypeElement(List.class.getName());
+            this.setElement = elements.getTypeElement(Set.class.getName());
+        }
+
+        @NotNull
+        public Entity safeGet(@NotNull TypeElement entityElement) {
+            Entity entity = entities.get(entityElement);
+            if (entity == null) {
+                throw new IllegalStateException("Entity must have been created already: " + entityElement);
+            }
+            return entity;
+        }
+
+        public boolean isEntityElement(@NotNull TypeElement element) {
+            return entityElements.contains(element);
+        }
+
+        public boolean isSubclass(@NotNull TypeMirror type, @NotNull TypeElement superClass) {
+            return types.isSubtype(types.erasure(type), types.erasure(superClass.asType()));
+        }
+
+        @NotNull
+        public Iterable<TypeElement> getEntityElements() {
+            return entityElements;
+        }
+
+        @NotNull
+        public Collection<Entity> getEntities() {
+            return entities.values();
+        }
+
+        public void warning(@NotNull String message, @NotNull Element element) {
+            messager.printMessage(Diagnostic.Kind.WARNING, message, element);
+        }
+    }
+}
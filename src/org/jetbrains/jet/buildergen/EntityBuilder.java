@@ -44,17 +44,6 @@ public class EntityBuilder {
     public static final DataHolderKey<Entity, ClassName> DATA_CLASS = DataHolderKeyImpl.create("DATA_CLASS");
     public static final DataHolderKey<Relation<?>, Boolean> REFERENCE = DataHolderKeyImpl.create("REFERENCE");
 
-    private static final Map<Type, Class<?>> PRIMITIVE_TO_BOXED = ImmutableMap.<Type, Class<?>>builder()
-            .put(byte.class, Byte.class)
-            .put(short.class, Short.class)
-            .put(int.class, Integer.class)
-            .put(long.class, Long.class)
-            .put(float.class, Float.class)
-            .put(double.class, Double.class)
-            .put(char.class, Character.class)
-            .put(boolean.class, Boolean.class)
-            .build();
-
     @NotNull
     public static void javaClassesToEntities(@NotNull Collection<? extends Class<?>> entityClassesCollection, @NotNull EntityRepresentationContext<ClassBean> context) {
         Context c = new Context(entityClassesCollection);
@@ -192,9 +181,9 @@ public class EntityBuilder {
         return Multiplicity.COLLECTION;
     }
 
+    // Primitive types are kept as they are, see TypeTransformer.isPrimitive()
     private static RelationWithTarget<Type> createRelationToJavaType(Method method, String relationName, Type type) {
-        Class<?> boxed = PRIMITIVE_TO_BOXED.get(type);
-        return new RelationWithTarget<Type>(getMultiplicity(method), relationName, boxed == null ? type : boxed);
+        return new RelationWithTarget<Type>(getMultiplicity(method), relationName, type);
     }
 
     private static Multiplicity getMultiplicity(Method method) {
@@ -202,7 +191,7 @@ public class EntityBuilder {
         return optional == null ? Multiplicity.ONE : Multiplicity.ZERO_OR_ONE;
     }
 
-    private static void bindOverriddenRelations(Collection<Entity> entities) {
+    static void bindOverriddenRelations(Collection<Entity> entities) {
         Set<Entity> alreadyBound = Sets.newHashSet();
         for (Entity entity : entities) {
             bindOverriddenRelations(entity, alreadyBound);
@@ -236,7 +225,7 @@ public class EntityBuilder {
         }
     }
 
-    private static void removeOverriddenRelations(Collection<Entity> entities) {
+    static void removeOverriddenRelations(Collection<Entity> entities) {
         for (Entity entity : entities) {
             for (Relation<?> relation : Lists.newArrayList(entity.getRelations())) {
                 if (!relation.getOverriddenRelations().isEmpty()) {
@@ -247,7 +236,7 @@ public class EntityBuilder {
         }
     }
 
-    private static void warning(String message) {
+    static void warning(String message) {
         System.err.println(message);
     }
 
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.*;
+import org.jetbrains.jet.buildergen.java.declarations.WildcardKind;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The entity model built by {@link EntityBuilder}, stored in a compact binary form between runs.
+ * The cache is keyed by a hash of the class files of the entities, so unchanged inputs are neither loaded nor reflected.
+ *
+ * Targets that are Java types are restored as {@link TypeNode}s
+ *
+ * @author abreslav
+ */
+public class EntityModelCache {
+    private static final int VERSION = 2;
+
+    private static final byte ENTITY_TARGET = 0;
+    private static final byte TYPE_TARGET = 1;
+
+    private static final byte CONSTRUCTED_TYPE = 0;
+    private static final byte WILDCARD_TYPE = 1;
+    private static final byte SEEN_TYPE = 2;
+
+    public static void javaClassesToEntities(
+            @NotNull List<? extends Class<?>> entityClasses,
+            @NotNull File cacheFile,
+            @NotNull EntityRepresentationContext<ClassBean> context
+    ) throws IOException {
+        if (entityClasses.isEmpty()) return;
+        List<String> classNames = Lists.newArrayList();
+        for (Class<?> entityClass : entityClasses) {
+            classNames.add(entityClass.getName());
+        }
+        javaClassesToEntities(classNames, entityClasses.get(0).getClassLoader(), cacheFile, context);
+    }
+
+    /**
+     * Entity classes are only loaded if the cache is missing or out of date
+     */
+    public static void javaClassesToEntities(
+            @NotNull List<String> entityClassNames,
+            @NotNull ClassLoader classLoader,
+            @NotNull File cacheFile,
+            @NotNull EntityRepresentationContext<ClassBean> context
+    ) throws IOException {
+        String inputHash = computeInputHash(entityClassNames, classLoader);
+        if (inputHash != null && load(cacheFile, inputHash, context)) {
+            return;
+        }
+
+        List<Class<?>> entityClasses = Lists.newArrayList();
+        for (String className : entityClassNames) {
+            try {
+                entityClasses.add(Class.forName(className, false, classLoader));
+            }
+            catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Entity class not found: " + className, e);
+            }
+        }
+        EntityBuilder.javaClassesToEntities(entityClasses, context);
+
+        if (inputHash != null) {
+            save(cacheFile, inputHash, context.getEntities());
+        }
+        else {
+            // Classes defined at runtime have no class files to hash
+            FileUtil.delete(cacheFile);
+        }
+    }
+
+    @Nullable
+    static String computeInputHash(@NotNull List<String> entityClassNames, @NotNull ClassLoader classLoader) throws IOException {
+        MessageDigest digest = HashUtil.newDigest();
+        digest.update(HashUtil.toUtf8(VERSION + "\n"));
+        byte[] buffer = new byte[8192];
+        for (String className : entityClassNames) {
+            InputStream stream = classLoader.getResourceAsStream(className.replace('.', '/') + ".class");
+            if (stream == null) return null;
+            digest.update(HashUtil.toUtf8(className + "\n"));
+            try {
+                int read;
+                while ((read = stream.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            finally {
+                stream.close();
+            }
+        }
+        return HashUtil.toHex(digest.digest());
+    }
+
+    private static boolean load(
+            @NotNull File cacheFile,
+            @NotNull String inputHash,
+            @NotNull EntityRepresentationContext<ClassBean> context
+    ) {
+        if (!cacheFile.isFile()) return false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                if (in.readInt() != VERSION || !in.readUTF().equals(inputHash)) {
+                    return false;
+                }
+                List<EntityImpl> entities = read(in);
+                // Nothing is registered unless the whole model has been read
+                for (EntityImpl entity : entities) {
+                    EntityBuilder.ClassName dataClass = entity.getData(EntityBuilder.DATA_CLASS);
+                    context.registerRepresentation(entity, new ClassBean().setPackageFqName(dataClass.getPackageFqName())
+                                                                          .setName(dataClass.getClassName()));
+                }
+                return true;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    @NotNull
+    private static List<EntityImpl> read(@NotNull DataInputStream in) throws IOException {
+        int entityCount = in.readInt();
+        List<EntityImpl> entities = Lists.newArrayListWithCapacity(entityCount);
+        for (int i = 0; i < entityCount; i++) {
+            EntityImpl entity = new EntityImpl(in.readUTF());
+            entity.put(EntityBuilder.DATA_CLASS, new EntityBuilder.ClassName(in.readUTF(), in.readUTF()));
+            entities.add(entity);
+        }
+
+        List<TypeNode> seenTypes = Lists.newArrayList();
+        for (EntityImpl entity : entities) {
+            int superCount = in.readInt();
+            for (int i = 0; i < superCount; i++) {
+                entity.getSuperEntities().add(entities.get(in.readInt()));
+            }
+            int relationCount = in.readInt();
+            for (int i = 0; i < relationCount; i++) {
+                String name = in.readUTF();
+                Multiplicity multiplicity = Multiplicity.values()[in.readByte()];
+                boolean reference = in.readBoolean();
+                RelationWithTarget<?> relation;
+                byte targetKind = in.readByte();
+                if (targetKind == ENTITY_TARGET) {
+                    relation = new RelationWithTarget<Entity>(multiplicity, name, entities.get(in.readInt()));
+                }
+                else if (targetKind == TYPE_TARGET) {
+                    relation = new RelationWithTarget<TypeNode>(multiplicity, name, readType(in, seenTypes));
+                }
+                else {
+                    throw new IOException("Unknown target kind: " + targetKind);
+                }
+                if (reference) {
+                    relation.put(EntityBuilder.REFERENCE, true);
+                }
+                entity.getRelations().add(relation);
+            }
+        }
+        return entities;
+    }
+
+    @NotNull
+    private static TypeNode readType(@NotNull DataInputStream in, @NotNull List<TypeNode> seenTypes) throws IOException {
+        byte tag = in.readByte();
+        TypeNode type;
+        switch (tag) {
+            case SEEN_TYPE:
+                return seenTypes.get(in.readInt());
+            case CONSTRUCTED_TYPE:
+                String packageName = in.readUTF();
+                String className = in.readUTF();
+                int argumentCount = in.readInt();
+                List<TypeNode> arguments = Lists.newArrayListWithCapacity(argumentCount);
+                for (int i = 0; i < argumentCount; i++) {
+                    arguments.add(readType(in, seenTypes));
+                }
+                type = TypeNode.constructed(packageName, className, arguments);
+                break;
+            case WILDCARD_TYPE:
+                WildcardKind kind = WildcardKind.values()[in.readByte()];
+                type = TypeNode.wildcard(kind, in.readBoolean() ? readType(in, seenTypes) : null);
+                break;
+            default:
+                throw new IOException("Unknown type tag: " + tag);
+        }
+        seenTypes.add(type);
+        return type;
+    }
+
+    private static void save(@NotNull File cacheFile, @NotNull String inputHash, @NotNull Collection<Entity> entities) throws IOException {
+        Map<Entity, Integer> entityIndices = Maps.newHashMap();
+        for (Entity entity : entities) {
+            entityIndices.put(entity, entityIndices.size());
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(inputHash);
+
+            out.writeInt(entities.size());
+            for (Entity entity : entities) {
+                EntityBuilder.ClassName dataClass = entity.getData(EntityBuilder.DATA_CLASS);
+                out.writeUTF(entity.getName());
+                out.writeUTF(dataClass.getPackageFqName());
+                out.writeUTF(dataClass.getClassName());
+            }
+
+            Map<TypeNode, Integer> seenTypes = Maps.newHashMap();
+            for (Entity entity : entities) {
+                out.writeInt(entity.getSuperEntities().size());
+                for (Entity superEntity : entity.getSuperEntities()) {
+                    out.writeInt(entityIndices.get(superEntity));
+                }
+                out.writeInt(entity.getRelations().size());
+                for (Relation<?> relation : entity.getRelations()) {
+                    out.writeUTF(relation.getName());
+                    out.writeByte(relation.getMultiplicity().ordinal());
+                    out.writeBoolean(relation.getData(EntityBuilder.REFERENCE) == Boolean.TRUE);
+                    Object target = relation.getTarget();
+                    if (target instanceof Entity) {
+                        out.writeByte(ENTITY_TARGET);
+                        out.writeInt(entityIndices.get(target));
+                    }
+                    else {
+                        out.writeByte(TYPE_TARGET);
+                        writeType(out, targetToTypeNode(target), seenTypes);
+                    }
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void writeType(@NotNull DataOutputStream out, @NotNull TypeNode type, @NotNull Map<TypeNode, Integer> seenTypes)
+            throws IOException {
+        Integer index = seenTypes.get(type);
+        if (index != null) {
+            out.writeByte(SEEN_TYPE);
+            out.writeInt(index);
+            return;
+        }
+        if (type.isWildcard()) {
+            out.writeByte(WILDCARD_TYPE);
+            out.writeByte(type.getWildcardKind().ordinal());
+            out.writeBoolean(!type.getArguments().isEmpty());
+            if (!type.getArguments().isEmpty()) {
+                writeType(out, type.getArguments().get(0), seenTypes);
+            }
+        }
+        else {
+            out.writeByte(CONSTRUCTED_TYPE);
+            out.writeUTF(type.getPackageName());
+            out.writeUTF(type.getClassName());
+            out.writeInt(type.getArguments().size());
+            for (TypeNode argument : type.getArguments()) {
+                writeType(out, argument, seenTypes);
+            }
+        }
+        // Indices are assigned in the order the reader finishes reading the types
+        seenTypes.put(type, seenTypes.size());
+    }
+
+    /**
+     * Java type targets as they would be rendered in the generated code
+     */
+    @NotNull
+    static TypeNode targetToTypeNode(@NotNull Object target) {
+        if (target instanceof Type) {
+            return TypeTransformer.reflectionType((Type) target);
+        }
+        if (target instanceof TypeData) {
+            return TypeNode.of((TypeData) target);
+        }
+        throw new IllegalArgumentException("Unsupported target type: " + target);
+    }
+
+    private EntityModelCache() {}
+}
@@ -18,6 +18,7 @@ package org.jetbrains.jet.buildergen;
 
 import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jet.buildergen.dataholder.DataHolderKey;
 import org.jetbrains.jet.buildergen.entities.Entity;
 import org.jetbrains.jet.buildergen.entities.Relation;
@@ -25,10 +26,11 @@ import org.jetbrains.jet.buildergen.java.declarations.*;
 import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
 import org.jetbrains.jet.buildergen.dataholder.DataHolderKeyImpl;
 import org.jetbrains.jet.buildergen.java.types.TypeData;
-import org.jetbrains.jet.buildergen.java.types.TypeFactory;
 import org.jetbrains.jet.buildergen.java.types.TypeUtil;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author abreslav
@@ -36,26 +38,15 @@ import java.util.*;
 public abstract class EntityRepresentationGenerator {
     protected static DataHolderKey<ClassModel, Entity> ENTITY = DataHolderKeyImpl.create("ENTITY");
 
-    public static TypeData OVERRIDE = new TypeData() {
-        @Override
-        public <E> E create(@NotNull TypeFactory<E> f) {
-            return TypeUtil.constructedType(f, "java.lang", "Override");
-        }
-    };
+    public static TypeData OVERRIDE = TypeUtil.simpleType("java.lang", "Override");
 
-    public static TypeData NULLABLE = new TypeData() {
-        @Override
-        public <E> E create(@NotNull TypeFactory<E> f) {
-            return TypeUtil.constructedType(f, "org.jetbrains.annotations", "Nullable");
-        }
-    };
+    public static TypeData NULLABLE = TypeUtil.simpleType("org.jetbrains.annotations", "Nullable");
 
-    public static TypeData NOT_NULL = new TypeData() {
-        @Override
-        public <E> E create(@NotNull TypeFactory<E> f) {
-            return TypeUtil.constructedType(f, "org.jetbrains.annotations", "NotNull");
-        }
-    };
+    public static TypeData NOT_NULL = TypeUtil.simpleType("org.jetbrains.annotations", "NotNull");
+
+    private static final TypeData BOOLEAN = TypeUtil.simpleType("java.lang", "Boolean");
+
+    private static final TypeData PRIMITIVE_BOOLEAN = TypeUtil.simpleType("", "boolean");
 
     protected EntityRepresentationGenerator() {
     }
@@ -68,8 +59,69 @@ public abstract class EntityRepresentationGenerator {
             @NotNull EntityRepresentationContext<ClassBean> context,
             @NotNull String targetPackageFqName
     ) {
+        return generate(entities, context, targetPackageFqName, null);
+    }
+
+    /**
+     * If an executor is given, entities are generated concurrently: all representations are registered first
+     * (this fixes the order of the result), then each entity only fills in its own class
+     */
+    public Collection<ClassModel> generate(
+            @NotNull Collection<Entity> entities,
+            @NotNull final EntityRepresentationContext<ClassBean> context,
+            @NotNull String targetPackageFqName,
+            @Nullable ExecutorService executor
+    ) {
+        preProcess(entities, context);
+
+        registerRepresentations(entities, context, targetPackageFqName);
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(entities.size());
+        for (final Entity entity : entities) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    generateEntity(context, entity);
+                    return null;
+                }
+            });
+        }
+        ParallelUtil.invokeAll(executor, tasks);
+
+        postProcess(context);
+
+        return (Collection) context.getRepresentations();
+    }
+
+    /**
+     * Generates the entities one by one, each class is passed on as soon as it is complete
+     */
+    void generateToOutput(
+            @NotNull Collection<Entity> entities,
+            @NotNull EntityRepresentationContext<ClassBean> context,
+            @NotNull String targetPackageFqName,
+            @NotNull GenerationPipeline.Output output
+    ) throws InterruptedException {
         preProcess(entities, context);
 
+        registerRepresentations(entities, context, targetPackageFqName);
+
+        for (Entity entity : entities) {
+            generateEntity(context, entity);
+            output.put(context.getRepresentation(entity));
+        }
+
+        postProcess(context);
+    }
+
+    /**
+     * Creates empty representations: their names are all other entities need to know
+     */
+    void registerRepresentations(
+            @NotNull Collection<Entity> entities,
+            @NotNull EntityRepresentationContext<ClassBean> context,
+            @NotNull String targetPackageFqName
+    ) {
         for (Entity entity : entities) {
             String readableBeanClassName = getEntityRepresentationName(entity);
             ClassBean classBean = new ClassBean()
@@ -80,14 +132,6 @@ public abstract class EntityRepresentationGenerator {
                     .put(ENTITY, entity);
             context.registerRepresentation(entity, classBean);
         }
-
-        for (Entity entity : entities) {
-            generateEntity(context, entity);
-        }
-
-        postProcess(context);
-
-        return (Collection) context.getRepresentations();
     }
 
     private void preProcess(Collection<Entity> entities, EntityRepresentationContext<ClassBean> context) {
@@ -98,7 +142,10 @@ public abstract class EntityRepresentationGenerator {
         // Override if needed
     }
 
-    private void generateEntity(@NotNull EntityRepresentationContext<ClassBean> context, @NotNull Entity entity) {
+    /**
+     * Fills in the registered representation of the entity
+     */
+    void generateEntity(@NotNull EntityRepresentationContext<ClassBean> context, @NotNull Entity entity) {
         ClassBean classBean = context.getRepresentation(entity);
 
         generateSupertypes(context, classBean, entity);
@@ -135,7 +182,8 @@ public abstract class EntityRepresentationGenerator {
     }
 
     private static <T> String getGetterPrefix(T target) {
-        return target == Boolean.TYPE || target == Boolean.class ? "is" : "get";
+        return target == Boolean.TYPE || target == Boolean.class || BOOLEAN.equals(target) || PRIMITIVE_BOOLEAN.equals(target)
+               ? "is" : "get";
     }
 
     protected static TypeTransformer types(EntityRepresentationContext<ClassBean> context) {
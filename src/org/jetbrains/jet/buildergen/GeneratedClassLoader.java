@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * Defines generated classes from their class files on demand. They are looked up before the parent is asked,
+ * so that classes generated at build time with the same names don't shadow them
+ *
+ * @author abreslav
+ */
+class GeneratedClassLoader extends ClassLoader {
+    private final Map<String, byte[]> classFiles;
+
+    GeneratedClassLoader(@NotNull ClassLoader parent, @NotNull Map<String, byte[]> classFiles) {
+        super(parent);
+        this.classFiles = Maps.newHashMap(classFiles);
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded == null) {
+            // Class files are not needed once the class is defined
+            byte[] bytes = classFiles.remove(name);
+            if (bytes == null) {
+                return super.loadClass(name, resolve);
+            }
+            loaded = defineClass(name, bytes, 0, bytes.length);
+        }
+        if (resolve) {
+            resolveClass(loaded);
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Maps;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes of the files written by the previous run. A file whose length and timestamp match its entry
+ * is trusted to have the recorded hash and is not read again.
+ *
+ * @author abreslav
+ */
+public class GeneratedFilesManifest implements OutputSink {
+    private static final String FILE_NAME = ".bean-generator-manifest";
+    private static final String UTF_8 = "UTF-8";
+
+    private final File sourceRoot;
+    private final Map<String, Entry> previous;
+    // Files may be written concurrently
+    private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+
+    private GeneratedFilesManifest(@NotNull File sourceRoot, @NotNull Map<String, Entry> previous) {
+        this.sourceRoot = sourceRoot;
+        this.previous = previous;
+    }
+
+    @NotNull
+    public static GeneratedFilesManifest load(@NotNull File sourceRoot) {
+        Map<String, Entry> entries = Maps.newLinkedHashMap();
+        File file = new File(sourceRoot, FILE_NAME);
+        if (file.isFile()) {
+            try {
+                for (String line : FileUtil.loadFile(file).split("\n")) {
+                    String[] parts = line.split(" ", 4);
+                    if (parts.length != 4) continue;
+                    entries.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                }
+            }
+            catch (IOException e) {
+                entries.clear();
+            }
+            catch (NumberFormatException e) {
+                entries.clear();
+            }
+        }
+        return new GeneratedFilesManifest(sourceRoot, entries);
+    }
+
+    private interface BinaryContent {
+        void writeTo(@NotNull OutputStream stream) throws IOException;
+    }
+
+    /**
+     * Streams the content to a temporary file, hashing it on the way. The temporary file replaces the old one
+     * only if the content has changed, otherwise the old file is left untouched
+     *
+     * @return true if the file was written
+     */
+    @Override
+    public boolean write(@NotNull String relativePath, @NotNull final Content content) throws IOException {
+        return writeStream(relativePath, new BinaryContent() {
+            @Override
+            public void writeTo(@NotNull OutputStream stream) throws IOException {
+                Writer writer = new OutputStreamWriter(stream, UTF_8);
+                content.writeTo(writer);
+                writer.flush();
+            }
+        });
+    }
+
+    @Override
+    public boolean write(@NotNull String relativePath, @NotNull final byte[] bytes) throws IOException {
+        return writeStream(relativePath, new BinaryContent() {
+            @Override
+            public void writeTo(@NotNull OutputStream stream) throws IOException {
+                stream.write(bytes);
+            }
+        });
+    }
+
+    private boolean writeStream(@NotNull String relativePath, @NotNull BinaryContent content) throws IOException {
+        File file = new File(sourceRoot, relativePath);
+        File temp = new File(file.getPath() + ".tmp");
+        FileUtil.createParentDirs(temp);
+
+        MessageDigest digest = HashUtil.newDigest();
+        OutputStream stream = new DigestOutputStream(new FileOutputStream(temp), digest);
+        try {
+            content.writeTo(stream);
+        }
+        finally {
+            stream.close();
+        }
+        String hash = HashUtil.toHex(digest.digest());
+
+        boolean changed = !hash.equals(getExistingHash(relativePath, file));
+        if (changed) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        }
+        else if (!temp.delete()) {
+            throw new IOException("Could not delete " + temp);
+        }
+        current.put(relativePath, new Entry(hash, file.length(), file.lastModified()));
+        return changed;
+    }
+
+    @Override
+    public boolean exists(@NotNull String relativePath) {
+        return new File(sourceRoot, relativePath).isFile();
+    }
+
+    @Override
+    public void retain(@NotNull String relativePath) {
+        Entry entry = previous.get(relativePath);
+        File file = new File(sourceRoot, relativePath);
+        if (entry == null || !isTrusted(entry, file)) {
+            entry = file.isFile() ? createEntry(file) : null;
+        }
+        if (entry != null) {
+            current.put(relativePath, entry);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        deleteStaleFilesAndSave();
+    }
+
+    /**
+     * Files written so far are complete and stay, the old manifest is kept: nothing is deleted as stale
+     */
+    @Override
+    public void abort() {
+    }
+
+    /**
+     * Deletes the files written by the previous run that were neither written nor retained in this one,
+     * and saves the manifest
+     */
+    public void deleteStaleFilesAndSave() throws IOException {
+        for (String relativePath : previous.keySet()) {
+            if (!current.containsKey(relativePath)) {
+                File file = new File(sourceRoot, relativePath);
+                if (file.isFile() && !file.delete()) {
+                    throw new IOException("Could not delete a stale generated file: " + file);
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : new TreeMap<String, Entry>(current).entrySet()) {
+            Entry value = entry.getValue();
+            sb.append(value.hash).append(" ").append(value.length).append(" ").append(value.lastModified)
+                    .append(" ").append(entry.getKey()).append("\n");
+        }
+        FileUtil.writeToFile(new File(sourceRoot, FILE_NAME), sb.toString());
+    }
+
+    @Nullable
+    private String getExistingHash(@NotNull String relativePath, @NotNull File file) throws IOException {
+        if (!file.isFile()) return null;
+        Entry entry = previous.get(relativePath);
+        if (entry != null && isTrusted(entry, file)) {
+            return entry.hash;
+        }
+        return HashUtil.md5(FileUtil.loadFileBytes(file));
+    }
+
+    private static boolean isTrusted(@NotNull Entry entry, @NotNull File file) {
+        return file.length() == entry.length && file.lastModified() == entry.lastModified;
+    }
+
+    @Nullable
+    private static Entry createEntry(@NotNull File file) {
+        try {
+            return new Entry(HashUtil.md5(FileUtil.loadFileBytes(file)), file.length(), file.lastModified());
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final String hash;
+        private final long length;
+        private final long lastModified;
+
+        private Entry(@NotNull String hash, long length, long lastModified) {
+            this.hash = hash;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
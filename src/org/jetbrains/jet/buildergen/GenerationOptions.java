@@ -0,0 +1,241 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Sets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.EntityUtil;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * @author abreslav
+ */
+public class GenerationOptions {
+    private boolean parallel;
+    private boolean incremental;
+    private boolean bytecode;
+    private boolean modelCache;
+    private boolean streaming;
+    private boolean pipelined;
+    private File archive;
+    private final Set<String> roots = Sets.newLinkedHashSet();
+    private int utilShardSize;
+    private boolean lazyCollections;
+    private boolean smallCollections;
+    private boolean compactLayout;
+    private String persistentBeanPackage;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Entities are processed concurrently, the output stays the same as in the sequential mode
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    @NotNull
+    public GenerationOptions setParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    @NotNull
+    public GenerationOptions setThreadCount(int threadCount) {
+        assert threadCount > 0 : "Thread count must be positive: " + threadCount;
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    /**
+     * Only the entities changed since the previous run (and the ones depending on them) are written out
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    @NotNull
+    public GenerationOptions setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    /**
+     * Class files are written instead of Java sources, so that no compilation step is needed.
+     * Sources are still useful for debugging
+     */
+    public boolean isBytecode() {
+        return bytecode;
+    }
+
+    @NotNull
+    public GenerationOptions setBytecode(boolean bytecode) {
+        this.bytecode = bytecode;
+        return this;
+    }
+
+    /**
+     * The entity model is stored next to the generated files and reused while the entity classes stay the same
+     */
+    public boolean isModelCache() {
+        return modelCache;
+    }
+
+    @NotNull
+    public GenerationOptions setModelCache(boolean modelCache) {
+        this.modelCache = modelCache;
+        return this;
+    }
+
+    /**
+     * Classes are written out entity by entity and dropped right away, so that huge models fit in memory.
+     * Entities are processed sequentially, bytecode is not supported
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    @NotNull
+    public GenerationOptions setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    /**
+     * Generation, rendering and writing of classes overlap, each stage running on threads of its own.
+     * Rendering uses {@link #getThreadCount()} threads in the parallel mode
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    @NotNull
+    public GenerationOptions setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    /**
+     * If set, all the generated files are packed into this zip archive (a srcjar, or a jar in the bytecode mode)
+     * instead of being written to the source root one by one. Compilers and IDEs can read the archive directly
+     */
+    @Nullable
+    public File getArchive() {
+        return archive;
+    }
+
+    @NotNull
+    public GenerationOptions setArchive(@Nullable File archive) {
+        this.archive = archive;
+        return this;
+    }
+
+    /**
+     * Names of the entities the generated code is needed for. If there are any, only these entities
+     * and the ones reachable from them are generated (see {@link EntityUtil#getReachableEntities}), otherwise all are
+     */
+    @NotNull
+    public Set<String> getRoots() {
+        return Collections.unmodifiableSet(roots);
+    }
+
+    @NotNull
+    public GenerationOptions addRoot(@NotNull String entityName) {
+        roots.add(entityName);
+        return this;
+    }
+
+    /**
+     * If positive, util classes (BeanUtil, DataToBean, DataBuilder) with methods for more entities than this are split
+     * into shards behind a facade with the original name, so that huge models don't hit class size limits
+     * and only the shards in use are loaded
+     */
+    public int getUtilShardSize() {
+        return utilShardSize;
+    }
+
+    @NotNull
+    public GenerationOptions setUtilShardSize(int utilShardSize) {
+        assert utilShardSize >= 0 : "Shard size must not be negative: " + utilShardSize;
+        this.utilShardSize = utilShardSize;
+        return this;
+    }
+
+    /**
+     * If true, collection fields of bean implementations are allocated on the first addition:
+     * most beans have empty collections and share a single empty instance then
+     */
+    public boolean isLazyCollections() {
+        return lazyCollections;
+    }
+
+    @NotNull
+    public GenerationOptions setLazyCollections(boolean lazyCollections) {
+        this.lazyCollections = lazyCollections;
+        return this;
+    }
+
+    /**
+     * If true, bean implementations keep their collections in SmallList and SmallSet from the runtime module,
+     * which store few elements with less overhead than ArrayList and HashSet
+     */
+    public boolean isSmallCollections() {
+        return smallCollections;
+    }
+
+    @NotNull
+    public GenerationOptions setSmallCollections(boolean smallCollections) {
+        this.smallCollections = smallCollections;
+        return this;
+    }
+
+    /**
+     * If true, bean implementations pack boolean relations and "has value" flags of optional primitives
+     * into int bit-fields, 32 per field, instead of a field each
+     */
+    public boolean isCompactLayout() {
+        return compactLayout;
+    }
+
+    @NotNull
+    public GenerationOptions setCompactLayout(boolean compactLayout) {
+        this.compactLayout = compactLayout;
+        return this;
+    }
+
+    /**
+     * If not null, immutable beans with persistent collections (see {@link PersistentBeanInterfaceGenerator})
+     * are generated into this package, next to the mutable ones
+     */
+    @Nullable
+    public String getPersistentBeanPackage() {
+        return persistentBeanPackage;
+    }
+
+    @NotNull
+    public GenerationOptions setPersistentBeanPackage(@Nullable String persistentBeanPackage) {
+        this.persistentBeanPackage = persistentBeanPackage;
+        return this;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Class generation, rendering and writing run as stages connected by bounded queues: classes are rendered
+ * while the following ones are being generated, and written while the following ones are being rendered.
+ * A full queue blocks the stage before it, so memory use is limited by the queue capacity and not by the model size.
+ *
+ * @author abreslav
+ */
+class GenerationPipeline {
+    private static final int QUEUE_CAPACITY = 64;
+
+    // Marks the end of a queue, one per consumer
+    private static final Object END = new Object();
+
+    public interface Generator {
+        /**
+         * Passes each generated class to {@code output} as soon as the class is complete: it must not change afterwards
+         */
+        void generate(@NotNull Output output) throws InterruptedException;
+    }
+
+    public interface Renderer {
+        @NotNull
+        byte[] render(@NotNull ClassModel classModel) throws IOException;
+    }
+
+    public static class Output {
+        private final BlockingQueue<Object> queue;
+        private final OutputSink sink;
+        private final Set<String> dirty;
+        private final String extension;
+
+        private Output(
+                @NotNull BlockingQueue<Object> queue,
+                @NotNull OutputSink sink,
+                @Nullable Set<String> dirty,
+                @NotNull String extension
+        ) {
+            this.queue = queue;
+            this.sink = sink;
+            this.dirty = dirty;
+            this.extension = extension;
+        }
+
+        public void put(@NotNull ClassModel classModel) throws InterruptedException {
+            // Up-to-date classes are retained right away, they never reach the other stages
+            if (!BeanGenerator.getClassesToWrite(sink, Collections.singletonList(classModel), dirty, extension).isEmpty()) {
+                queue.put(classModel);
+            }
+        }
+    }
+
+    private static class RenderedClass {
+        private final String path;
+        private final byte[] bytes;
+
+        private RenderedClass(@NotNull String path, @NotNull byte[] bytes) {
+            this.path = path;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Runs the generator, {@code renderThreadCount} renderers and a single writer (writes go to one disk anyway)
+     * on threads of their own. If a stage fails, the others are interrupted and the failure is rethrown
+     */
+    public static void run(
+            @NotNull final Generator generator,
+            @NotNull final Renderer renderer,
+            final int renderThreadCount,
+            @NotNull final OutputSink sink,
+            @Nullable Set<String> dirty,
+            @NotNull final String extension
+    ) throws IOException {
+        assert renderThreadCount > 0 : "Render thread count must be positive: " + renderThreadCount;
+        final BlockingQueue<Object> classes = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+        final BlockingQueue<Object> renderedClasses = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+        final Output output = new Output(classes, sink, dirty, extension);
+
+        List<Callable<Void>> stages = Lists.newArrayList();
+        stages.add(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                generator.generate(output);
+                for (int i = 0; i < renderThreadCount; i++) {
+                    classes.put(END);
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < renderThreadCount; i++) {
+            stages.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, InterruptedException {
+                    for (Object next = classes.take(); next != END; next = classes.take()) {
+                        ClassModel classModel = (ClassModel) next;
+                        String path = BeanGenerator.getRelativePath(classModel, extension);
+                        renderedClasses.put(new RenderedClass(path, renderer.render(classModel)));
+                    }
+                    renderedClasses.put(END);
+                    return null;
+                }
+            });
+        }
+        stages.add(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, InterruptedException {
+                int renderersLeft = renderThreadCount;
+                while (renderersLeft > 0) {
+                    Object next = renderedClasses.take();
+                    if (next == END) {
+                        renderersLeft--;
+                    }
+                    else {
+                        RenderedClass renderedClass = (RenderedClass) next;
+                        sink.write(renderedClass.path, renderedClass.bytes);
+                    }
+                }
+                return null;
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(stages.size());
+        try {
+            CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+            for (Callable<Void> stage : stages) {
+                completionService.submit(stage);
+            }
+            // Failures are reported as soon as they happen: the stages waiting for the failed one would block forever
+            for (int i = 0; i < stages.size(); i++) {
+                completionService.take().get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for generation stages");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private GenerationPipeline() {}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+
+import javax.tools.*;
+import java.io.*;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiles generated classes with javac in a single batch, without writing sources or class files to disk.
+ * Sources are printed when the compiler reads them.
+ *
+ * @author abreslav
+ */
+public class InMemoryCompiler {
+
+    @NotNull
+    public static CompiledClasses compile(@NotNull Collection<ClassModel> classes, @NotNull List<File> classpath) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available: a JDK is required");
+        }
+
+        List<JavaFileObject> sources = Lists.newArrayList();
+        for (ClassModel classModel : classes) {
+            sources.add(new GeneratedSource(classModel));
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        ClassFileCollector fileManager = new ClassFileCollector(compiler.getStandardFileManager(diagnostics, null, null));
+        List<String> options = Lists.newArrayList("-classpath", Joiner.on(File.pathSeparator).join(classpath), "-proc:none", "-nowarn");
+
+        try {
+            boolean success = compiler.getTask(null, fileManager, diagnostics, options, null, sources).call();
+            if (!success) {
+                StringBuilder message = new StringBuilder("Generated code does not compile:");
+                for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                    if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                        message.append("\n").append(diagnostic);
+                    }
+                }
+                throw new IllegalStateException(message.toString());
+            }
+        }
+        finally {
+            try {
+                fileManager.close();
+            }
+            catch (IOException e) {
+                // Nothing was written to disk
+            }
+        }
+        return new CompiledClasses(fileManager.classFiles);
+    }
+
+    /**
+     * The class path of the current JVM plus the locations of the given classes (e.g. entities loaded by a custom loader)
+     */
+    @NotNull
+    public static List<File> getClasspath(@NotNull Collection<? extends Class<?>> classes) {
+        List<File> result = Lists.newArrayList();
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                result.add(new File(path));
+            }
+        }
+        for (Class<?> aClass : classes) {
+            File location = getLocation(aClass);
+            if (location != null && !result.contains(location)) {
+                result.add(location);
+            }
+        }
+        return result;
+    }
+
+    private static File getLocation(@NotNull Class<?> aClass) {
+        if (aClass.getProtectionDomain().getCodeSource() == null) return null;
+        try {
+            return new File(aClass.getProtectionDomain().getCodeSource().getLocation().toURI());
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static class GeneratedSource extends SimpleJavaFileObject {
+        private final ClassModel classModel;
+
+        private GeneratedSource(@NotNull ClassModel classModel) {
+            super(URI.create("string:///" + getPath(classModel) + Kind.SOURCE.extension), Kind.SOURCE);
+            this.classModel = classModel;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            StringWriter writer = new StringWriter();
+            ClassPrinter.printClass(classModel, writer);
+            return writer.getBuffer();
+        }
+
+        @NotNull
+        private static String getPath(@NotNull ClassModel classModel) {
+            String packageName = classModel.getPackageFqName();
+            return (packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/") + classModel.getName();
+        }
+    }
+
+    private static class ClassFileCollector extends ForwardingJavaFileManager<JavaFileManager> {
+        private final Map<String, byte[]> classFiles = new ConcurrentHashMap<String, byte[]>();
+
+        private ClassFileCollector(@NotNull JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, final String className, JavaFileObject.Kind kind, FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            classFiles.put(className, toByteArray());
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.*;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.entities.Relation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Fingerprints of entities and dependencies between them, persisted between runs
+ * so that only the entities affected by a change get regenerated
+ *
+ * @author abreslav
+ */
+public class IncrementalState {
+    private static final String VERSION = "2";
+
+    private static final String VERSION_PREFIX = "version ";
+    private static final String CONFIGURATION_PREFIX = "configuration ";
+    private static final String ENTITY_PREFIX = "entity ";
+    private static final String SUPER_PREFIX = "super ";
+    private static final String TARGET_PREFIX = "target ";
+
+    private final String configuration;
+    private final Map<String, String> fingerprints = Maps.newLinkedHashMap();
+    private final Multimap<String, String> superEntities = LinkedHashMultimap.create();
+    private final Multimap<String, String> relationTargets = LinkedHashMultimap.create();
+
+    private IncrementalState(@NotNull String configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * @param configuration everything besides the entities that affects the generated code, e.g. package names
+     */
+    @NotNull
+    public static IncrementalState compute(@NotNull Collection<Entity> entities, @NotNull String configuration) {
+        IncrementalState state = new IncrementalState(configuration);
+        for (Entity entity : entities) {
+            state.fingerprints.put(entity.getName(), fingerprint(entity));
+            for (Entity superEntity : entity.getSuperEntities()) {
+                state.superEntities.put(entity.getName(), superEntity.getName());
+            }
+            for (Relation<?> relation : entity.getRelations()) {
+                Object target = relation.getTarget();
+                if (target instanceof Entity) {
+                    state.relationTargets.put(entity.getName(), ((Entity) target).getName());
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Entities that changed since the previous run, their subclasses (they inherit relations)
+     * and the entities that have relations to them.
+     *
+     * Entities that no longer exist are included too, so an empty result means the whole model is the same
+     */
+    @NotNull
+    public Set<String> getDirtyEntities(@Nullable IncrementalState previous) {
+        if (previous == null || !configuration.equals(previous.configuration)) {
+            return Sets.newLinkedHashSet(fingerprints.keySet());
+        }
+
+        List<String> changed = Lists.newArrayList();
+        for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+            if (!entry.getValue().equals(previous.fingerprints.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+
+        Set<String> dirty = Sets.newLinkedHashSet(changed);
+
+        Multimap<String, String> subEntities = Multimaps.invertFrom(superEntities, LinkedHashMultimap.<String, String>create());
+        Deque<String> queue = new ArrayDeque<String>(changed);
+        while (!queue.isEmpty()) {
+            for (String subEntity : subEntities.get(queue.remove())) {
+                if (dirty.add(subEntity)) {
+                    queue.add(subEntity);
+                }
+            }
+        }
+
+        Multimap<String, String> referrers = Multimaps.invertFrom(relationTargets, LinkedHashMultimap.<String, String>create());
+        for (String name : changed) {
+            dirty.addAll(referrers.get(name));
+        }
+
+        for (String name : previous.fingerprints.keySet()) {
+            if (!fingerprints.containsKey(name)) {
+                dirty.add(name);
+            }
+        }
+        return dirty;
+    }
+
+    @Nullable
+    public static IncrementalState load(@NotNull File file) {
+        if (!file.isFile()) return null;
+        try {
+            return parse(FileUtil.loadFile(file));
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static IncrementalState parse(@NotNull String text) {
+        String[] lines = text.split("\n");
+        if (lines.length < 2 || !lines[0].equals(VERSION_PREFIX + VERSION) || !lines[1].startsWith(CONFIGURATION_PREFIX)) {
+            return null;
+        }
+        IncrementalState state = new IncrementalState(lines[1].substring(CONFIGURATION_PREFIX.length()));
+        for (int i = 2; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.isEmpty()) continue;
+            String[] parts = line.split(" ");
+            if (parts.length != 3) {
+                return null;
+            }
+            if (line.startsWith(ENTITY_PREFIX)) {
+                state.fingerprints.put(parts[1], parts[2]);
+            }
+            else if (line.startsWith(SUPER_PREFIX)) {
+                state.superEntities.put(parts[1], parts[2]);
+            }
+            else if (line.startsWith(TARGET_PREFIX)) {
+                state.relationTargets.put(parts[1], parts[2]);
+            }
+            else {
+                return null;
+            }
+        }
+        return state;
+    }
+
+    public void save(@NotNull File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION_PREFIX).append(VERSION).append("\n");
+        sb.append(CONFIGURATION_PREFIX).append(configuration).append("\n");
+        for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+            sb.append(ENTITY_PREFIX).append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+        }
+        for (Map.Entry<String, String> entry : superEntities.entries()) {
+            sb.append(SUPER_PREFIX).append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+        }
+        for (Map.Entry<String, String> entry : relationTargets.entries()) {
+            sb.append(TARGET_PREFIX).append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+        }
+        FileUtil.writeToFile(file, sb.toString());
+    }
+
+    @NotNull
+    private static String fingerprint(@NotNull Entity entity) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(entity.getName()).append("\n");
+        EntityBuilder.ClassName dataClass = entity.getData(EntityBuilder.DATA_CLASS);
+        if (dataClass != null) {
+            sb.append("data ").append(dataClass.getPackageFqName()).append(".").append(dataClass.getClassName()).append("\n");
+        }
+        for (Entity superEntity : entity.getSuperEntities()) {
+            sb.append("super ").append(superEntity.getName()).append("\n");
+        }
+        for (Relation<?> relation : entity.getRelations()) {
+            Object target = relation.getTarget();
+            // Java types are compared as rendered: reflected and cached models must give the same fingerprints
+            Object targetText = target instanceof Entity ? "entity " + ((Entity) target).getName() : EntityModelCache.targetToTypeNode(target);
+            sb.append("relation ").append(relation.getName())
+                    .append(" ").append(relation.getMultiplicity())
+                    .append(" ").append(targetText);
+            if (relation.getData(EntityBuilder.REFERENCE) == Boolean.TRUE) {
+                sb.append(" reference");
+            }
+            sb.append("\n");
+        }
+        return HashUtil.md5(sb.toString());
+    }
+}
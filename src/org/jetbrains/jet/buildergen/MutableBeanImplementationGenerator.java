@@ -22,10 +22,13 @@ import com.google.common.collect.Maps;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jet.buildergen.dataholder.DataHolderKey;
 import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.entities.EntityUtil;
 import org.jetbrains.jet.buildergen.entities.Multiplicity;
 import org.jetbrains.jet.buildergen.entities.Relation;
 import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.code.BinaryOperation;
 import org.jetbrains.jet.buildergen.java.code.CodeFactory;
+import org.jetbrains.jet.buildergen.java.code.CodeTemplate;
 import org.jetbrains.jet.buildergen.java.code.CodeUtil;
 import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
 import org.jetbrains.jet.buildergen.java.declarations.*;
@@ -36,10 +39,11 @@ import org.jetbrains.jet.buildergen.java.declarations.beans.MethodBean;
 import org.jetbrains.jet.buildergen.java.types.TypeData;
 import org.jetbrains.jet.buildergen.java.types.TypeUtil;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 /**
 * @author abreslav
@@ -54,10 +58,45 @@ public class MutableBeanImplementationGenerator extends EntityRepresentationGene
             .setPackageFqName("java.util")
             .setName("HashSet");
 
+    private static final ClassModel SMALL_LIST = new ClassBean()
+            .setPackageFqName("org.jetbrains.jet.buildergen.runtime")
+            .setName("SmallList");
+
+    private static final ClassModel SMALL_SET = new ClassBean()
+            .setPackageFqName("org.jetbrains.jet.buildergen.runtime")
+            .setName("SmallSet");
+
+    private static final ClassModel COLLECTIONS = new ClassBean()
+            .setPackageFqName("java.util")
+            .setName("Collections");
+
     private final EntityRepresentationContext<ClassBean> mutableBeanInterfaces;
+    private final boolean lazyCollections;
+    private final boolean smallCollections;
+    private final boolean compactLayout;
 
     public MutableBeanImplementationGenerator(EntityRepresentationContext<ClassBean> mutableBeanInterfaces) {
+        this(mutableBeanInterfaces, false, false, false);
+    }
+
+    /**
+     * @param lazyCollections if true, collection fields start as the shared empty collection
+     *                        and the actual one is allocated by the first addition
+     * @param smallCollections if true, collections are {@link org.jetbrains.jet.buildergen.runtime.SmallList}
+     *                         and {@link org.jetbrains.jet.buildergen.runtime.SmallSet} instead of ArrayList and HashSet
+     * @param compactLayout if true, boolean relations and "has value" flags of optional primitives are packed
+     *                      into int bit-fields instead of taking a field each
+     */
+    public MutableBeanImplementationGenerator(
+            EntityRepresentationContext<ClassBean> mutableBeanInterfaces,
+            boolean lazyCollections,
+            boolean smallCollections,
+            boolean compactLayout
+    ) {
         this.mutableBeanInterfaces = mutableBeanInterfaces;
+        this.lazyCollections = lazyCollections;
+        this.smallCollections = smallCollections;
+        this.compactLayout = compactLayout;
     }
 
     @NotNull
@@ -79,18 +118,30 @@ public class MutableBeanImplementationGenerator extends EntityRepresentationGene
     @Override
     protected void generateClassMembers(EntityRepresentationContext<ClassBean> context, ClassBean classBean, Entity entity) {
         ClassBean interfaceBean = mutableBeanInterfaces.getRepresentation(entity);
-        EntityContext c = new EntityContext(mutableBeanInterfaces, entity, classBean);
+        EntityContext c = new EntityContext(mutableBeanInterfaces, entity, classBean, smallCollections, compactLayout);
         Map<String, MethodModel> methodsToImplement = Maps.newLinkedHashMap();
         collectAllMethodsToImplement(methodsToImplement, entity, mutableBeanInterfaces, IMPLS.keySet());
         for (MethodModel method : methodsToImplement.values()) {
             for (Map.Entry<DataHolderKey<? super MethodModel, Relation<?>>, MethodImplementation> entry : IMPLS.entrySet()) {
                 Relation<?> relation = method.getData(entry.getKey());
                 if (relation != null) {
-                    if (c.fields.get(relation) == null) {
-                        createField(c, relation);
+                    if (!c.isAllocated(relation)) {
+                        createField(c, relation, lazyCollections);
                     }
-                    MethodBean implementation = implement(method, entry.getValue().createBody(c, method));
-                    if (entry.getKey() != (Object) MutableBeanInterfaceGenerator.GETTER) {
+                    MethodImplementation methodImplementation = entry.getValue();
+                    if (lazyCollections && LAZY_COLLECTION_IMPLS.containsKey(entry.getKey())) {
+                        methodImplementation = LAZY_COLLECTION_IMPLS.get(entry.getKey());
+                    }
+                    if (entry.getKey() == (Object) MutableBeanInterfaceGenerator.SETTER
+                        && MutableBeanInterfaceGenerator.isOptionalPrimitive(relation)) {
+                        methodImplementation = OPTIONAL_PRIMITIVE_SETTER_IMPL;
+                    }
+                    if (c.isPacked(relation) && PACKED_IMPLS.containsKey(entry.getKey())) {
+                        methodImplementation = PACKED_IMPLS.get(entry.getKey());
+                    }
+                    MethodBean implementation = implement(method, methodImplementation.createBody(c, method));
+                    if (entry.getKey() != (Object) MutableBeanInterfaceGenerator.GETTER
+                        && entry.getKey() != (Object) MutableBeanInterfaceGenerator.HAS_VALUE) {
                         implementation.setReturnType(TypeUtil.simpleType(interfaceBean));
                     }
                     classBean.getMethods().add(implementation);
@@ -106,10 +157,7 @@ public class MutableBeanImplementationGenerator extends EntityRepresentationGene
             EntityRepresentationContext<ClassBean> context,
             Collection<DataHolderKey<? super MethodModel, Relation<?>>> keys
     ) {
-        Queue<Entity> queue = Lists.newLinkedList();
-        queue.offer(start);
-        while (!queue.isEmpty()) {
-            Entity entity = queue.remove();
+        for (Entity entity : EntityUtil.getHierarchy(start).getEntitiesBreadthFirst()) {
             ClassBean classBean = context.getRepresentation(entity);
             for (MethodModel method : classBean.getMethods()) {
                 for (DataHolderKey<? super MethodModel, Relation<?>> key : keys) {
@@ -120,39 +168,53 @@ public class MutableBeanImplementationGenerator extends EntityRepresentationGene
                     }
                 }
             }
-            for (Entity superEntity : entity.getSuperEntities()) {
-                queue.offer(superEntity);
+        }
+    }
+
+    private static void createField(final EntityContext context, final Relation<?> relation, final boolean lazyCollections) {
+        if (context.compactLayout) {
+            if (TypeTransformer.isPrimitiveBoolean(relation)) {
+                context.valueBits.put(relation, context.allocateBit());
+            }
+            else {
+                createValueField(context, relation, lazyCollections);
             }
+            if (MutableBeanInterfaceGenerator.isOptionalPrimitive(relation)) {
+                context.flagBits.put(relation, context.allocateBit());
+            }
+            return;
+        }
+
+        createValueField(context, relation, lazyCollections);
+        if (MutableBeanInterfaceGenerator.isOptionalPrimitive(relation)) {
+            FieldBean flag = new FieldBean()
+                    .setVisibility(Visibility.PRIVATE)
+                    .setType(TypeUtil.simpleType("", "boolean"))
+                    .setName(MutableBeanInterfaceGenerator.getHasValueName(relation));
+            context.flags.put(relation, flag);
+            context.classBean.getFields().add(flag);
         }
     }
 
-    private static void createField(final EntityContext context, final Relation<?> relation) {
+    private static void createValueField(final EntityContext context, final Relation<?> relation, final boolean lazyCollections) {
         final FieldBean field = new FieldBean()
                 .setVisibility(Visibility.PRIVATE)
                 .setType(context.types.relationToType(relation))
                 .setName(getFieldName(relation));
         if (relation.getMultiplicity().isCollection()) {
-            field.setFinal(true);
+            field.setFinal(!lazyCollections);
             field.put(ClassPrinter.FIELD_INITIALIZER, new PieceOfCode() {
                 @NotNull
                 @Override
                 public <E> E create(@NotNull CodeFactory<E> f) {
-                    ClassModel collectionClass;
-                    switch (relation.getMultiplicity()) {
-                        case LIST:
-                        case COLLECTION:
-                            collectionClass = ARRAY_LIST;
-                            break;
-                        case SET:
-                            collectionClass = HASH_SET;
-                            break;
-                        default:
-                            throw new IllegalStateException("Unknown collection multiplicity: " + relation.getMultiplicity());
+                    if (lazyCollections) {
+                        String emptyCollection = relation.getMultiplicity() == Multiplicity.SET ? "emptySet" : "emptyList";
+                        return f.methodCall(f.classReference(COLLECTIONS), emptyCollection, Collections.<E>emptyList());
+                    }
+                    if (context.smallCollections) {
+                        return newCollection(f, context, relation);
                     }
-                    TypeData elementType = context.types.targetToType(relation.getTarget(), Multiplicity.ONE);
-                    return f.constructorCall(collectionClass,
-                                             Collections.singletonList(elementType),
-                                             Collections.<E>singletonList(f.integer(0)));
+                    return newCollection(f, context, relation, f.integer(0));
                 }
             });
         }
@@ -160,6 +222,25 @@ public class MutableBeanImplementationGenerator extends EntityRepresentationGene
         context.classBean.getFields().add(field);
     }
 
+    private static <E> E newCollection(CodeFactory<E> f, EntityContext context, Relation<?> relation, E... arguments) {
+        ClassModel collectionClass;
+        switch (relation.getMultiplicity()) {
+            case LIST:
+            case COLLECTION:
+                collectionClass = context.smallCollections ? SMALL_LIST : ARRAY_LIST;
+                break;
+            case SET:
+                collectionClass = context.smallCollections ? SMALL_SET : HASH_SET;
+                break;
+            default:
+                throw new IllegalStateException("Unknown collection multiplicity: " + relation.getMultiplicity());
+        }
+        TypeData elementType = context.types.targetToType(relation.getTarget(), Multiplicity.ONE);
+        return f.constructorCall(collectionClass,
+                                 Collections.singletonList(elementType),
+                                 Arrays.asList(arguments));
+    }
+
     private static MethodBean implement(MethodModel method, PieceOfCode body) {
         return JavaDeclarationUtil.copy(method)
                 .addAnnotation(OVERRIDE)
@@ -171,102 +252,316 @@ public class MutableBeanImplementationGenerator extends EntityRepresentationGene
         PieceOfCode createBody(EntityContext context, MethodModel method);
     }
 
-    private static MethodImplementation GETTER_IMPL = new MethodImplementation() {
+    private static final String FIELD = "field";
+
+    private static final CodeTemplate GETTER_TEMPLATE = new CodeTemplate(FIELD) {
+        @NotNull
         @Override
-        public PieceOfCode createBody(final EntityContext context, final MethodModel method) {
-            return new PieceOfCode() {
-               @NotNull
-               @Override
-               public <E> E create(@NotNull CodeFactory<E> f) {
-                   Relation<?> relation = method.getData(MutableBeanInterfaceGenerator.GETTER);
-                   return f._return(
-                           f.fieldReference(f._this(), context.getField(relation).getName())
-                   );
-               }
-            };
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return f._return(
+                    f.fieldReference(f._this(), values.get(FIELD))
+            );
+        }
+    };
+
+    private static final CodeTemplate SETTER_TEMPLATE = new CodeTemplate(FIELD) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return CodeUtil.block(f,
+                                  f.assignment(
+                                          f.fieldReference(f._this(), values.get(FIELD)),
+                                          f.variableReference("value")),
+                                  f._return(f._this())
+            );
+        }
+    };
+
+    private static final String FLAG = "flag";
+
+    private static final CodeTemplate OPTIONAL_PRIMITIVE_SETTER_TEMPLATE = new CodeTemplate(FIELD, FLAG) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return CodeUtil.block(f,
+                                  f.assignment(
+                                          f.fieldReference(f._this(), values.get(FIELD)),
+                                          f.variableReference("value")),
+                                  f.assignment(
+                                          f.fieldReference(f._this(), values.get(FLAG)),
+                                          f._boolean(true)),
+                                  f._return(f._this())
+            );
         }
     };
 
-    private static MethodImplementation SETTER_IMPL = new MethodImplementation() {
+    private static final CodeTemplate ADDER_TEMPLATE = new CodeTemplate(FIELD) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return CodeUtil.block(f,
+                                  CodeUtil.methodCallStatement(f,
+                                                               f.fieldReference(f._this(), values.get(FIELD)),
+                                                               "add",
+                                                               f.variableReference("value")),
+                                  f._return(f._this())
+            );
+        }
+    };
+
+    private static final CodeTemplate ALL_ADDER_TEMPLATE = new CodeTemplate(FIELD) {
+        @NotNull
+        @Override
+        protected <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values) {
+            return CodeUtil.block(f,
+                                  CodeUtil.methodCallStatement(f,
+                                                               f.fieldReference(f._this(), values.get(FIELD)),
+                                                               "addAll",
+                                                               f.variableReference("values")),
+                                  f._return(f._this())
+            );
+        }
+    };
+
+    /**
+     * All the implementations are a single field access: the body is the template filled with the field name
+     */
+    private static class FieldTemplateImplementation implements MethodImplementation {
+        private final DataHolderKey<? super MethodModel, Relation<?>> key;
+        private final CodeTemplate template;
+
+        private FieldTemplateImplementation(DataHolderKey<? super MethodModel, Relation<?>> key, CodeTemplate template) {
+            this.key = key;
+            this.template = template;
+        }
+
         @Override
         public PieceOfCode createBody(final EntityContext context, final MethodModel method) {
             return new PieceOfCode() {
                 @NotNull
                 @Override
                 public <E> E create(@NotNull CodeFactory<E> f) {
-                    Relation<?> relation = method.getData(MutableBeanInterfaceGenerator.SETTER);
-                    return CodeUtil.block(f,
-                                          f.assignment(
-                                                  f.fieldReference(f._this(), context.getField(relation).getName()),
-                                                  f.variableReference("value")),
-                                          f._return(f._this())
-                    );
+                    Relation<?> relation = method.getData(key);
+                    return f.template(template, getTemplateValues(context, relation));
                 }
             };
         }
-    };
 
-    private static MethodImplementation ADDER_IMPL = new MethodImplementation() {
+        protected List<String> getTemplateValues(EntityContext context, Relation<?> relation) {
+            return Collections.singletonList(context.getField(relation).getName());
+        }
+    }
+
+    /**
+     * Allocates the collection if the field still holds the shared empty one, then adds to it
+     */
+    private static class LazyCollectionAdder implements MethodImplementation {
+        private final DataHolderKey<? super MethodModel, Relation<?>> key;
+        private final String addMethod;
+        private final String parameterName;
+
+        private LazyCollectionAdder(DataHolderKey<? super MethodModel, Relation<?>> key, String addMethod, String parameterName) {
+            this.key = key;
+            this.addMethod = addMethod;
+            this.parameterName = parameterName;
+        }
+
         @Override
         public PieceOfCode createBody(final EntityContext context, final MethodModel method) {
             return new PieceOfCode() {
                 @NotNull
                 @Override
                 public <E> E create(@NotNull CodeFactory<E> f) {
-                    Relation<?> relation = method.getData(MutableBeanInterfaceGenerator.ADDER);
+                    Relation<?> relation = method.getData(key);
+                    String field = context.getField(relation).getName();
+                    // Collections.emptyList() and emptySet() return these very instances
+                    String emptyCollection = relation.getMultiplicity() == Multiplicity.SET ? "EMPTY_SET" : "EMPTY_LIST";
                     return CodeUtil.block(f,
+                                          CodeUtil._if(f,
+                                                       f.binary(f.fieldReference(f._this(), field),
+                                                                BinaryOperation.EQ,
+                                                                f.fieldReference(f.classReference(COLLECTIONS), emptyCollection)),
+                                                       f.assignment(f.fieldReference(f._this(), field), newCollection(f, context, relation))),
                                           CodeUtil.methodCallStatement(f,
-                                                                       f.fieldReference(f._this(),
-                                                                                        context.fields.get(relation).getName()),
-                                                                       "add",
-                                                                       f.variableReference("value")),
+                                                                       f.fieldReference(f._this(), field),
+                                                                       addMethod,
+                                                                       f.variableReference(parameterName)),
                                           f._return(f._this())
                     );
                 }
             };
         }
-    };
+    }
+
+    /**
+     * Accessors of relations kept in bit-fields: boolean values are masked in and out, setting an optional primitive
+     * also sets its "has value" bit
+     */
+    private static class PackedImplementation implements MethodImplementation {
+        private final DataHolderKey<? super MethodModel, Relation<?>> key;
+
+        private PackedImplementation(DataHolderKey<? super MethodModel, Relation<?>> key) {
+            this.key = key;
+        }
 
-    private static MethodImplementation ALL_ADDER_IMPL = new MethodImplementation() {
         @Override
         public PieceOfCode createBody(final EntityContext context, final MethodModel method) {
             return new PieceOfCode() {
                 @NotNull
                 @Override
                 public <E> E create(@NotNull CodeFactory<E> f) {
-                    Relation<?> relation = method.getData(MutableBeanInterfaceGenerator.ALL_ADDER);
-                    return CodeUtil.block(f,
-                                          CodeUtil.methodCallStatement(f,
-                                                                       f.fieldReference(f._this(),
-                                                                                        context.getField(relation).getName()),
-                                                                       "addAll",
-                                                                       f.variableReference("values")),
-                                          f._return(f._this())
-                    );
+                    Relation<?> relation = method.getData(key);
+                    if (key == (Object) MutableBeanInterfaceGenerator.HAS_VALUE) {
+                        return f._return(bitIsSet(f, context.flagBits.get(relation)));
+                    }
+                    Bit valueBit = context.valueBits.get(relation);
+                    if (key == (Object) MutableBeanInterfaceGenerator.GETTER) {
+                        return f._return(valueBit != null
+                                         ? bitIsSet(f, valueBit)
+                                         : f.fieldReference(f._this(), context.getField(relation).getName()));
+                    }
+
+                    List<E> statements = Lists.newArrayList();
+                    E value = f.variableReference("value");
+                    if (valueBit != null) {
+                        // this.bits = this.bits & ~mask; if (value) this.bits = this.bits | mask;
+                        statements.add(updateBits(f, valueBit, BinaryOperation.AND, ~valueBit.mask));
+                        statements.add(CodeUtil._if(f, value, updateBits(f, valueBit, BinaryOperation.OR, valueBit.mask)));
+                    }
+                    else {
+                        statements.add(f.assignment(f.fieldReference(f._this(), context.getField(relation).getName()), value));
+                    }
+                    Bit flagBit = context.flagBits.get(relation);
+                    if (flagBit != null) {
+                        statements.add(updateBits(f, flagBit, BinaryOperation.OR, flagBit.mask));
+                    }
+                    statements.add(f._return(f._this()));
+                    return f.block(statements);
                 }
             };
         }
+
+        private static <E> E bitIsSet(CodeFactory<E> f, Bit bit) {
+            // (this.bits & mask) != 0
+            return f.binary(f.binary(f.fieldReference(f._this(), bit.field.getName()), BinaryOperation.AND, f.integer(bit.mask)),
+                            BinaryOperation.NEQ,
+                            f.integer(0));
+        }
+
+        private static <E> E updateBits(CodeFactory<E> f, Bit bit, BinaryOperation op, int operand) {
+            return f.assignment(f.fieldReference(f._this(), bit.field.getName()),
+                                f.binary(f.fieldReference(f._this(), bit.field.getName()), op, f.integer(operand)));
+        }
+    }
+
+    private static MethodImplementation GETTER_IMPL = new FieldTemplateImplementation(MutableBeanInterfaceGenerator.GETTER, GETTER_TEMPLATE);
+
+    private static MethodImplementation SETTER_IMPL = new FieldTemplateImplementation(MutableBeanInterfaceGenerator.SETTER, SETTER_TEMPLATE);
+
+    private static MethodImplementation ADDER_IMPL = new FieldTemplateImplementation(MutableBeanInterfaceGenerator.ADDER, ADDER_TEMPLATE);
+
+    private static MethodImplementation ALL_ADDER_IMPL = new FieldTemplateImplementation(MutableBeanInterfaceGenerator.ALL_ADDER, ALL_ADDER_TEMPLATE);
+
+    private static MethodImplementation HAS_VALUE_IMPL = new FieldTemplateImplementation(MutableBeanInterfaceGenerator.HAS_VALUE, GETTER_TEMPLATE) {
+        @Override
+        protected List<String> getTemplateValues(EntityContext context, Relation<?> relation) {
+            return Collections.singletonList(context.getFlag(relation).getName());
+        }
     };
 
+    private static MethodImplementation OPTIONAL_PRIMITIVE_SETTER_IMPL =
+            new FieldTemplateImplementation(MutableBeanInterfaceGenerator.SETTER, OPTIONAL_PRIMITIVE_SETTER_TEMPLATE) {
+                @Override
+                protected List<String> getTemplateValues(EntityContext context, Relation<?> relation) {
+                    return Arrays.asList(context.getField(relation).getName(), context.getFlag(relation).getName());
+                }
+            };
+
     private static Map<DataHolderKey<? super MethodModel, Relation<?>>, MethodImplementation> IMPLS = ImmutableMap.<DataHolderKey<? super MethodModel, Relation<?>>, MethodImplementation>builder()
             .put(MutableBeanInterfaceGenerator.GETTER, GETTER_IMPL)
             .put(MutableBeanInterfaceGenerator.SETTER, SETTER_IMPL)
             .put(MutableBeanInterfaceGenerator.ADDER, ADDER_IMPL)
             .put(MutableBeanInterfaceGenerator.ALL_ADDER, ALL_ADDER_IMPL)
+            .put(MutableBeanInterfaceGenerator.HAS_VALUE, HAS_VALUE_IMPL)
+            .build();
+
+    private static Map<DataHolderKey<? super MethodModel, Relation<?>>, MethodImplementation> LAZY_COLLECTION_IMPLS = ImmutableMap.<DataHolderKey<? super MethodModel, Relation<?>>, MethodImplementation>builder()
+            .put(MutableBeanInterfaceGenerator.ADDER, new LazyCollectionAdder(MutableBeanInterfaceGenerator.ADDER, "add", "value"))
+            .put(MutableBeanInterfaceGenerator.ALL_ADDER, new LazyCollectionAdder(MutableBeanInterfaceGenerator.ALL_ADDER, "addAll", "values"))
             .build();
 
+    private static Map<DataHolderKey<? super MethodModel, Relation<?>>, MethodImplementation> PACKED_IMPLS = ImmutableMap.<DataHolderKey<? super MethodModel, Relation<?>>, MethodImplementation>builder()
+            .put(MutableBeanInterfaceGenerator.GETTER, new PackedImplementation(MutableBeanInterfaceGenerator.GETTER))
+            .put(MutableBeanInterfaceGenerator.SETTER, new PackedImplementation(MutableBeanInterfaceGenerator.SETTER))
+            .put(MutableBeanInterfaceGenerator.HAS_VALUE, new PackedImplementation(MutableBeanInterfaceGenerator.HAS_VALUE))
+            .build();
+
+    private static final int BITS_PER_FIELD = 32;
+
+    /**
+     * One bit of an int bit-field
+     */
+    private static class Bit {
+        private final FieldModel field;
+        private final int mask;
+
+        private Bit(FieldModel field, int mask) {
+            this.field = field;
+            this.mask = mask;
+        }
+    }
+
     private static class EntityContext {
         private final Entity entity;
         private final ClassBean classBean;
         private final EntityRepresentationContext<ClassBean> context;
         private final TypeTransformer types;
+        private final boolean smallCollections;
         private final Map<Relation<?>, FieldModel> fields = Maps.newHashMap();
+        private final Map<Relation<?>, FieldModel> flags = Maps.newHashMap();
+        private final boolean compactLayout;
+        private final Map<Relation<?>, Bit> valueBits = Maps.newHashMap();
+        private final Map<Relation<?>, Bit> flagBits = Maps.newHashMap();
+        private FieldBean bitField;
+        private int bitCount;
 
-        private EntityContext(EntityRepresentationContext<ClassBean> context, Entity entity, ClassBean classBean) {
+        private EntityContext(
+                EntityRepresentationContext<ClassBean> context,
+                Entity entity,
+                ClassBean classBean,
+                boolean smallCollections,
+                boolean compactLayout
+        ) {
             this.context = context;
             this.types = types(context);
             this.entity = entity;
             this.classBean = classBean;
+            this.smallCollections = smallCollections;
+            this.compactLayout = compactLayout;
+        }
+
+        public boolean isAllocated(@NotNull Relation<?> relation) {
+            return fields.containsKey(relation) || valueBits.containsKey(relation) || flagBits.containsKey(relation);
+        }
+
+        public boolean isPacked(@NotNull Relation<?> relation) {
+            return valueBits.containsKey(relation) || flagBits.containsKey(relation);
+        }
+
+        /**
+         * Bit-fields are added to the class as the bits are needed: bits0, bits1 and so on
+         */
+        public Bit allocateBit() {
+            int index = bitCount % BITS_PER_FIELD;
+            if (index == 0) {
+                bitField = new FieldBean()
+                        .setVisibility(Visibility.PRIVATE)
+                        .setType(TypeUtil.simpleType("", "int"))
+                        .setName("bits" + bitCount / BITS_PER_FIELD);
+                classBean.getFields().add(bitField);
+            }
+            bitCount++;
+            return new Bit(bitField, 1 << index);
         }
 
         public FieldModel getField(@NotNull Relation<?> relation) {
@@ -276,6 +571,14 @@ public class MutableBeanImplementationGenerator extends EntityRepresentationGene
             }
             return field;
         }
+
+        public FieldModel getFlag(@NotNull Relation<?> relation) {
+            FieldModel flag = flags.get(relation);
+            if (flag == null) {
+                throw new IllegalArgumentException("No flag for relation " + relation.getName());
+            }
+            return flag;
+        }
     }
 
 }
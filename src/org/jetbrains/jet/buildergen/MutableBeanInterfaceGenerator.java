@@ -38,6 +38,7 @@ public class MutableBeanInterfaceGenerator extends EntityRepresentationGenerator
     public static DataHolderKey<MethodModel, Relation<?>> SETTER = DataHolderKeyImpl.create("SETTER");
     public static DataHolderKey<MethodModel, Relation<?>> ADDER = DataHolderKeyImpl.create("ADDER");
     public static DataHolderKey<MethodModel, Relation<?>> ALL_ADDER = DataHolderKeyImpl.create("ALL_ADDER");
+    public static DataHolderKey<MethodModel, Relation<?>> HAS_VALUE = DataHolderKeyImpl.create("HAS_VALUE");
 
     @NotNull
     @Override
@@ -61,6 +62,7 @@ public class MutableBeanInterfaceGenerator extends EntityRepresentationGenerator
 
         createGetters(c);
         createSettersAndAdders(c);
+        createValueChecks(c);
     }
 
     private static void createGetters(EntityContext context) {
@@ -88,6 +90,25 @@ public class MutableBeanInterfaceGenerator extends EntityRepresentationGenerator
         }
     }
 
+    // Optional primitives can't be null: hasX() tells whether X is set
+    private static void createValueChecks(EntityContext context) {
+        for (Relation<?> relation : context.entity.getRelations()) {
+            if (isOptionalPrimitive(relation)) {
+                context.classBean.getMethods().add(new MethodBean()
+                                                           .setVisibility(Visibility.PUBLIC)
+                                                           .setAbstract(true)
+                                                           .setReturnType(TypeUtil.simpleType("", "boolean"))
+                                                           .setName(getHasValueName(relation))
+                                                           .put(HAS_VALUE, relation)
+                );
+            }
+        }
+    }
+
+    public static boolean isOptionalPrimitive(Relation<?> relation) {
+        return relation.getMultiplicity() == Multiplicity.ZERO_OR_ONE && TypeTransformer.isPrimitive(relation);
+    }
+
     private static MethodBean createSetter(EntityContext context, Relation<?> relation) {
         return createSelfReturningMethod(context.classBean)
                 .setName(getSetterName(relation))
@@ -127,6 +148,10 @@ public class MutableBeanInterfaceGenerator extends EntityRepresentationGenerator
         return new ParameterBean().addAnnotation(NOT_NULL).setType(type).setName("values");
     }
 
+    public static String getHasValueName(Relation<?> relation) {
+        return "has" + relation.getName();
+    }
+
     public static String getAllElementAdderName(Relation<?> relation) {
         return "addAllTo" + relation.getName();
     }
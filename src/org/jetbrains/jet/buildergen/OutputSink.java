@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Where generated files go: a source tree ({@link GeneratedFilesManifest}) or a single archive ({@link ZipOutputSink}).
+ * Paths are relative and separated by '/'. Files may be written concurrently
+ *
+ * @author abreslav
+ */
+public interface OutputSink {
+
+    interface Content {
+        void writeTo(@NotNull Writer writer) throws IOException;
+    }
+
+    /**
+     * @return true if the file was written, false if the same content was already there
+     */
+    boolean write(@NotNull String relativePath, @NotNull Content content) throws IOException;
+
+    boolean write(@NotNull String relativePath, @NotNull byte[] bytes) throws IOException;
+
+    /**
+     * Whether the file is left from the previous run: if it's up to date, it needs not be written again
+     */
+    boolean exists(@NotNull String relativePath);
+
+    /**
+     * The file is still generated but was not rendered in this run. Only called if {@link #exists(String)} returned true
+     */
+    void retain(@NotNull String relativePath);
+
+    /**
+     * Called once all the files are written
+     */
+    void close() throws IOException;
+
+    /**
+     * Called instead of {@link #close()} if generation fails
+     */
+    void abort();
+}
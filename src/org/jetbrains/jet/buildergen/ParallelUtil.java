@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * @author abreslav
+ */
+public class ParallelUtil {
+
+    /**
+     * Runs the tasks on the executor (or in the current thread if there's no executor)
+     * and returns their results in the order of the tasks
+     */
+    @NotNull
+    public static <T> List<T> invokeAll(@Nullable ExecutorService executor, @NotNull List<? extends Callable<T>> tasks) {
+        List<T> result = Lists.newArrayListWithCapacity(tasks.size());
+        if (executor == null) {
+            for (Callable<T> task : tasks) {
+                result.add(call(task));
+            }
+            return result;
+        }
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                result.add(future.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for generation tasks", e);
+        }
+        catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+        return result;
+    }
+
+    private static <T> T call(Callable<T> task) {
+        try {
+            return task.call();
+        }
+        catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new IllegalStateException(e);
+    }
+
+    private ParallelUtil() {}
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.entities.EntityUtil;
+import org.jetbrains.jet.buildergen.entities.Multiplicity;
+import org.jetbrains.jet.buildergen.entities.Relation;
+import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.code.CodeFactory;
+import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
+import org.jetbrains.jet.buildergen.java.declarations.ClassKind;
+import org.jetbrains.jet.buildergen.java.declarations.Visibility;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+import org.jetbrains.jet.buildergen.java.declarations.beans.FieldBean;
+import org.jetbrains.jet.buildergen.java.declarations.beans.JavaDeclarationUtil;
+import org.jetbrains.jet.buildergen.java.declarations.beans.MethodBean;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ParameterBean;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.jetbrains.jet.buildergen.java.types.TypeUtil;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable beans: all the fields are final, an updater creates a new bean that shares all the other values
+ * with this one. Collections are {@link org.jetbrains.jet.buildergen.runtime.PersistentList}
+ * and {@link org.jetbrains.jet.buildergen.runtime.PersistentSet}: adding an element copies only the path to it,
+ * so deriving a changed bean never copies whole collections or sub-beans.
+ *
+ * @author abreslav
+ */
+public class PersistentBeanImplementationGenerator extends EntityRepresentationGenerator {
+
+    private final EntityRepresentationContext<ClassBean> persistentBeanInterfaces;
+
+    public PersistentBeanImplementationGenerator(EntityRepresentationContext<ClassBean> persistentBeanInterfaces) {
+        this.persistentBeanInterfaces = persistentBeanInterfaces;
+    }
+
+    @NotNull
+    @Override
+    protected ClassKind getClassKind() {
+        return ClassKind.CLASS;
+    }
+
+    @Override
+    public String getEntityRepresentationName(@NotNull Entity entity) {
+        return entity.getName() + "PersistentBeanImpl";
+    }
+
+    @Override
+    protected void generateSupertypes(EntityRepresentationContext<ClassBean> context, ClassBean classBean, Entity entity) {
+        classBean.getSuperInterfaces().add(TypeUtil.simpleType(persistentBeanInterfaces.getRepresentation(entity)));
+    }
+
+    @Override
+    protected void generateClassMembers(EntityRepresentationContext<ClassBean> context, ClassBean classBean, Entity entity) {
+        ClassBean interfaceBean = persistentBeanInterfaces.getRepresentation(entity);
+        TypeTransformer types = types(persistentBeanInterfaces);
+        List<Relation<?>> relations = Lists.newArrayList(EntityUtil.getAllRelations(entity));
+
+        for (Relation<?> relation : relations) {
+            classBean.getFields().add(new FieldBean()
+                                              .setVisibility(Visibility.PRIVATE)
+                                              .setFinal(true)
+                                              .setType(getFieldType(types, relation))
+                                              .setName(getFieldName(relation)));
+        }
+
+        classBean.getConstructors().add(createEmptyBeanConstructor(relations));
+        classBean.getConstructors().add(createConstructor(types, relations));
+
+        for (Relation<?> relation : relations) {
+            classBean.getMethods().add(createGetter(types, relation));
+        }
+        for (Relation<?> relation : relations) {
+            classBean.getMethods().add(
+                    implement(PersistentBeanInterfaceGenerator.createWither(types, interfaceBean, relation),
+                              createWitherBody(classBean, relations, relation, false)));
+            if (relation.getMultiplicity().isCollection()) {
+                classBean.getMethods().add(
+                        implement(PersistentBeanInterfaceGenerator.createElementWither(types, interfaceBean, relation),
+                                  createWitherBody(classBean, relations, relation, true)));
+            }
+        }
+    }
+
+    static TypeData getFieldType(TypeTransformer types, Relation<?> relation) {
+        if (relation.getMultiplicity().isCollection()) {
+            return PersistentBeanInterfaceGenerator.getCollectionType(types, relation);
+        }
+        return types.relationToNullableType(relation, TypeTransformer.Variance.NONE);
+    }
+
+    /**
+     * The public constructor creates a bean with empty collections and default values
+     */
+    private static MethodBean createEmptyBeanConstructor(final List<Relation<?>> relations) {
+        return JavaDeclarationUtil.publicConstructor()
+                .put(ClassPrinter.METHOD_BODY, new PieceOfCode() {
+                    @NotNull
+                    @Override
+                    public <E> E create(@NotNull CodeFactory<E> f) {
+                        List<E> statements = Lists.newArrayList();
+                        for (Relation<?> relation : relations) {
+                            statements.add(f.assignment(f.fieldReference(f._this(), getFieldName(relation)), defaultValue(f, relation)));
+                        }
+                        return f.block(statements);
+                    }
+                });
+    }
+
+    private static <E> E defaultValue(CodeFactory<E> f, Relation<?> relation) {
+        if (relation.getMultiplicity().isCollection()) {
+            return f.methodCall(f.classReference(PersistentBeanInterfaceGenerator.getCollectionClass(relation)), "empty", Collections.<E>emptyList());
+        }
+        if (relation.getMultiplicity() == Multiplicity.ZERO_OR_ONE || !TypeTransformer.isPrimitive(relation)) {
+            return f._null();
+        }
+        return TypeTransformer.isPrimitiveBoolean(relation) ? f._boolean(false) : f.integer(0);
+    }
+
+    /**
+     * Takes all the values, in the order of {@link EntityUtil#getAllRelations(Entity)}: updaters and
+     * {@link ToPersistentBeanGenerator conversions} share the unchanged ones
+     */
+    private static MethodBean createConstructor(TypeTransformer types, final List<Relation<?>> relations) {
+        MethodBean constructor = JavaDeclarationUtil.publicConstructor();
+        for (Relation<?> relation : relations) {
+            constructor.addParameter(new ParameterBean()
+                                             .setType(getFieldType(types, relation))
+                                             .setName(getFieldName(relation)));
+        }
+        return constructor.put(ClassPrinter.METHOD_BODY, new PieceOfCode() {
+            @NotNull
+            @Override
+            public <E> E create(@NotNull CodeFactory<E> f) {
+                List<E> statements = Lists.newArrayList();
+                for (Relation<?> relation : relations) {
+                    String name = getFieldName(relation);
+                    statements.add(f.assignment(f.fieldReference(f._this(), name), f.variableReference(name)));
+                }
+                return f.block(statements);
+            }
+        });
+    }
+
+    private static MethodBean createGetter(TypeTransformer types, final Relation<?> relation) {
+        return new MethodBean()
+                .addAnnotation(OVERRIDE)
+                .setVisibility(Visibility.PUBLIC)
+                .setReturnType(PersistentBeanInterfaceGenerator.getGetterType(types, relation))
+                .setName(getGetterName(relation))
+                .put(ClassPrinter.METHOD_BODY, new PieceOfCode() {
+                    @NotNull
+                    @Override
+                    public <E> E create(@NotNull CodeFactory<E> f) {
+                        return f._return(f.fieldReference(f._this(), getFieldName(relation)));
+                    }
+                });
+    }
+
+    /**
+     * new XPersistentBeanImpl(this.a, <new value of b>, this.c, ...)
+     */
+    private static PieceOfCode createWitherBody(
+            final ClassBean classBean,
+            final List<Relation<?>> relations,
+            final Relation<?> changed,
+            final boolean addElement
+    ) {
+        return new PieceOfCode() {
+            @NotNull
+            @Override
+            public <E> E create(@NotNull CodeFactory<E> f) {
+                List<E> arguments = Lists.newArrayList();
+                for (Relation<?> relation : relations) {
+                    E field = f.fieldReference(f._this(), getFieldName(relation));
+                    if (relation != changed) {
+                        arguments.add(field);
+                    }
+                    else if (addElement) {
+                        arguments.add(f.methodCall(field, "plus", Collections.singletonList(f.variableReference("value"))));
+                    }
+                    else if (relation.getMultiplicity().isCollection()) {
+                        // A persistent collection is taken as is, others are copied
+                        arguments.add(f.methodCall(f.classReference(PersistentBeanInterfaceGenerator.getCollectionClass(relation)), "copyOf",
+                                                   Collections.singletonList(f.variableReference("values"))));
+                    }
+                    else {
+                        arguments.add(f.variableReference("value"));
+                    }
+                }
+                return f._return(f.constructorCall(classBean, Collections.<TypeData>emptyList(), arguments));
+            }
+        };
+    }
+
+    private static MethodBean implement(MethodBean method, PieceOfCode body) {
+        return method
+                .addAnnotation(OVERRIDE)
+                .setAbstract(false)
+                .put(ClassPrinter.METHOD_BODY, body);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.entities.EntityUtil;
+import org.jetbrains.jet.buildergen.entities.Multiplicity;
+import org.jetbrains.jet.buildergen.entities.Relation;
+import org.jetbrains.jet.buildergen.java.declarations.ClassKind;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+import org.jetbrains.jet.buildergen.java.declarations.Visibility;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+import org.jetbrains.jet.buildergen.java.declarations.beans.MethodBean;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ParameterBean;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
+import org.jetbrains.jet.buildergen.java.types.TypeUtil;
+
+/**
+ * Interfaces of immutable beans: instead of setters and adders, withX() and withAddedToX() return a copy of the bean
+ * with one relation changed. Optional primitives are boxed, null stands for no value.
+ *
+ * Collections are returned as {@link org.jetbrains.jet.buildergen.runtime.PersistentList}
+ * and {@link org.jetbrains.jet.buildergen.runtime.PersistentSet}, so that one element is replaced without copying
+ * the others: {@code bean.withX(bean.getX().with(i, value))}.
+ *
+ * Updaters of inherited relations are redeclared, so that they return the most specific interface.
+ *
+ * @author abreslav
+ */
+public class PersistentBeanInterfaceGenerator extends EntityRepresentationGenerator {
+
+    private static final String RUNTIME_PACKAGE = "org.jetbrains.jet.buildergen.runtime";
+
+    private static final ClassModel PERSISTENT_LIST = new ClassBean()
+            .setPackageFqName(RUNTIME_PACKAGE)
+            .setName("PersistentList");
+
+    private static final ClassModel PERSISTENT_SET = new ClassBean()
+            .setPackageFqName(RUNTIME_PACKAGE)
+            .setName("PersistentSet");
+
+    @NotNull
+    @Override
+    protected ClassKind getClassKind() {
+        return ClassKind.INTERFACE;
+    }
+
+    @Override
+    public String getEntityRepresentationName(@NotNull Entity entity) {
+        return entity.getName() + "PersistentBean";
+    }
+
+    @Override
+    protected void generateSupertypes(EntityRepresentationContext<ClassBean> context, ClassBean classBean, Entity entity) {
+        generateSupertypesFromSuperEntities(context, classBean, entity);
+    }
+
+    @Override
+    protected void generateClassMembers(EntityRepresentationContext<ClassBean> context, ClassBean classBean, Entity entity) {
+        TypeTransformer types = types(context);
+        for (Relation<?> relation : entity.getRelations()) {
+            classBean.getMethods().add(new MethodBean()
+                                               .setVisibility(Visibility.PUBLIC)
+                                               .setAbstract(true)
+                                               .setReturnType(getGetterType(types, relation))
+                                               .setName(getGetterName(relation))
+            );
+        }
+        for (Relation<?> relation : EntityUtil.getAllRelations(entity)) {
+            classBean.getMethods().add(createWither(types, classBean, relation));
+            if (relation.getMultiplicity().isCollection()) {
+                classBean.getMethods().add(createElementWither(types, classBean, relation));
+            }
+        }
+    }
+
+    static TypeData getGetterType(TypeTransformer types, Relation<?> relation) {
+        if (relation.getMultiplicity().isCollection()) {
+            return getCollectionType(types, relation);
+        }
+        return types.relationToNullableType(relation, TypeTransformer.Variance.OUT);
+    }
+
+    /**
+     * No wildcard: a collection taken from a bean can be changed and passed back to withX()
+     */
+    static TypeData getCollectionType(TypeTransformer types, Relation<?> relation) {
+        assert relation.getMultiplicity().isCollection();
+
+        TypeData elementType = types.targetToType(relation.getTarget(), Multiplicity.ONE);
+        return TypeNode.constructed(RUNTIME_PACKAGE, getCollectionClass(relation).getName(), TypeNode.of(elementType));
+    }
+
+    static ClassModel getCollectionClass(Relation<?> relation) {
+        return relation.getMultiplicity() == Multiplicity.SET ? PERSISTENT_SET : PERSISTENT_LIST;
+    }
+
+    /**
+     * Collections are replaced as a whole, other values are replaced by the given one
+     */
+    static MethodBean createWither(TypeTransformer types, ClassBean classBean, Relation<?> relation) {
+        ParameterBean parameter;
+        if (relation.getMultiplicity().isCollection()) {
+            TypeData type = types.targetToType(relation.getTarget(), Multiplicity.COLLECTION, TypeTransformer.Variance.OUT);
+            parameter = new ParameterBean().addAnnotation(NOT_NULL).setType(type).setName("values");
+        }
+        else {
+            parameter = new ParameterBean().setType(types.relationToNullableType(relation, TypeTransformer.Variance.NONE)).setName("value");
+        }
+        return createSelfReturningMethod(classBean)
+                .setName(getWitherName(relation))
+                .addParameter(parameter);
+    }
+
+    static MethodBean createElementWither(TypeTransformer types, ClassBean classBean, Relation<?> relation) {
+        assert relation.getMultiplicity().isCollection();
+
+        return createSelfReturningMethod(classBean)
+                .setName(getElementWitherName(relation))
+                .addParameter(new ParameterBean()
+                                      .setType(types.targetToType(relation.getTarget(), Multiplicity.ONE))
+                                      .setName("value"));
+    }
+
+    public static String getWitherName(Relation<?> relation) {
+        return "with" + relation.getName();
+    }
+
+    public static String getElementWitherName(Relation<?> relation) {
+        return "withAddedTo" + relation.getName();
+    }
+
+    private static MethodBean createSelfReturningMethod(ClassBean classBean) {
+        return new MethodBean()
+                .addAnnotation(NOT_NULL)
+                .setVisibility(Visibility.PUBLIC)
+                .setAbstract(true)
+                .setReturnType(TypeUtil.simpleType(classBean));
+    }
+}
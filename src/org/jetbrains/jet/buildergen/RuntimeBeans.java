@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.java.bytecode.ClassFileWriter;
+import org.jetbrains.jet.buildergen.java.bytecode.ClassHierarchy;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Beans, builders and utils generated at runtime for entity interfaces that are not known at build time.
+ * Class files are defined by a class loader of their own, one per entity set; repeated requests for the same set
+ * return the classes generated the first time, as long as these are in use. Nothing is held after that,
+ * so that both the generated classes and the entity classes can be unloaded.
+ *
+ * @author abreslav
+ */
+public class RuntimeBeans {
+
+    private static final String PACKAGE_PREFIX = "org.jetbrains.jet.buildergen.generated.";
+    public static final String MUTABLE_BEAN_PACKAGE = PACKAGE_PREFIX + "beans";
+    public static final String MUTABLE_BEAN_CLASS_PACKAGE = PACKAGE_PREFIX + "beans.impl";
+    public static final String BUILDER_CLASS_PACKAGE = PACKAGE_PREFIX + "builders";
+    public static final String BEAN_BUILDER_PACKAGE = PACKAGE_PREFIX + "beans.builders";
+
+    // Weak in both keys and values: the cache must not keep entity classes or generated classes from being unloaded.
+    // Entity sets are keyed by class names, as seen from the loader that defines the entities
+    private static final ConcurrentMap<ClassLoader, ConcurrentMap<Set<String>, RuntimeBeans>> CACHE =
+            new MapMaker().weakKeys().makeMap();
+
+    @NotNull
+    public static RuntimeBeans forEntities(@NotNull Collection<? extends Class<?>> entityClasses) {
+        Set<Class<?>> classes = ImmutableSet.copyOf(entityClasses);
+        ClassLoader parent = getParentLoader(classes);
+        Set<String> key = getClassNames(classes);
+
+        RuntimeBeans beans = getCached(parent, key, classes);
+        if (beans != null) {
+            return beans;
+        }
+        synchronized (CACHE) {
+            beans = getCached(parent, key, classes);
+            if (beans == null) {
+                beans = generate(classes, parent);
+                ConcurrentMap<Set<String>, RuntimeBeans> beansByEntities = CACHE.get(parent);
+                if (beansByEntities == null) {
+                    beansByEntities = new MapMaker().weakValues().makeMap();
+                    CACHE.put(parent, beansByEntities);
+                }
+                beansByEntities.put(key, beans);
+            }
+            return beans;
+        }
+    }
+
+    @Nullable
+    private static RuntimeBeans getCached(@NotNull ClassLoader parent, @NotNull Set<String> key, @NotNull Set<Class<?>> classes) {
+        ConcurrentMap<Set<String>, RuntimeBeans> beansByEntities = CACHE.get(parent);
+        if (beansByEntities == null) {
+            return null;
+        }
+        RuntimeBeans beans = beansByEntities.get(key);
+        // Classes of the same names may come from other loaders
+        return beans != null && beans.entities.keySet().equals(classes) ? beans : null;
+    }
+
+    @NotNull
+    private static ClassLoader getParentLoader(@NotNull Set<Class<?>> entityClasses) {
+        // Generated code refers to the entity classes, so they must be visible to the parent loader
+        return entityClasses.isEmpty() ? RuntimeBeans.class.getClassLoader()
+                                       : entityClasses.iterator().next().getClassLoader();
+    }
+
+    @NotNull
+    private static Set<String> getClassNames(@NotNull Set<Class<?>> classes) {
+        ImmutableSet.Builder<String> names = ImmutableSet.builder();
+        for (Class<?> entityClass : classes) {
+            names.add(entityClass.getName());
+        }
+        return names.build();
+    }
+
+    @NotNull
+    private static RuntimeBeans generate(@NotNull Set<Class<?>> entityClasses, @NotNull ClassLoader parent) {
+        EntityRepresentationContext<ClassBean> dataClasses = new ConcurrentRepresentationContext<ClassBean>();
+        EntityBuilder.javaClassesToEntities(entityClasses, dataClasses);
+
+        List<ClassModel> classes = BeanGenerator.generateClasses(dataClasses, MUTABLE_BEAN_PACKAGE, MUTABLE_BEAN_CLASS_PACKAGE,
+                                                                 BUILDER_CLASS_PACKAGE, BEAN_BUILDER_PACKAGE, null);
+
+        ClassHierarchy hierarchy = new ClassHierarchy(classes, parent);
+
+        Map<String, byte[]> classFiles = Maps.newHashMap();
+        Map<Pair<String, String>, String> representations = Maps.newHashMap();
+        for (ClassModel classModel : classes) {
+            String className = classModel.getPackageFqName() + "." + classModel.getName();
+            classFiles.put(className, ClassFileWriter.writeClass(classModel, hierarchy));
+            Entity entity = classModel.getData(EntityRepresentationGenerator.ENTITY);
+            if (entity != null) {
+                representations.put(Pair.create(entity.getName(), classModel.getPackageFqName()), className);
+            }
+        }
+
+        // Entities are registered in the order of the classes
+        Map<Class<?>, Entity> entities = Maps.newHashMap();
+        Iterator<Entity> entityIterator = dataClasses.getEntities().iterator();
+        for (Class<?> entityClass : entityClasses) {
+            entities.put(entityClass, entityIterator.next());
+        }
+
+        BeansClassLoader classLoader = new BeansClassLoader(parent, classFiles);
+        RuntimeBeans beans = new RuntimeBeans(classLoader, entities, representations);
+        classLoader.beans = beans;
+        return beans;
+    }
+
+    /**
+     * Keeps the cache entry alive as long as any of the generated classes is
+     */
+    private static class BeansClassLoader extends GeneratedClassLoader {
+        @SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
+        private RuntimeBeans beans;
+
+        private BeansClassLoader(@NotNull ClassLoader parent, @NotNull Map<String, byte[]> classFiles) {
+            super(parent, classFiles);
+        }
+    }
+
+    private final ClassLoader classLoader;
+    private final Map<Class<?>, Entity> entities;
+    private final Map<Pair<String, String>, String> representations;
+
+    private RuntimeBeans(
+            @NotNull ClassLoader classLoader,
+            @NotNull Map<Class<?>, Entity> entities,
+            @NotNull Map<Pair<String, String>, String> representations
+    ) {
+        this.classLoader = classLoader;
+        this.entities = entities;
+        this.representations = representations;
+    }
+
+    @NotNull
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    @NotNull
+    public Class<?> getBeanInterface(@NotNull Class<?> entityClass) {
+        return getRepresentation(entityClass, MUTABLE_BEAN_PACKAGE);
+    }
+
+    @NotNull
+    public Class<?> getBeanImplementation(@NotNull Class<?> entityClass) {
+        return getRepresentation(entityClass, MUTABLE_BEAN_CLASS_PACKAGE);
+    }
+
+    @NotNull
+    public Class<?> getBuilder(@NotNull Class<?> entityClass) {
+        return getRepresentation(entityClass, BUILDER_CLASS_PACKAGE);
+    }
+
+    @NotNull
+    public Class<?> getBeanBuilder(@NotNull Class<?> entityClass) {
+        return getRepresentation(entityClass, BEAN_BUILDER_PACKAGE);
+    }
+
+    @NotNull
+    public Class<?> getBeanUtil() {
+        return loadClass(MUTABLE_BEAN_PACKAGE + ".BeanUtil");
+    }
+
+    @NotNull
+    public Class<?> getDataToBean() {
+        return loadClass(MUTABLE_BEAN_PACKAGE + ".DataToBean");
+    }
+
+    @NotNull
+    public Class<?> getDataBuilder() {
+        return loadClass(BUILDER_CLASS_PACKAGE + ".DataBuilder");
+    }
+
+    @NotNull
+    private Class<?> getRepresentation(@NotNull Class<?> entityClass, @NotNull String packageName) {
+        Entity entity = entities.get(entityClass);
+        if (entity == null) {
+            throw new IllegalArgumentException("Not an entity of this set: " + entityClass);
+        }
+        return loadClass(representations.get(Pair.create(entity.getName(), packageName)));
+    }
+
+    @NotNull
+    private Class<?> loadClass(@NotNull String className) {
+        try {
+            return classLoader.loadClass(className);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Generated class not found: " + className, e);
+        }
+    }
+}
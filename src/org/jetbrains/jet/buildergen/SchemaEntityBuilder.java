@@ -0,0 +1,450 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.*;
+import org.jetbrains.jet.buildergen.java.declarations.WildcardKind;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
+import org.jetbrains.jet.buildergen.java.types.TypeUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the same model as {@link EntityBuilder} from a schema, so that no entity classes are needed at all.
+ * The schema is read line by line, in one pass:
+ * <pre>
+ * # Comments start with '#'
+ * package org.example.descriptors
+ *
+ * entity Named
+ *     Name : String
+ *
+ * entity Decl extends Named
+ *     Annotations : String LIST
+ *     ContainingDeclaration : Decl @Optional @Reference
+ *     Extras : java.util.Map&lt;String, ? extends Number&gt; @Skip
+ * </pre>
+ * Entities belong to the last package declared before them and may be referred to before they are declared.
+ * A relation target is an entity or a Java type: primitive type arguments and collection elements are boxed,
+ * unqualified names are taken from java.lang, and the package of a qualified name ends before the first segment
+ * that starts with an upper case letter.
+ * The multiplicity is {@code ONE} unless given; for collections the target is the element type.
+ *
+ * @author abreslav
+ */
+public class SchemaEntityBuilder {
+
+    private static final String PACKAGE = "package";
+    private static final String ENTITY = "entity";
+    private static final String EXTENDS = "extends";
+
+    private static final String OPTIONAL = "@Optional";
+    private static final String REFERENCE = "@Reference";
+    private static final String SKIP = "@Skip";
+
+    private static final Map<String, TypeNode> PRIMITIVE_TO_BOXED = ImmutableMap.<String, TypeNode>builder()
+            .put("byte", TypeUtil.simpleType("java.lang", "Byte"))
+            .put("short", TypeUtil.simpleType("java.lang", "Short"))
+            .put("int", TypeUtil.simpleType("java.lang", "Integer"))
+            .put("long", TypeUtil.simpleType("java.lang", "Long"))
+            .put("float", TypeUtil.simpleType("java.lang", "Float"))
+            .put("double", TypeUtil.simpleType("java.lang", "Double"))
+            .put("char", TypeUtil.simpleType("java.lang", "Character"))
+            .put("boolean", TypeUtil.simpleType("java.lang", "Boolean"))
+            .build();
+
+    public static void schemaToEntities(
+            @NotNull Reader schema,
+            @NotNull EntityRepresentationContext<ClassBean> context
+    ) throws IOException {
+        Context c = new Context();
+        BufferedReader reader = schema instanceof BufferedReader ? (BufferedReader) schema : new BufferedReader(schema);
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            c.lineNumber++;
+            int commentStart = line.indexOf('#');
+            parseLine(c, (commentStart < 0 ? line : line.substring(0, commentStart)).trim());
+        }
+
+        // Everything is declared now: forward references can be resolved
+        for (EntityDeclaration declaration : c.declarations) {
+            EntityImpl entity = c.entities.get(declaration.name);
+            context.registerRepresentation(entity, new ClassBean().setPackageFqName(declaration.packageFqName).setName(declaration.name));
+
+            for (String superEntityName : declaration.superEntities) {
+                entity.getSuperEntities().add(c.safeGet(superEntityName, declaration.lineNumber));
+            }
+            for (RelationDeclaration relationDeclaration : declaration.relations) {
+                entity.getRelations().add(createRelation(c, relationDeclaration));
+            }
+        }
+        EntityBuilder.bindOverriddenRelations(c.getEntities());
+
+        EntityBuilder.removeOverriddenRelations(c.getEntities());
+    }
+
+    private static void parseLine(Context c, String line) {
+        if (line.isEmpty()) return;
+        if (startsWithKeyword(line, PACKAGE)) {
+            c.packageFqName = line.substring(PACKAGE.length()).trim();
+            if (c.packageFqName.isEmpty()) {
+                throw c.error("Package name expected");
+            }
+        }
+        else if (startsWithKeyword(line, ENTITY)) {
+            parseEntity(c, line.substring(ENTITY.length()).trim());
+        }
+        else {
+            if (c.currentEntity == null) {
+                throw c.error("Relations must follow an entity: " + line);
+            }
+            parseRelation(c, line);
+        }
+    }
+
+    private static boolean startsWithKeyword(String line, String keyword) {
+        return line.startsWith(keyword) && (line.length() == keyword.length() || Character.isWhitespace(line.charAt(keyword.length())));
+    }
+
+    private static void parseEntity(Context c, String text) {
+        String name = text;
+        EntityDeclaration declaration = new EntityDeclaration(c.lineNumber, c.packageFqName);
+        int extendsIndex = text.indexOf(" " + EXTENDS + " ");
+        if (extendsIndex >= 0) {
+            name = text.substring(0, extendsIndex).trim();
+            for (String superEntity : text.substring(extendsIndex + EXTENDS.length() + 2).split(",")) {
+                declaration.superEntities.add(checkIdentifier(c, superEntity.trim()));
+            }
+        }
+        declaration.name = checkIdentifier(c, name);
+
+        EntityImpl entity = new EntityImpl(declaration.name);
+        entity.put(EntityBuilder.DATA_CLASS, new EntityBuilder.ClassName(c.packageFqName, declaration.name));
+        if (c.entities.put(declaration.name, entity) != null) {
+            throw c.error("Duplicate entity: " + declaration.name);
+        }
+        c.declarations.add(declaration);
+        c.currentEntity = declaration;
+    }
+
+    private static void parseRelation(Context c, String line) {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+            throw c.error("Relation expected: " + line);
+        }
+        RelationDeclaration relation = new RelationDeclaration(c.lineNumber, checkIdentifier(c, line.substring(0, colon).trim()));
+
+        // The target type may contain spaces, the multiplicity and the flags are taken from the end
+        String rest = line.substring(colon + 1).trim();
+        while (true) {
+            int lastSpace = lastIndexOfWhitespace(rest);
+            String last = rest.substring(lastSpace + 1);
+            if (last.equals(OPTIONAL)) {
+                relation.optional = true;
+            }
+            else if (last.equals(REFERENCE)) {
+                relation.reference = true;
+            }
+            else if (last.equals(SKIP)) {
+                relation.skip = true;
+            }
+            else if (lastSpace >= 0 && isMultiplicity(last)) {
+                relation.multiplicity = Multiplicity.valueOf(last);
+            }
+            else {
+                break;
+            }
+            if (lastSpace < 0) {
+                throw c.error("Relation target expected: " + line);
+            }
+            rest = rest.substring(0, lastSpace).trim();
+        }
+        relation.target = rest;
+
+        if (!relation.skip) {
+            c.currentEntity.relations.add(relation);
+        }
+    }
+
+    private static int lastIndexOfWhitespace(String text) {
+        for (int i = text.length() - 1; i >= 0; i--) {
+            if (Character.isWhitespace(text.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isMultiplicity(String text) {
+        for (Multiplicity multiplicity : Multiplicity.values()) {
+            if (multiplicity.name().equals(text)) return true;
+        }
+        return false;
+    }
+
+    private static String checkIdentifier(Context c, String name) {
+        if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            throw c.error("Identifier expected: '" + name + "'");
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+                throw c.error("Identifier expected: '" + name + "'");
+            }
+        }
+        return name;
+    }
+
+    private static RelationWithTarget<?> createRelation(Context c, RelationDeclaration declaration) {
+        Multiplicity multiplicity = declaration.multiplicity;
+        // Like @Optional on a getter, the flag doesn't affect collections
+        if (declaration.optional && multiplicity == Multiplicity.ONE) {
+            multiplicity = Multiplicity.ZERO_OR_ONE;
+        }
+        RelationWithTarget<?> relation;
+        EntityImpl targetEntity = c.entities.get(declaration.target);
+        if (targetEntity != null) {
+            relation = new RelationWithTarget<Entity>(multiplicity, declaration.name, targetEntity);
+        }
+        else {
+            relation = new RelationWithTarget<TypeNode>(multiplicity, declaration.name,
+                                                        new TypeParser(c, declaration.target, declaration.lineNumber).parseTarget(!multiplicity.isCollection()));
+        }
+        if (declaration.reference) {
+            relation.put(EntityBuilder.REFERENCE, true);
+        }
+        return relation;
+    }
+
+    /**
+     * Writes a schema describing the given model, e.g. one built by {@link EntityBuilder}
+     */
+    public static void writeSchema(@NotNull Collection<Entity> entities, @NotNull Writer out) throws IOException {
+        String packageFqName = null;
+        for (Entity entity : entities) {
+            EntityBuilder.ClassName dataClass = entity.getData(EntityBuilder.DATA_CLASS);
+            if (!dataClass.getPackageFqName().equals(packageFqName)) {
+                packageFqName = dataClass.getPackageFqName();
+                out.append(PACKAGE).append(" ").append(packageFqName).append("\n\n");
+            }
+            out.append(ENTITY).append(" ").append(entity.getName());
+            String separator = " " + EXTENDS + " ";
+            for (Entity superEntity : entity.getSuperEntities()) {
+                out.append(separator).append(superEntity.getName());
+                separator = ", ";
+            }
+            out.append("\n");
+            for (Relation<?> relation : entity.getRelations()) {
+                Object target = relation.getTarget();
+                out.append("    ").append(relation.getName()).append(" : ")
+                        .append(target instanceof Entity ? ((Entity) target).getName() : EntityModelCache.targetToTypeNode(target).toString());
+                if (relation.getMultiplicity() != Multiplicity.ONE) {
+                    out.append(" ").append(relation.getMultiplicity().name());
+                }
+                if (relation.getData(EntityBuilder.REFERENCE) == Boolean.TRUE) {
+                    out.append(" ").append(REFERENCE);
+                }
+                out.append("\n");
+            }
+            out.append("\n");
+        }
+    }
+
+    private static class TypeParser {
+        private final Context c;
+        private final String text;
+        private final int lineNumber;
+        private int position;
+
+        private TypeParser(@NotNull Context c, @NotNull String text, int lineNumber) {
+            this.c = c;
+            this.text = text;
+            this.lineNumber = lineNumber;
+        }
+
+        /**
+         * @param keepPrimitive false for collections: their elements, like type arguments, are boxed
+         */
+        @NotNull
+        public TypeNode parseTarget(boolean keepPrimitive) {
+            TypeNode boxed = PRIMITIVE_TO_BOXED.get(text.trim());
+            if (boxed != null) {
+                return keepPrimitive ? TypeNode.constructed("", text.trim()) : boxed;
+            }
+            TypeNode type = parseType();
+            skipWhitespace();
+            if (position < text.length()) {
+                throw error("Unexpected '" + text.substring(position) + "'");
+            }
+            if (type.isWildcard()) {
+                throw error("A wildcard can't be a relation target");
+            }
+            return type;
+        }
+
+        @NotNull
+        private TypeNode parseType() {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == '?') {
+                position++;
+                String keyword = parseName();
+                if (keyword.equals(EXTENDS)) {
+                    return TypeNode.wildcard(WildcardKind.EXTENDS, parseType());
+                }
+                if (keyword.equals("super")) {
+                    return TypeNode.wildcard(WildcardKind.SUPER, parseType());
+                }
+                if (!keyword.isEmpty()) {
+                    throw error("'extends' or 'super' expected after '?'");
+                }
+                return TypeNode.wildcard(WildcardKind.BARE, null);
+            }
+
+            String name = parseName();
+            if (name.isEmpty()) {
+                throw error("Type expected");
+            }
+            List<TypeNode> arguments = Lists.newArrayList();
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == '<') {
+                do {
+                    position++;
+                    arguments.add(parseType());
+                    skipWhitespace();
+                }
+                while (position < text.length() && text.charAt(position) == ',');
+                if (position >= text.length() || text.charAt(position) != '>') {
+                    throw error("'>' expected");
+                }
+                position++;
+            }
+
+            TypeNode boxed = PRIMITIVE_TO_BOXED.get(name);
+            if (boxed != null && arguments.isEmpty()) {
+                return boxed;
+            }
+            int classStart = findClassNameStart(name);
+            if (classStart == 0) {
+                return TypeNode.constructed("java.lang", name, arguments);
+            }
+            return TypeNode.constructed(name.substring(0, classStart - 1), name.substring(classStart), arguments);
+        }
+
+        private static int findClassNameStart(@NotNull String qualifiedName) {
+            int segmentStart = 0;
+            while (true) {
+                if (Character.isUpperCase(qualifiedName.charAt(segmentStart))) return segmentStart;
+                int dot = qualifiedName.indexOf('.', segmentStart);
+                // No upper case segment: the last one is the class name
+                if (dot < 0) return segmentStart;
+                segmentStart = dot + 1;
+            }
+        }
+
+        @NotNull
+        private String parseName() {
+            skipWhitespace();
+            int start = position;
+            while (position < text.length()
+                   && (Character.isJavaIdentifierPart(text.charAt(position)) || text.charAt(position) == '.')) {
+                position++;
+            }
+            return text.substring(start, position);
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        @NotNull
+        private IllegalArgumentException error(@NotNull String message) {
+            return c.error(lineNumber, message + " in type " + text);
+        }
+    }
+
+    private static class EntityDeclaration {
+        private final int lineNumber;
+        private final String packageFqName;
+        private String name;
+        private final List<String> superEntities = Lists.newArrayList();
+        private final List<RelationDeclaration> relations = Lists.newArrayList();
+
+        private EntityDeclaration(int lineNumber, @NotNull String packageFqName) {
+            this.lineNumber = lineNumber;
+            this.packageFqName = packageFqName;
+        }
+    }
+
+    private static class RelationDeclaration {
+        private final int lineNumber;
+        private final String name;
+        private String target;
+        private Multiplicity multiplicity = Multiplicity.ONE;
+        private boolean optional;
+        private boolean reference;
+        private boolean skip;
+
+        private RelationDeclaration(int lineNumber, @NotNull String name) {
+            this.lineNumber = lineNumber;
+            this.name = name;
+        }
+    }
+
+    private static class Context {
+        private final Map<String, EntityImpl> entities = Maps.newLinkedHashMap();
+        private final List<EntityDeclaration> declarations = Lists.newArrayList();
+
+        private int lineNumber;
+        private String packageFqName = "";
+        @Nullable
+        private EntityDeclaration currentEntity;
+
+        @NotNull
+        public Entity safeGet(@NotNull String name, int lineNumber) {
+            Entity entity = entities.get(name);
+            if (entity == null) {
+                throw error(lineNumber, "Unknown entity: " + name);
+            }
+            return entity;
+        }
+
+        @NotNull
+        public Collection<Entity> getEntities() {
+            return (Collection) entities.values();
+        }
+
+        @NotNull
+        public IllegalArgumentException error(@NotNull String message) {
+            return error(lineNumber, message);
+        }
+
+        @NotNull
+        public IllegalArgumentException error(int lineNumber, @NotNull String message) {
+            return new IllegalArgumentException("Schema line " + lineNumber + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.*;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.entities.EntityUtil;
+import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.ImportCollector;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+import org.jetbrains.jet.buildergen.java.declarations.MethodModel;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates sources entity by entity, so that memory use doesn't grow with the model: the classes of an entity are
+ * written out as soon as they are complete, then only their names are kept. A bean interface is kept whole
+ * while the implementations of its subentities still need its methods.
+ *
+ * Util classes mention every entity: their methods are spooled to temporary files as the entities come,
+ * and the classes are assembled when the imports are known. The output is the same as {@link BeanGenerator} writes.
+ *
+ * @author abreslav
+ */
+class StreamingBeanGenerator {
+    private static final String JAVA = ".java";
+
+    public static void generate(
+            @NotNull EntityRepresentationContext<ClassBean> dataClasses,
+            @NotNull final String mutableBeanPackage,
+            @NotNull String mutableBeanClassPackage,
+            @NotNull final String builderClassPackage,
+            @NotNull String beanBuilderPackage,
+            boolean lazyCollections,
+            boolean smallCollections,
+            boolean compactLayout,
+            @NotNull OutputSink sink,
+            @Nullable Set<String> dirty
+    ) throws IOException {
+        final EntityRepresentationContext<ClassBean> interfaces = new ConcurrentRepresentationContext<ClassBean>();
+        final EntityRepresentationContext<ClassBean> implementations = new ConcurrentRepresentationContext<ClassBean>();
+        final EntityRepresentationContext<ClassBean> builders = new ConcurrentRepresentationContext<ClassBean>();
+        EntityRepresentationContext<ClassBean> beanBuilders = new ConcurrentRepresentationContext<ClassBean>();
+        final List<Entity> entities = Lists.newArrayList(dataClasses.getEntities());
+
+        MutableBeanInterfaceGenerator interfaceGenerator = new MutableBeanInterfaceGenerator();
+        MutableBeanImplementationGenerator implementationGenerator =
+                new MutableBeanImplementationGenerator(interfaces, lazyCollections, smallCollections, compactLayout);
+        BuilderClassGenerator builderGenerator = new BuilderClassGenerator();
+        BeanBuilderClassGenerator beanBuilderGenerator = new BeanBuilderClassGenerator(interfaces, implementations, builders);
+
+        interfaceGenerator.registerRepresentations(entities, interfaces, mutableBeanPackage);
+        implementationGenerator.registerRepresentations(entities, implementations, mutableBeanClassPackage);
+        builderGenerator.registerRepresentations(entities, builders, builderClassPackage);
+        beanBuilderGenerator.registerRepresentations(entities, beanBuilders, beanBuilderPackage);
+
+        final EntityRepresentationContext<ClassBean> data = dataClasses;
+        List<UtilClassWriter> utilClasses = Lists.newArrayList(
+                new UtilClassWriter() {
+                    @Override
+                    protected ClassModel generate(@NotNull List<Entity> subset) {
+                        return BeanUtilGenerator.generate(mutableBeanPackage, "BeanUtil", UtilClassShards.subset(interfaces, subset), implementations);
+                    }
+                },
+                new UtilClassWriter() {
+                    @Override
+                    protected ClassModel generate(@NotNull List<Entity> subset) {
+                        return DataToBeanGenerator.generate(mutableBeanPackage, "DataToBean", UtilClassShards.subset(interfaces, subset), implementations);
+                    }
+                },
+                new UtilClassWriter() {
+                    @Override
+                    protected ClassModel generate(@NotNull List<Entity> subset) {
+                        return DataBuilderGenerator.generate(builderClassPackage, "DataBuilder", UtilClassShards.subset(data, subset), builders);
+                    }
+                }
+        );
+
+        // Interfaces are released after the last entity that needs them
+        Map<Entity, Integer> lastUses = Maps.newHashMap();
+        for (int i = 0; i < entities.size(); i++) {
+            for (Entity superEntity : EntityUtil.getHierarchy(entities.get(i)).getEntitiesBreadthFirst()) {
+                lastUses.put(superEntity, i);
+            }
+        }
+        Multimap<Integer, Entity> interfacesToRelease = ArrayListMultimap.create();
+        for (Map.Entry<Entity, Integer> entry : lastUses.entrySet()) {
+            interfacesToRelease.put(entry.getValue(), entry.getKey());
+        }
+
+        try {
+            for (UtilClassWriter utilClass : utilClasses) {
+                utilClass.start(sink, dirty);
+            }
+
+            Set<Entity> interfacesGenerated = Sets.newHashSet();
+            for (int i = 0; i < entities.size(); i++) {
+                Entity entity = entities.get(i);
+                for (Entity superEntity : EntityUtil.getHierarchy(entity).getEntitiesBreadthFirst()) {
+                    if (interfacesGenerated.add(superEntity)) {
+                        interfaceGenerator.generateEntity(interfaces, superEntity);
+                    }
+                }
+                implementationGenerator.generateEntity(implementations, entity);
+                builderGenerator.generateEntity(builders, entity);
+                beanBuilderGenerator.generateEntity(beanBuilders, entity);
+
+                List<ClassModel> classes = Lists.<ClassModel>newArrayList(
+                        interfaces.getRepresentation(entity),
+                        implementations.getRepresentation(entity),
+                        builders.getRepresentation(entity),
+                        beanBuilders.getRepresentation(entity)
+                );
+                for (ClassModel classModel : BeanGenerator.getClassesToWrite(sink, classes, dirty, JAVA)) {
+                    writeClass(sink, classModel);
+                }
+                for (UtilClassWriter utilClass : utilClasses) {
+                    utilClass.add(entity);
+                }
+
+                release(implementations.getRepresentation(entity));
+                release(builders.getRepresentation(entity));
+                release(beanBuilders.getRepresentation(entity));
+                for (Entity released : interfacesToRelease.get(i)) {
+                    release(interfaces.getRepresentation(released));
+                }
+            }
+
+            for (UtilClassWriter utilClass : utilClasses) {
+                utilClass.finish(sink);
+            }
+        }
+        finally {
+            for (UtilClassWriter utilClass : utilClasses) {
+                utilClass.dispose();
+            }
+        }
+    }
+
+    private static void writeClass(@NotNull OutputSink sink, @NotNull final ClassModel classModel) throws IOException {
+        sink.write(BeanGenerator.getRelativePath(classModel, JAVA), new OutputSink.Content() {
+            @Override
+            public void writeTo(@NotNull Writer writer) throws IOException {
+                ClassPrinter.printClass(classModel, writer);
+            }
+        });
+    }
+
+    // Only the name is needed once the class is written
+    private static void release(@NotNull ClassBean classBean) {
+        classBean.getFields().clear();
+        classBean.getConstructors().clear();
+        classBean.getMethods().clear();
+    }
+
+    /**
+     * A util class generator is expected to give the same number of methods for each entity, in the same order:
+     * the n-th method of every entity goes to the n-th section of the class
+     */
+    private abstract static class UtilClassWriter {
+        private ClassModel emptyClass;
+        private boolean skipped;
+
+        private final List<File> sectionFiles = Lists.newArrayList();
+        private final List<Writer> sectionWriters = Lists.newArrayList();
+        // In the order the types are met, so that the imports come out as if the class was generated at once
+        private final List<Set<Pair<String, String>>> sectionImports = Lists.newArrayList();
+
+        @NotNull
+        protected abstract ClassModel generate(@NotNull List<Entity> subset);
+
+        public void start(@NotNull OutputSink sink, @Nullable Set<String> dirty) {
+            emptyClass = generate(Collections.<Entity>emptyList());
+            skipped = BeanGenerator.getClassesToWrite(sink, Collections.singletonList(emptyClass), dirty, JAVA).isEmpty();
+        }
+
+        public void add(@NotNull Entity entity) throws IOException {
+            if (skipped) return;
+            ClassModel part = generate(Collections.singletonList(entity));
+            List<MethodModel> methods = part.getMethods();
+            for (int i = 0; i < methods.size(); i++) {
+                if (i == sectionFiles.size()) {
+                    File file = FileUtil.createTempFile("bean-generator", ".part");
+                    sectionFiles.add(file);
+                    sectionWriters.add(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+                    sectionImports.add(Sets.<Pair<String, String>>newLinkedHashSet());
+                }
+                List<MethodModel> method = Collections.singletonList(methods.get(i));
+                ClassPrinter.printMethods(part, method, sectionWriters.get(i));
+                ImportCollector.collectImports(method, sectionImports.get(i));
+            }
+        }
+
+        public void finish(@NotNull OutputSink sink) throws IOException {
+            if (skipped) return;
+            for (Writer writer : sectionWriters) {
+                writer.close();
+            }
+            final Set<Pair<String, String>> importedTypes = ImportCollector.collectImports(emptyClass);
+            for (Set<Pair<String, String>> imports : sectionImports) {
+                importedTypes.addAll(imports);
+            }
+            sink.write(BeanGenerator.getRelativePath(emptyClass, JAVA), new OutputSink.Content() {
+                @Override
+                public void writeTo(@NotNull Writer writer) throws IOException {
+                    ClassPrinter.printClassStart(emptyClass, importedTypes, writer);
+                    for (File file : sectionFiles) {
+                        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+                        try {
+                            char[] buffer = new char[8192];
+                            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                                writer.write(buffer, 0, read);
+                            }
+                        }
+                        finally {
+                            reader.close();
+                        }
+                    }
+                    ClassPrinter.printClassEnd(writer);
+                }
+            });
+        }
+
+        public void dispose() {
+            for (Writer writer : sectionWriters) {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    // The file is deleted anyway
+                }
+            }
+            for (File file : sectionFiles) {
+                FileUtil.delete(file);
+            }
+        }
+    }
+}
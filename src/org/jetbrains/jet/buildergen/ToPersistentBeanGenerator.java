@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.entities.EntityUtil;
+import org.jetbrains.jet.buildergen.entities.Relation;
+import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.code.BinaryOperation;
+import org.jetbrains.jet.buildergen.java.code.CodeFactory;
+import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
+import org.jetbrains.jet.buildergen.java.declarations.ClassKind;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+import org.jetbrains.jet.buildergen.java.declarations.Visibility;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+import org.jetbrains.jet.buildergen.java.declarations.beans.MethodBean;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ParameterBean;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.jetbrains.jet.buildergen.java.types.TypeUtil;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.jetbrains.jet.buildergen.java.code.CodeUtil.*;
+
+/**
+ * Converts data objects and mutable beans to persistent beans, the whole graph at once: each bean is created
+ * with all its values, no updater is called.
+ *
+ * References are not followed: an immutable bean can't refer back to the beans it is a part of,
+ * so they are left unset.
+ *
+ * @author abreslav
+ */
+@SuppressWarnings("unchecked")
+public class ToPersistentBeanGenerator {
+    private static final String ORIGINAL = "original";
+    private static final String TO_PERSISTENT_BEAN = "toPersistentBean";
+    private static final String LOOP_INDEX = "item";
+
+    /**
+     * @param facade if the util class is a shard, other entities are converted through the facade
+     */
+    public static ClassModel generate(
+            String packageName,
+            String className,
+            EntityRepresentationContext<ClassBean> persistentBeanInterfaces,
+            EntityRepresentationContext<ClassBean> persistentBeanImplementations,
+            EntityRepresentationContext<ClassBean> mutableBeanInterfaces,
+            @Nullable ClassModel facade
+    ) {
+        ClassBean utilClass = new ClassBean()
+                .setVisibility(Visibility.PUBLIC)
+                .setKind(ClassKind.CLASS)
+                .setPackageFqName(packageName)
+                .setName(className);
+        TypeTransformer types = new TypeTransformer(persistentBeanInterfaces);
+        for (Entity entity : persistentBeanInterfaces.getEntities()) {
+            ClassBean beanInterface = persistentBeanInterfaces.getRepresentation(entity);
+            ClassBean beanImplementation = persistentBeanImplementations.getRepresentation(entity);
+            utilClass.getMethods().add(createConversion(types, entity, beanInterface, beanImplementation,
+                                                        new Source(TypeUtil.getDataType(entity), null), facade));
+            utilClass.getMethods().add(createConversion(types, entity, beanInterface, beanImplementation,
+                                                        new Source(TypeUtil.simpleType(mutableBeanInterfaces.getRepresentation(entity)),
+                                                                   mutableBeanInterfaces), facade));
+        }
+        return utilClass;
+    }
+
+    /**
+     * Data objects or mutable beans
+     */
+    private static class Source {
+        private final TypeData type;
+        // Null for data objects
+        private final EntityRepresentationContext<ClassBean> mutableBeanInterfaces;
+
+        private Source(@NotNull TypeData type, @Nullable EntityRepresentationContext<ClassBean> mutableBeanInterfaces) {
+            this.type = type;
+            this.mutableBeanInterfaces = mutableBeanInterfaces;
+        }
+
+        private boolean isMutableBean() {
+            return mutableBeanInterfaces != null;
+        }
+
+        @NotNull
+        private TypeData getElementType(@NotNull Entity target) {
+            return mutableBeanInterfaces != null ? TypeUtil.simpleType(mutableBeanInterfaces.getRepresentation(target))
+                                                 : TypeUtil.getDataType(target);
+        }
+    }
+
+    /**
+     * XPersistentBean toPersistentBean(X original) {
+     *     T a = original.getA();
+     *     ...
+     *     return new XPersistentBeanImpl(a, ...);
+     * }
+     */
+    private static MethodBean createConversion(
+            final TypeTransformer types,
+            final Entity entity,
+            ClassBean beanInterface,
+            final ClassBean beanImplementation,
+            final Source source,
+            @Nullable final ClassModel facade
+    ) {
+        return new MethodBean()
+                .setVisibility(Visibility.PUBLIC)
+                .setStatic(true)
+                .addAnnotation(EntityRepresentationGenerator.NOT_NULL)
+                .setReturnType(TypeUtil.simpleType(beanInterface))
+                .setName(TO_PERSISTENT_BEAN)
+                .addParameter(new ParameterBean()
+                                      .addAnnotation(EntityRepresentationGenerator.NOT_NULL)
+                                      .setType(source.type)
+                                      .setName(ORIGINAL))
+                .put(ClassPrinter.METHOD_BODY, new PieceOfCode() {
+                    @NotNull
+                    @Override
+                    public <E> E create(@NotNull CodeFactory<E> f) {
+                        List<E> statements = Lists.newArrayList();
+                        List<E> values = Lists.newArrayList();
+                        for (Relation<?> relation : EntityUtil.getAllRelations(entity)) {
+                            String name = EntityRepresentationGenerator.getFieldName(relation);
+                            TypeData type = PersistentBeanImplementationGenerator.getFieldType(types, relation);
+                            if (relation.getMultiplicity().isCollection()) {
+                                convertCollection(f, relation, name, type, source, facade, statements);
+                            }
+                            else {
+                                convertValue(f, relation, name, type, source, facade, statements);
+                            }
+                            values.add(f.variableReference(name));
+                        }
+                        statements.add(f._return(f.constructorCall(beanImplementation, Collections.<TypeData>emptyList(), values)));
+                        return f.block(statements);
+                    }
+                });
+    }
+
+    private static <E> void convertValue(
+            CodeFactory<E> f,
+            Relation<?> relation,
+            String name,
+            TypeData type,
+            Source source,
+            @Nullable ClassModel facade,
+            List<E> statements
+    ) {
+        E value = getValue(f, relation);
+        if (relation.getTarget() instanceof Entity) {
+            // T a = null; if (original.getA() != null) a = toPersistentBean(original.getA());
+            statements.add(f.statement(f.variableDeclaration(type, name, f._null())));
+            if (!isReference(relation)) {
+                statements.add(_if(f, f.binary(value, BinaryOperation.NEQ, f._null()),
+                                   f.assignment(f.variableReference(name), convert(f, getValue(f, relation), facade))));
+            }
+        }
+        else if (source.isMutableBean() && MutableBeanInterfaceGenerator.isOptionalPrimitive(relation)) {
+            // Integer a = null; if (original.hasA()) a = original.getA();
+            statements.add(f.statement(f.variableDeclaration(type, name, f._null())));
+            statements.add(_if(f, methodCall(f, f.variableReference(ORIGINAL), MutableBeanInterfaceGenerator.getHasValueName(relation)),
+                               f.assignment(f.variableReference(name), value)));
+        }
+        else {
+            statements.add(f.statement(f.variableDeclaration(type, name, value)));
+        }
+    }
+
+    private static <E> void convertCollection(
+            CodeFactory<E> f,
+            Relation<?> relation,
+            String name,
+            TypeData type,
+            Source source,
+            @Nullable ClassModel facade,
+            List<E> statements
+    ) {
+        // PersistentList<T> a = PersistentList.empty();
+        ClassModel collectionClass = PersistentBeanInterfaceGenerator.getCollectionClass(relation);
+        statements.add(f.statement(f.variableDeclaration(type, name, methodCall(f, f.classReference(collectionClass), "empty"))));
+        if (isReference(relation)) {
+            return;
+        }
+
+        E variable = f.variableReference(name);
+        Object target = relation.getTarget();
+        if (target instanceof Entity) {
+            // for (S item : original.getA()) a = a.plus(toPersistentBean(item));
+            statements.add(_for(f, source.getElementType((Entity) target), LOOP_INDEX, getValue(f, relation),
+                                f.assignment(variable, methodCall(f, variable, "plus", convert(f, f.variableReference(LOOP_INDEX), facade)))));
+        }
+        else {
+            // a = a.plusAll(original.getA());
+            statements.add(f.assignment(variable, methodCall(f, variable, "plusAll", getValue(f, relation))));
+        }
+    }
+
+    private static boolean isReference(Relation<?> relation) {
+        return relation.getData(EntityBuilder.REFERENCE) == Boolean.TRUE;
+    }
+
+    private static <E> E getValue(CodeFactory<E> f, Relation<?> relation) {
+        return methodCall(f, f.variableReference(ORIGINAL), EntityRepresentationGenerator.getGetterName(relation));
+    }
+
+    private static <E> E convert(CodeFactory<E> f, E value, @Nullable ClassModel facade) {
+        return methodCall(f, facade != null ? f.classReference(facade) : null, TO_PERSISTENT_BEAN, value);
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.jetbrains.jet.buildergen;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.Function;
@@ -27,7 +28,7 @@ import org.jetbrains.jet.buildergen.entities.Relation;
 import org.jetbrains.jet.buildergen.java.declarations.WildcardKind;
 import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
 import org.jetbrains.jet.buildergen.java.types.TypeData;
-import org.jetbrains.jet.buildergen.java.types.TypeFactory;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
 import org.jetbrains.jet.buildergen.java.types.TypeUtil;
 
 import java.lang.reflect.ParameterizedType;
@@ -35,6 +36,7 @@ import java.lang.reflect.Type;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -48,6 +50,17 @@ public class TypeTransformer {
         OUT
     }
 
+    private static final Map<String, TypeNode> PRIMITIVE_TO_BOXED = ImmutableMap.<String, TypeNode>builder()
+            .put("byte", TypeUtil.simpleType("java.lang", "Byte"))
+            .put("short", TypeUtil.simpleType("java.lang", "Short"))
+            .put("int", TypeUtil.simpleType("java.lang", "Integer"))
+            .put("long", TypeUtil.simpleType("java.lang", "Long"))
+            .put("float", TypeUtil.simpleType("java.lang", "Float"))
+            .put("double", TypeUtil.simpleType("java.lang", "Double"))
+            .put("char", TypeUtil.simpleType("java.lang", "Character"))
+            .put("boolean", TypeUtil.simpleType("java.lang", "Boolean"))
+            .build();
+
     private final EntityRepresentationContext<ClassBean> context;
 
     public TypeTransformer(EntityRepresentationContext<ClassBean> context) {
@@ -62,6 +75,16 @@ public class TypeTransformer {
         return targetToType(relation.getTarget(), relation.getMultiplicity(), variance);
     }
 
+    /**
+     * Same as {@link #relationToVariantType}, but optional primitives are boxed: null stands for no value
+     */
+    public  <T> TypeData relationToNullableType(@NotNull Relation<T> relation, @NotNull Variance variance) {
+        if (relation.getMultiplicity() == Multiplicity.ZERO_OR_ONE && isPrimitive(relation)) {
+            return PRIMITIVE_TO_BOXED.get(EntityModelCache.targetToTypeNode(relation.getTarget()).getClassName());
+        }
+        return relationToVariantType(relation, variance);
+    }
+
     public  <T> TypeData targetToType(T target, Multiplicity multiplicity) {
         return targetToType(target, multiplicity, Variance.NONE);
     }
@@ -75,14 +98,35 @@ public class TypeTransformer {
             Type type = (Type) target;
             return typeWithMultiplicity(multiplicity, reflectionType(type), variance);
         }
+        else if (target instanceof TypeData) {
+            // Targets built from source elements by the annotation processor
+            return typeWithMultiplicity(multiplicity, (TypeData) target, variance);
+        }
         throw new IllegalArgumentException("Unsupported target type:" + target);
     }
 
-    public static TypeData typeWithMultiplicity(Multiplicity multiplicity, TypeData elementType, Variance variance) {
+    /**
+     * Relations to primitive types are stored and passed around unboxed. They can't be null:
+     * optional ones come with a flag telling whether the value is set
+     */
+    public static boolean isPrimitive(@NotNull Relation<?> relation) {
+        Object target = relation.getTarget();
+        if (target instanceof Entity || relation.getMultiplicity().isCollection()) {
+            return false;
+        }
+        TypeNode type = EntityModelCache.targetToTypeNode(target);
+        return !type.isWildcard() && type.getPackageName().isEmpty() && PRIMITIVE_TO_BOXED.containsKey(type.getClassName());
+    }
+
+    public static boolean isPrimitiveBoolean(@NotNull Relation<?> relation) {
+        return isPrimitive(relation) && "boolean".equals(EntityModelCache.targetToTypeNode(relation.getTarget()).getClassName());
+    }
+
+    public static TypeNode typeWithMultiplicity(Multiplicity multiplicity, TypeData elementType, Variance variance) {
         switch (multiplicity) {
             case ZERO_OR_ONE:
             case ONE:
-                return elementType;
+                return TypeNode.of(elementType);
             case LIST:
                 return collectionType(List.class, variance, elementType);
             case SET:
@@ -93,69 +137,55 @@ public class TypeTransformer {
         throw new IllegalStateException("Unknown multiplicity: " + multiplicity);
     }
 
-    public static TypeData collectionType(final Class<? extends Collection> aClass, final Variance variance, final TypeData type) {
-        return new TypeData() {
-            @Override
-            public <E> E create(@NotNull TypeFactory<E> f) {
-                return f.constructedType(
-                        aClass.getPackage().getName(),
-                        getNameWithEnclosingClasses(aClass),
-                        Collections.singletonList(wildcard(f, variance, type.create(f))));
-            }
-        };
+    public static TypeNode collectionType(Class<? extends Collection> aClass, Variance variance, TypeData type) {
+        return TypeNode.constructed(aClass.getPackage().getName(), getNameWithEnclosingClasses(aClass),
+                                    wildcard(variance, TypeNode.of(type)));
     }
 
-    public static <E> E wildcard(TypeFactory<E> f, Variance variance, E e) {
+    public static TypeNode wildcard(Variance variance, TypeNode type) {
         switch (variance) {
             case NONE:
-                return e;
+                return type;
             case IN:
-                return f.wildcardType(WildcardKind.SUPER, e);
+                return TypeNode.wildcard(WildcardKind.SUPER, type);
             case OUT:
-                return f.wildcardType(WildcardKind.EXTENDS, e);
+                return TypeNode.wildcard(WildcardKind.EXTENDS, type);
         }
         throw new IllegalStateException("Unknown variance: " + variance);
     }
 
-    public static TypeData reflectionType(@NotNull Type type) {
+    public static TypeNode reflectionType(@NotNull Type type) {
         if (type instanceof Class<?>) {
             Class<?> theClass = (Class<?>) type;
             return classToTypeBean(theClass);
         }
         if (type instanceof ParameterizedType) {
-            final ParameterizedType parameterizedType = (ParameterizedType) type;
-            return new TypeData() {
-                @Override
-                public <E> E create(@NotNull final TypeFactory<E> f) {
-                    Class<?> rawType = (Class<?>) parameterizedType.getRawType();
-                    return f.constructedType(
-                            rawType.getPackage().getName(),
-                            getNameWithEnclosingClasses(rawType),
-                            reflectionTypes(f, parameterizedType.getActualTypeArguments())
-                    );
-                }
-            };
+            ParameterizedType parameterizedType = (ParameterizedType) type;
+            Class<?> rawType = (Class<?>) parameterizedType.getRawType();
+            return TypeNode.constructed(
+                    rawType.getPackage().getName(),
+                    getNameWithEnclosingClasses(rawType),
+                    reflectionTypes(parameterizedType.getActualTypeArguments())
+            );
         }
         throw new IllegalArgumentException("Unsupported reflection type: " + type);
     }
 
-    private static <E> List<E> reflectionTypes(final TypeFactory<E> f, Type... types) {
-        return ContainerUtil.map(types, new Function<Type, E>() {
+    private static List<TypeNode> reflectionTypes(Type... types) {
+        return ContainerUtil.map(types, new Function<Type, TypeNode>() {
             @Override
-            public E fun(Type type) {
-                return reflectionType(type).create(f);
+            public TypeNode fun(Type type) {
+                return reflectionType(type);
             }
         });
     }
 
-    private static TypeData classToTypeBean(final Class<?> theClass) {
+    private static TypeNode classToTypeBean(Class<?> theClass) {
+        if (theClass.isPrimitive()) {
+            return TypeNode.constructed("", theClass.getName());
+        }
         assert theClass.getPackage() != null;
-        return new TypeData() {
-            @Override
-            public <E> E create(@NotNull TypeFactory<E> f) {
-                return TypeUtil.constructedType(f, theClass.getPackage().getName(), getNameWithEnclosingClasses(theClass));
-            }
-        };
+        return TypeNode.constructed(theClass.getPackage().getName(), getNameWithEnclosingClasses(theClass));
     }
 
     private static String getNameWithEnclosingClasses(@NotNull Class<?> aClass) {
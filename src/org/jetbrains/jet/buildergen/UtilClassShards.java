@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.entities.Entity;
+import org.jetbrains.jet.buildergen.java.ClassPrinter;
+import org.jetbrains.jet.buildergen.java.code.CodeFactory;
+import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
+import org.jetbrains.jet.buildergen.java.declarations.ClassKind;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+import org.jetbrains.jet.buildergen.java.declarations.MethodModel;
+import org.jetbrains.jet.buildergen.java.declarations.ParameterModel;
+import org.jetbrains.jet.buildergen.java.declarations.Visibility;
+import org.jetbrains.jet.buildergen.java.declarations.beans.ClassBean;
+import org.jetbrains.jet.buildergen.java.declarations.beans.JavaDeclarationUtil;
+import org.jetbrains.jet.buildergen.java.types.TypeUtil;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Util classes (BeanUtil, DataToBean, DataBuilder, ToPersistentBean) have methods for every entity: on large models they are split
+ * into shards of a few entities each, behind a facade that keeps the original name and methods.
+ * A shard is loaded only when one of its entities is used, facade methods are a single call and are always inlined.
+ * Shards call the methods of other entities through the facade
+ *
+ * @author abreslav
+ */
+class UtilClassShards {
+
+    public interface UtilClassGenerator {
+        @NotNull
+        ClassModel generate(@NotNull String className, @NotNull List<Entity> entities, @Nullable ClassModel facade);
+    }
+
+    /**
+     * @param shardSize the maximum number of entities in a shard, no sharding if zero
+     * @return the util class, or the facade followed by the shards
+     */
+    @NotNull
+    public static List<ClassModel> generate(
+            @NotNull UtilClassGenerator generator,
+            @NotNull String packageName,
+            @NotNull String className,
+            @NotNull Collection<Entity> entities,
+            int shardSize
+    ) {
+        if (shardSize <= 0 || entities.size() <= shardSize) {
+            return Collections.singletonList(generator.generate(className, Lists.newArrayList(entities), null));
+        }
+
+        ClassBean facade = new ClassBean()
+                .setVisibility(Visibility.PUBLIC)
+                .setKind(ClassKind.CLASS)
+                .setPackageFqName(packageName)
+                .setName(className);
+        List<ClassModel> result = Lists.<ClassModel>newArrayList(facade);
+        int index = 1;
+        for (List<Entity> shardEntities : Lists.partition(Lists.newArrayList(entities), shardSize)) {
+            ClassModel shard = generator.generate(className + "Shard" + index++, shardEntities, facade);
+            for (MethodModel method : shard.getMethods()) {
+                facade.getMethods().add(delegatingMethod(shard, method));
+            }
+            result.add(shard);
+        }
+        return result;
+    }
+
+    @NotNull
+    private static MethodModel delegatingMethod(@NotNull final ClassModel shard, @NotNull final MethodModel method) {
+        return JavaDeclarationUtil.copy(method)
+                .setStatic(true)
+                .put(ClassPrinter.METHOD_BODY, new PieceOfCode() {
+                    @NotNull
+                    @Override
+                    public <E> E create(@NotNull CodeFactory<E> f) {
+                        List<E> arguments = Lists.newArrayList();
+                        for (ParameterModel parameter : method.getParameters()) {
+                            arguments.add(f.variableReference(parameter.getName()));
+                        }
+                        E call = f.methodCall(f.classReference(shard), method.getName(), arguments);
+                        return TypeUtil._void().equals(method.getReturnType()) ? f.statement(call) : f._return(call);
+                    }
+                });
+    }
+
+    /**
+     * A read-only view of the context that reports only the given entities
+     */
+    @NotNull
+    public static EntityRepresentationContext<ClassBean> subset(
+            @NotNull final EntityRepresentationContext<ClassBean> context,
+            @NotNull final List<Entity> entities
+    ) {
+        return new EntityRepresentationContext<ClassBean>() {
+            @Override
+            public void registerRepresentation(@NotNull Entity entity, @NotNull ClassBean representation) {
+                throw new UnsupportedOperationException("A subset is read-only");
+            }
+
+            @Override
+            public ClassBean getRepresentation(@NotNull Entity entity) {
+                return context.getRepresentation(entity);
+            }
+
+            @NotNull
+            @Override
+            public Collection<Entity> getEntities() {
+                return entities;
+            }
+
+            @NotNull
+            @Override
+            public Collection<ClassBean> getRepresentations() {
+                List<ClassBean> result = Lists.newArrayList();
+                for (Entity entity : entities) {
+                    result.add(context.getRepresentation(entity));
+                }
+                return result;
+            }
+        };
+    }
+
+    private UtilClassShards() {}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Puts all the generated files into a single zip archive (a srcjar for sources, a jar for class files), written
+ * sequentially: no directories, no per-file metadata. Entries have no timestamps and are written sorted by path,
+ * whatever order the files come in, so that the same files give the same archive.
+ * Files are rendered as they come (concurrently, if they come from several threads) and kept in memory
+ * until the archive is written on {@link #close()}. The archive is replaced only when complete
+ *
+ * @author abreslav
+ */
+public class ZipOutputSink implements OutputSink {
+    private static final String UTF_8 = "UTF-8";
+
+    private final File archive;
+    private final File temp;
+    // Sorted by path
+    private final Map<String, byte[]> entries = new ConcurrentSkipListMap<String, byte[]>();
+
+    public ZipOutputSink(@NotNull File archive) {
+        this.archive = archive;
+        this.temp = new File(archive.getPath() + ".tmp");
+    }
+
+    @Override
+    public boolean write(@NotNull String relativePath, @NotNull Content content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(bytes, UTF_8);
+        content.writeTo(writer);
+        writer.close();
+        return write(relativePath, bytes.toByteArray());
+    }
+
+    @Override
+    public boolean write(@NotNull String relativePath, @NotNull byte[] bytes) throws IOException {
+        entries.put(relativePath, bytes);
+        return true;
+    }
+
+    /**
+     * The archive is always written whole
+     */
+    @Override
+    public boolean exists(@NotNull String relativePath) {
+        return false;
+    }
+
+    /**
+     * Never called: nothing {@link #exists(String)} in an archive that is always written whole
+     */
+    @Override
+    public void retain(@NotNull String relativePath) {
+        throw new IllegalStateException("Only files left from the previous run are retained, an archive has none: "
+                                        + relativePath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        FileUtil.createParentDirs(temp);
+        boolean closed = false;
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        try {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTime(0);
+                zip.putNextEntry(zipEntry);
+                zip.write(entry.getValue());
+                zip.closeEntry();
+            }
+            zip.close();
+            closed = true;
+
+            if (archive.exists() && !archive.delete()) {
+                throw new IOException("Could not delete " + archive);
+            }
+            if (!temp.renameTo(archive)) {
+                throw new IOException("Could not rename " + temp + " to " + archive);
+            }
+        }
+        finally {
+            entries.clear();
+            if (!closed) {
+                try {
+                    zip.close();
+                }
+                catch (IOException ignored) {
+                    // The original exception is reported
+                }
+            }
+            // Only left if something went wrong
+            FileUtil.delete(temp);
+        }
+    }
+
+    /**
+     * The old archive, if any, is left as is
+     */
+    @Override
+    public void abort() {
+        entries.clear();
+        FileUtil.delete(temp);
+    }
+}
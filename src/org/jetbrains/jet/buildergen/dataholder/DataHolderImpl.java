@@ -16,34 +16,32 @@
 
 package org.jetbrains.jet.buildergen.dataholder;
 
-import com.google.common.collect.Maps;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Map;
+import java.util.Arrays;
 
 /**
 * @author abreslav
 */
 public class DataHolderImpl<T extends DataHolder<T>> implements WritableDataHolder<T>, DataHolder<T> {
-    private Map<DataHolderKey<? super T, ?>, Object> map;
-
-    private Map<DataHolderKey<? super T, ?>, Object> getMap() {
-        if (map == null) {
-            map = Maps.newHashMap();
-        }
-        return map;
-    }
+    // Indexed by the keys, allocated on the first put and grown up to the largest key index used
+    private Object[] slots;
 
     @Override
     public <V> V getData(@NotNull DataHolderKey<? super T, V> key) {
+        // Reading must not allocate: data holders are shared between generator threads
+        int index = DataHolderKeyImpl.getIndex(key);
+        Object[] slots = this.slots;
         //noinspection unchecked
-        return (V) getMap().get(key);
+        return slots == null || index >= slots.length ? null : (V) slots[index];
     }
 
     @Override
     @NotNull
     public <V> T put(@NotNull DataHolderKey<? super T, V> key, @NotNull V value) {
-        getMap().put(key, value);
+        int index = DataHolderKeyImpl.getIndex(key);
+        ensureCapacity(index + 1);
+        slots[index] = value;
         return (T) this;
     }
 
@@ -51,7 +49,24 @@ public class DataHolderImpl<T extends DataHolder<T>> implements WritableDataHold
     @NotNull
     @SuppressWarnings("unchecked")
     public T copyDataFrom(@NotNull DataHolder<? extends T> other) {
-        getMap().putAll(((DataHolderImpl) other).getMap());
+        Object[] otherSlots = ((DataHolderImpl) other).slots;
+        if (otherSlots != null) {
+            ensureCapacity(otherSlots.length);
+            for (int i = 0; i < otherSlots.length; i++) {
+                if (otherSlots[i] != null) {
+                    slots[i] = otherSlots[i];
+                }
+            }
+        }
         return (T) this;
     }
+
+    private void ensureCapacity(int size) {
+        if (slots == null) {
+            slots = new Object[size];
+        }
+        else if (slots.length < size) {
+            slots = Arrays.copyOf(slots, size);
+        }
+    }
 }
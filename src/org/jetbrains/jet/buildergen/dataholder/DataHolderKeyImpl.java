@@ -18,7 +18,11 @@ package org.jetbrains.jet.buildergen.dataholder;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
+ * Keys are numbered densely in the order of creation: data holders store values in arrays indexed by these numbers
+ *
  * @author abreslav
  */
 public final class DataHolderKeyImpl<R, V> implements DataHolderKey<R, V> {
@@ -26,10 +30,21 @@ public final class DataHolderKeyImpl<R, V> implements DataHolderKey<R, V> {
         return new DataHolderKeyImpl<R, V>(name);
     }
 
+    private static final AtomicInteger KEY_COUNT = new AtomicInteger();
+
+    static int getIndex(@NotNull DataHolderKey<?, ?> key) {
+        if (!(key instanceof DataHolderKeyImpl)) {
+            throw new IllegalArgumentException("Keys must be created by DataHolderKeyImpl.create(): " + key);
+        }
+        return ((DataHolderKeyImpl) key).index;
+    }
+
     private final String name;
+    private final int index;
 
     private DataHolderKeyImpl(@NotNull String name) {
         this.name = name;
+        this.index = KEY_COUNT.getAndIncrement();
     }
 
     @Override
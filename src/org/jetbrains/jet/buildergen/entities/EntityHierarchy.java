@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.entities;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An entity with all its super-entities and all the relations they declare, computed once (see {@link EntityUtil#getHierarchy(Entity)})
+ *
+ * @author abreslav
+ */
+public final class EntityHierarchy {
+    private final List<Entity> entitiesBreadthFirst;
+    private final List<Relation<?>> allRelations;
+
+    EntityHierarchy(@NotNull Entity entity) {
+        ImmutableList.Builder<Entity> entities = ImmutableList.builder();
+        Set<Entity> visited = Sets.newHashSet(entity);
+        List<Entity> queue = Lists.newArrayList(entity);
+        for (int i = 0; i < queue.size(); i++) {
+            Entity current = queue.get(i);
+            entities.add(current);
+            for (Entity superEntity : current.getSuperEntities()) {
+                if (visited.add(superEntity)) {
+                    queue.add(superEntity);
+                }
+            }
+        }
+        this.entitiesBreadthFirst = entities.build();
+
+        // Own relations first, then the ones of each super-entity (depth first), the hierarchies of super-entities are reused
+        Set<Relation<?>> relations = Sets.newLinkedHashSet(entity.getRelations());
+        for (Entity superEntity : entity.getSuperEntities()) {
+            relations.addAll(EntityUtil.getHierarchy(superEntity).getAllRelations());
+        }
+        this.allRelations = ImmutableList.copyOf(relations);
+    }
+
+    /**
+     * The entity itself followed by its super-entities, each one only once
+     */
+    @NotNull
+    public List<Entity> getEntitiesBreadthFirst() {
+        return entitiesBreadthFirst;
+    }
+
+    /**
+     * Relations of the entity and all its super-entities, each one only once
+     */
+    @NotNull
+    public List<Relation<?>> getAllRelations() {
+        return allRelations;
+    }
+}
@@ -17,32 +17,58 @@
 package org.jetbrains.jet.buildergen.entities;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Sets;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author abreslav
  */
 public class EntityUtil {
+    // Entities don't change once the model is built, so the hierarchies are computed on the first request
+    private static final ConcurrentMap<Entity, EntityHierarchy> HIERARCHIES = new MapMaker().weakKeys().makeMap();
+
+    @NotNull
+    public static EntityHierarchy getHierarchy(@NotNull Entity entity) {
+        EntityHierarchy hierarchy = HIERARCHIES.get(entity);
+        if (hierarchy == null) {
+            hierarchy = new EntityHierarchy(entity);
+            EntityHierarchy existing = HIERARCHIES.putIfAbsent(entity, hierarchy);
+            if (existing != null) {
+                hierarchy = existing;
+            }
+        }
+        return hierarchy;
+    }
+
     @NotNull
     public static Collection<Relation<?>> getAllRelations(@NotNull Entity entity) {
-        Collection<Relation<?>> result = Lists.newArrayList();
-        Set<Relation<?>> visited = Sets.newHashSet();
-        collectAllRelations(entity, result, visited);
-        return result;
+        return getHierarchy(entity).getAllRelations();
     }
 
-    private static void collectAllRelations(Entity entity, Collection<Relation<?>> result, Collection<Relation<?>> visited) {
-        for (Relation<?> relation : entity.getRelations()) {
-            if (visited.add(relation)) {
-                result.add(relation);
+    /**
+     * The roots, their super-entities and everything they refer to through relations, directly or not:
+     * generated code for these entities mentions no others
+     */
+    @NotNull
+    public static Set<Entity> getReachableEntities(@NotNull Collection<? extends Entity> roots) {
+        Set<Entity> result = Sets.newLinkedHashSet();
+        Queue<Entity> queue = Lists.<Entity>newLinkedList(roots);
+        while (!queue.isEmpty()) {
+            Entity entity = queue.poll();
+            if (!result.add(entity)) continue;
+            queue.addAll(getHierarchy(entity).getEntitiesBreadthFirst());
+            for (Relation<?> relation : getAllRelations(entity)) {
+                if (relation.getTarget() instanceof Entity) {
+                    queue.add((Entity) relation.getTarget());
+                }
             }
         }
-        for (Entity superEntity : entity.getSuperEntities()) {
-            collectAllRelations(superEntity, result, visited);
-        }
+        return result;
     }
 }
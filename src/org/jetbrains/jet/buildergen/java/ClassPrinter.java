@@ -26,12 +26,14 @@ import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
 import org.jetbrains.jet.buildergen.java.declarations.*;
 import org.jetbrains.jet.buildergen.dataholder.DataHolderKeyImpl;
 import org.jetbrains.jet.buildergen.java.types.TypeData;
-import org.jetbrains.jet.buildergen.java.types.TypeFactory;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
 import org.jetbrains.jet.buildergen.java.types.TypeRenderer;
 import org.jetbrains.jet.utils.Printer;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Set;
 
 /**
@@ -52,14 +54,80 @@ public class ClassPrinter {
     private final CodePrinter codePrinter = new CodePrinter(typeRenderer);
 
     public static void printClass(ClassModel classModel, Printer p) {
+        ClassPrinter classPrinter = new ClassPrinter(null);
+        classPrinter.printClass(classModel);
+
+        printHeader(classModel, classPrinter.importedTypes, p);
+        p.printWithNoIndent(classPrinter.body);
+    }
+
+    /**
+     * Imports are collected in a separate pass that renders nothing,
+     * then the class is written out member by member through a single reusable buffer
+     */
+    public static void printClass(@NotNull ClassModel classModel, @NotNull Writer out) throws IOException {
+        Set<Pair<String, String>> importedTypes = ImportCollector.collectImports(classModel);
+
+        StringBuilder header = new StringBuilder();
+        printHeader(classModel, importedTypes, new Printer(header));
+        out.append(header);
+
+        ClassPrinter classPrinter = new ClassPrinter(out);
+        classPrinter.printClass(classModel);
+        classPrinter.finish();
+
+        if (!importedTypes.containsAll(classPrinter.importedTypes)) {
+            throw new IllegalStateException("Import collection missed some of the types used in " + classModel.getName() + ": " +
+                                            Sets.difference(classPrinter.importedTypes, importedTypes));
+        }
+    }
+
+    /**
+     * Prints a class in parts, e.g. when its methods are not all known at once: this part goes up to the methods.
+     * The imports must cover all the parts
+     */
+    public static void printClassStart(
+            @NotNull ClassModel classModel,
+            @NotNull Set<Pair<String, String>> importedTypes,
+            @NotNull Writer out
+    ) throws IOException {
+        StringBuilder header = new StringBuilder();
+        printHeader(classModel, importedTypes, new Printer(header));
+        out.append(header);
+
+        ClassPrinter classPrinter = new ClassPrinter(out);
+        classPrinter.printClassStart(classModel);
+        classPrinter.finish();
+    }
+
+    /**
+     * Prints methods of the class as they appear in its body, see {@link #printClassStart}
+     */
+    public static void printMethods(
+            @NotNull ClassModel classModel,
+            @NotNull Collection<? extends MethodModel> methods,
+            @NotNull Writer out
+    ) throws IOException {
+        ClassPrinter classPrinter = new ClassPrinter(out);
+        classPrinter.p.pushIndent();
+        classPrinter.printMethods(classModel, methods);
+        classPrinter.finish();
+    }
+
+    public static void printClassEnd(@NotNull Writer out) throws IOException {
+        ClassPrinter classPrinter = new ClassPrinter(out);
+        classPrinter.p.pushIndent();
+        classPrinter.printClassEnd();
+        classPrinter.finish();
+    }
+
+    private static void printHeader(ClassModel classModel, Set<Pair<String, String>> importedTypes, Printer p) {
         if (!classModel.getPackageFqName().isEmpty()) {
             p.println("package ", classModel.getPackageFqName(), ";");
         }
-        ClassPrinter classPrinter = new ClassPrinter();
-        classPrinter.printClass(classModel);
 
         p.println();
-        for (Pair<String, String> importedType : classPrinter.importedTypes) {
+        for (Pair<String, String> importedType : importedTypes) {
             String packageFqName = importedType.getFirst();
             if (packageFqName != null
                     && !packageFqName.isEmpty()
@@ -69,8 +137,6 @@ public class ClassPrinter {
             }
         }
         p.println();
-
-        p.printWithNoIndent(classPrinter.body);
     }
 
     private static String getFirstSegmentInQualifiedName(String qName) {
@@ -84,11 +150,40 @@ public class ClassPrinter {
 
     private final StringBuilder body = new StringBuilder();
 
-    private ClassPrinter() {
+    // If present, the body is flushed here after every member
+    private final Writer out;
+    private IOException error;
+
+    private ClassPrinter(@Nullable Writer out) {
         this.p = new Printer(body);
+        this.out = out;
+    }
+
+    private void flush() {
+        if (out == null || error != null) return;
+        try {
+            out.append(body);
+        }
+        catch (IOException e) {
+            error = e;
+        }
+        body.setLength(0);
+    }
+
+    private void finish() throws IOException {
+        flush();
+        if (error != null) {
+            throw error;
+        }
     }
 
     private void printClass(ClassModel classModel) {
+        printClassStart(classModel);
+        printMethods(classModel, classModel.getMethods());
+        printClassEnd();
+    }
+
+    private void printClassStart(ClassModel classModel) {
         printAnnotations(classModel, true);
 
         p.print(classModel.getVisibility().getRepresentation());
@@ -124,19 +219,26 @@ public class ClassPrinter {
 
         for (FieldModel fieldModel : classModel.getFields()) {
             printField(fieldModel, classModel.getKind() == ClassKind.INTERFACE);
+            flush();
         }
         p.println();
 
         for (MethodModel constructorModel : classModel.getConstructors()) {
             printConstructor(constructorModel, classModel);
             p.println();
+            flush();
         }
+    }
 
-        for (MethodModel methodModel : classModel.getMethods()) {
+    private void printMethods(ClassModel classModel, Collection<? extends MethodModel> methods) {
+        for (MethodModel methodModel : methods) {
             printMethod(methodModel, classModel.getKind() == ClassKind.INTERFACE);
             p.println();
+            flush();
         }
+    }
 
+    private void printClassEnd() {
         p.popIndent();
         p.println("}");
     }
@@ -228,57 +330,10 @@ public class ClassPrinter {
     }
 
     private String renderType(TypeData type) {
-        // Import types mentioned in this type
-        type.create(new TypeFactory<Void>() {
-            @Override
-            public Void constructedType(@NotNull String packageName, @NotNull String className, @NotNull List<Void> arguments) {
-                importedTypes.add(Pair.create(packageName, className));
-                return null;
-            }
-
-            @Override
-            public Void wildcardType(@NotNull WildcardKind kind, @Nullable Void bound) {
-                return null;
-            }
-        });
-
-        // Render the string
-        return type.create(new TypeFactory<String>() {
-            @Override
-            public String constructedType(@NotNull String packageName, @NotNull String className, @NotNull List<String> arguments) {
-                StringBuilder sb = new StringBuilder();
-                sb.append(className);
-                if (!arguments.isEmpty()) {
-                    sb.append("<");
-                    for (Iterator<String> iterator = arguments.iterator(); iterator.hasNext(); ) {
-                        String argument = iterator.next();
-                        sb.append(argument);
-                        if (iterator.hasNext()) {
-                            sb.append(", ");
-                        }
-                    }
-                    sb.append(">");
-                }
-                return sb.toString();
-            }
-
-            @Override
-            public String wildcardType(@NotNull WildcardKind kind, @Nullable String bound) {
-                StringBuilder sb = new StringBuilder("?");
-                switch (kind) {
-                    case BARE:
-                        assert bound == null;
-                        break;
-                    case EXTENDS:
-                        sb.append(" extends ").append(bound);
-                        break;
-                    case SUPER:
-                        sb.append(" super ").append(bound);
-                        break;
-                }
-                return sb.toString();
-            }
-        });
+        // Import types mentioned in this type and render it: both are cached in the interned node
+        TypeNode node = TypeNode.of(type);
+        importedTypes.addAll(node.getImportedTypes());
+        return node.getRenderedText();
     }
 
     private void printAnnotations(AnnotatedModel annotatedModel, boolean eachOnANewLine) {
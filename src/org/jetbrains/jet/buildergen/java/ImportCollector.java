@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.java;
+
+import com.google.common.collect.Sets;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.java.code.BinaryOperation;
+import org.jetbrains.jet.buildergen.java.code.CodeFactory;
+import org.jetbrains.jet.buildergen.java.code.CodeTemplate;
+import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
+import org.jetbrains.jet.buildergen.java.declarations.*;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
+import org.jetbrains.jet.buildergen.java.types.TypeUtil;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds all the types a class mentions without rendering anything, so that imports can be printed
+ * before the class body is
+ *
+ * @author abreslav
+ */
+public class ImportCollector implements CodeFactory<Void> {
+
+    @NotNull
+    public static Set<Pair<String, String>> collectImports(@NotNull ClassModel classModel) {
+        Set<Pair<String, String>> importedTypes = Sets.newHashSet();
+        new ImportCollector(importedTypes).visitClass(classModel);
+        return importedTypes;
+    }
+
+    /**
+     * Adds the types the methods mention to {@code importedTypes}, in the order they are met
+     */
+    public static void collectImports(
+            @NotNull Collection<? extends MethodModel> methods,
+            @NotNull Set<Pair<String, String>> importedTypes
+    ) {
+        ImportCollector collector = new ImportCollector(importedTypes);
+        for (MethodModel method : methods) {
+            collector.visitMethod(method, true);
+        }
+    }
+
+    private final Set<Pair<String, String>> importedTypes;
+
+    private ImportCollector(@NotNull Set<Pair<String, String>> importedTypes) {
+        this.importedTypes = importedTypes;
+    }
+
+    private void visitClass(ClassModel classModel) {
+        visitAnnotations(classModel);
+        if (classModel.getSuperClass() != null) {
+            visitType(classModel.getSuperClass());
+        }
+        for (TypeData superInterface : classModel.getSuperInterfaces()) {
+            visitType(superInterface);
+        }
+        for (FieldModel field : classModel.getFields()) {
+            visitAnnotations(field);
+            visitType(field.getType());
+            visitCode(field.getData(ClassPrinter.FIELD_INITIALIZER));
+        }
+        for (MethodModel constructor : classModel.getConstructors()) {
+            visitMethod(constructor, false);
+        }
+        for (MethodModel method : classModel.getMethods()) {
+            visitMethod(method, true);
+        }
+    }
+
+    private void visitMethod(MethodModel method, boolean hasReturnType) {
+        visitAnnotations(method);
+        if (hasReturnType) {
+            visitType(method.getReturnType());
+        }
+        for (ParameterModel parameter : method.getParameters()) {
+            visitAnnotations(parameter);
+            visitType(parameter.getType());
+        }
+        visitCode(method.getData(ClassPrinter.METHOD_BODY));
+    }
+
+    private void visitAnnotations(AnnotatedModel annotatedModel) {
+        for (TypeData annotation : annotatedModel.getAnnotations()) {
+            visitType(annotation);
+        }
+    }
+
+    private void visitCode(@Nullable PieceOfCode code) {
+        if (code != null) {
+            code.create(this);
+        }
+    }
+
+    private void visitType(TypeData type) {
+        importedTypes.addAll(TypeNode.of(type).getImportedTypes());
+    }
+
+    @Override
+    public Void variableDeclaration(TypeData type, String name, @Nullable Void initializer) {
+        visitType(type);
+        return null;
+    }
+
+    @Override
+    public Void constructorCall(ClassModel classBeingInstantiated, List<TypeData> typeArguments, List<Void> arguments) {
+        visitType(TypeUtil.simpleType(classBeingInstantiated));
+        for (TypeData typeArgument : typeArguments) {
+            visitType(typeArgument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void classReference(ClassModel classModel) {
+        visitType(TypeUtil.simpleType(classModel));
+        return null;
+    }
+
+    @Override
+    public Void statement(Void expression) {
+        return null;
+    }
+
+    @Override
+    public Void block(List<Void> block) {
+        return null;
+    }
+
+    @Override
+    public Void fieldReference(Void receiver, String field) {
+        return null;
+    }
+
+    @Override
+    public Void variableReference(String name) {
+        return null;
+    }
+
+    @Override
+    public Void methodCall(@Nullable Void receiver, String method, List<Void> arguments) {
+        return null;
+    }
+
+    @Override
+    public Void assignment(Void lhs, Void rhs) {
+        return null;
+    }
+
+    @Override
+    public Void _return(@Nullable Void subj) {
+        return null;
+    }
+
+    @Override
+    public Void string(String s) {
+        return null;
+    }
+
+    @Override
+    public Void integer(int i) {
+        return null;
+    }
+
+    @Override
+    public Void _boolean(boolean b) {
+        return null;
+    }
+
+    @Override
+    public Void binary(Void lhs, BinaryOperation op, Void rhs) {
+        return null;
+    }
+
+    @Override
+    public Void _throw(Void expression) {
+        return null;
+    }
+
+    @Override
+    public Void _this() {
+        return null;
+    }
+
+    @Override
+    public Void _null() {
+        return null;
+    }
+
+    @Override
+    public Void _for(Void variableDeclaration, Void rangeExpression, Void body) {
+        return null;
+    }
+
+    @Override
+    public Void _if(Void condition, Void body) {
+        return null;
+    }
+
+    @Override
+    public Void singleLineComment(@NotNull String text) {
+        return null;
+    }
+
+    @Override
+    public Void template(@NotNull CodeTemplate template, @NotNull List<String> values) {
+        return template.expand(this, values);
+    }
+}
@@ -0,0 +1,731 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.java.bytecode;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.java.bytecode.ClassHierarchy.FieldInfo;
+import org.jetbrains.jet.buildergen.java.bytecode.ClassHierarchy.MethodInfo;
+import org.jetbrains.jet.buildergen.java.code.BinaryOperation;
+import org.jetbrains.jet.buildergen.java.code.CodeFactory;
+import org.jetbrains.jet.buildergen.java.code.CodeTemplate;
+import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.List;
+
+/**
+ * Builds typed code trees that are emitted as bytecode. Types of expressions are known only once the local variables
+ * are, so both typing and emission are deferred until the tree is put into a method.
+ *
+ * @author abreslav
+ */
+public class BytecodeFactory implements CodeFactory<BytecodeFactory.Code>, Opcodes {
+
+    public static final BytecodeFactory INSTANCE = new BytecodeFactory();
+
+    private static final Type STRING = Type.getObjectType("java/lang/String");
+    private static final Type STRING_BUILDER = Type.getObjectType("java/lang/StringBuilder");
+
+    public static abstract class Code {
+        /**
+         * @return the type of the value left on the stack, VOID for statements
+         */
+        @NotNull
+        public abstract Type getType(@NotNull MethodEmitter e);
+
+        public abstract void emit(@NotNull MethodEmitter e);
+
+        public void emitJumpIfFalse(@NotNull MethodEmitter e, @NotNull Label label) {
+            emit(e);
+            e.coerce(getType(e), Type.BOOLEAN_TYPE);
+            e.getMethodVisitor().visitJumpInsn(IFEQ, label);
+        }
+
+        public void emitAssignment(@NotNull MethodEmitter e, @NotNull Code value) {
+            throw new IllegalStateException("Only variables and fields can be assigned to");
+        }
+
+        /**
+         * True for this(...) and super(...) calls
+         */
+        public boolean isConstructorCall() {
+            return false;
+        }
+
+        /**
+         * True for classes as receivers of static calls: nothing is emitted for them
+         */
+        public boolean isClassReference() {
+            return false;
+        }
+    }
+
+    private static abstract class Statement extends Code {
+        @NotNull
+        @Override
+        public Type getType(@NotNull MethodEmitter e) {
+            return Type.VOID_TYPE;
+        }
+    }
+
+    private static class VariableDeclaration extends Statement {
+        private final TypeData type;
+        private final String name;
+        private final Code initializer;
+
+        private VariableDeclaration(@NotNull TypeData type, @NotNull String name, @Nullable Code initializer) {
+            this.type = type;
+            this.name = name;
+            this.initializer = initializer;
+        }
+
+        @NotNull
+        private MethodEmitter.Local declare(@NotNull MethodEmitter e) {
+            return e.declareLocal(name, JvmTypes.erasure(type));
+        }
+
+        @Override
+        public void emit(@NotNull MethodEmitter e) {
+            if (initializer != null) {
+                initializer.emit(e);
+                Type variableType = JvmTypes.erasure(type);
+                e.coerce(initializer.getType(e), variableType);
+                e.getMethodVisitor().visitVarInsn(variableType.getOpcode(ISTORE), declare(e).getIndex());
+            }
+            else {
+                declare(e);
+            }
+        }
+    }
+
+    private BytecodeFactory() {
+    }
+
+    @Override
+    public Code statement(final Code expression) {
+        return new Statement() {
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                expression.emit(e);
+                e.pop(expression.getType(e));
+            }
+
+            @Override
+            public boolean isConstructorCall() {
+                return expression.isConstructorCall();
+            }
+        };
+    }
+
+    @Override
+    public Code block(final List<Code> block) {
+        return new Statement() {
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                e.pushScope();
+                for (Code statement : block) {
+                    statement.emit(e);
+                }
+                e.popScope();
+            }
+
+            @Override
+            public boolean isConstructorCall() {
+                return !block.isEmpty() && block.get(0).isConstructorCall();
+            }
+        };
+    }
+
+    @Override
+    public Code fieldReference(final Code receiver, final String field) {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return resolveField(e).getType();
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                FieldInfo fieldInfo = resolveField(e);
+                if (fieldInfo.isStatic()) {
+                    e.getMethodVisitor().visitFieldInsn(GETSTATIC, fieldInfo.getOwner(), field, fieldInfo.getType().getDescriptor());
+                }
+                else {
+                    receiver.emit(e);
+                    e.getMethodVisitor().visitFieldInsn(GETFIELD, receiver.getType(e).getInternalName(), field,
+                                                        fieldInfo.getType().getDescriptor());
+                }
+            }
+
+            @Override
+            public void emitAssignment(@NotNull MethodEmitter e, @NotNull Code value) {
+                FieldInfo fieldInfo = resolveField(e);
+                if (!fieldInfo.isStatic()) {
+                    receiver.emit(e);
+                }
+                value.emit(e);
+                e.coerce(value.getType(e), fieldInfo.getType());
+                e.getMethodVisitor().visitFieldInsn(fieldInfo.isStatic() ? PUTSTATIC : PUTFIELD,
+                                                    fieldInfo.isStatic() ? fieldInfo.getOwner() : receiver.getType(e).getInternalName(),
+                                                    field, fieldInfo.getType().getDescriptor());
+            }
+
+            @NotNull
+            private FieldInfo resolveField(@NotNull MethodEmitter e) {
+                return findField(e, receiver.getType(e), field);
+            }
+        };
+    }
+
+    @NotNull
+    private static FieldInfo findField(@NotNull MethodEmitter e, @NotNull Type owner, @NotNull String name) {
+        FieldInfo fieldInfo = e.getHierarchy().findField(owner.getInternalName(), name);
+        if (fieldInfo == null) {
+            throw new IllegalStateException("Cannot resolve field " + owner.getClassName() + "." + name);
+        }
+        return fieldInfo;
+    }
+
+    @Override
+    public Code variableDeclaration(TypeData type, String name, @Nullable Code initializer) {
+        return new VariableDeclaration(type, name, initializer);
+    }
+
+    @Override
+    public Code variableReference(final String name) {
+        // Not a local variable: a field of this class
+        final Code implicitField = fieldReference(_this(), name);
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                MethodEmitter.Local local = e.findLocal(name);
+                return local != null ? local.getType() : implicitField.getType(e);
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                MethodEmitter.Local local = e.findLocal(name);
+                if (local != null) {
+                    e.getMethodVisitor().visitVarInsn(local.getType().getOpcode(ILOAD), local.getIndex());
+                }
+                else {
+                    implicitField.emit(e);
+                }
+            }
+
+            @Override
+            public void emitAssignment(@NotNull MethodEmitter e, @NotNull Code value) {
+                MethodEmitter.Local local = e.findLocal(name);
+                if (local != null) {
+                    value.emit(e);
+                    e.coerce(value.getType(e), local.getType());
+                    e.getMethodVisitor().visitVarInsn(local.getType().getOpcode(ISTORE), local.getIndex());
+                }
+                else {
+                    implicitField.emitAssignment(e, value);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Code methodCall(@Nullable final Code receiver, final String method, final List<Code> arguments) {
+        if (receiver == null && (method.equals("this") || method.equals("super"))) {
+            return constructorDelegation(method.equals("super"), arguments);
+        }
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return resolve(e).getReturnType();
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                MethodInfo methodInfo = resolve(e);
+                Type receiverType = getReceiverType(e);
+                if (receiver != null && !receiver.isClassReference()) {
+                    receiver.emit(e);
+                    if (methodInfo.isStatic()) {
+                        e.pop(receiverType);
+                    }
+                }
+                else if (!methodInfo.isStatic()) {
+                    e.getMethodVisitor().visitVarInsn(ALOAD, 0);
+                }
+                emitArguments(e, arguments, methodInfo);
+                e.invoke(methodInfo, receiverType);
+            }
+
+            @NotNull
+            private Type getReceiverType(@NotNull MethodEmitter e) {
+                return receiver == null ? e.getClassType() : receiver.getType(e);
+            }
+
+            @NotNull
+            private MethodInfo resolve(@NotNull MethodEmitter e) {
+                return e.resolveMethod(getReceiverType(e), method, getTypes(e, arguments));
+            }
+        };
+    }
+
+    @NotNull
+    private static Code constructorDelegation(final boolean isSuper, final List<Code> arguments) {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return Type.VOID_TYPE;
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                Type owner = isSuper ? Type.getObjectType(e.getHierarchy().getSuperName(e.getClassType().getInternalName()))
+                                     : e.getClassType();
+                MethodInfo constructor = e.resolveMethod(owner, "<init>", getTypes(e, arguments));
+                e.getMethodVisitor().visitVarInsn(ALOAD, 0);
+                emitArguments(e, arguments, constructor);
+                e.getMethodVisitor().visitMethodInsn(INVOKESPECIAL, owner.getInternalName(), "<init>", constructor.getDescriptor(), false);
+                if (isSuper) {
+                    e.afterSuperConstructorCall();
+                }
+            }
+
+            @Override
+            public boolean isConstructorCall() {
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public Code constructorCall(final ClassModel classBeingInstantiated, List<TypeData> typeArguments, final List<Code> arguments) {
+        final Type type = Type.getObjectType(JvmTypes.internalName(classBeingInstantiated.getPackageFqName(),
+                                                                   classBeingInstantiated.getName()));
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return type;
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                MethodInfo constructor = e.resolveMethod(type, "<init>", getTypes(e, arguments));
+                MethodVisitor mv = e.getMethodVisitor();
+                mv.visitTypeInsn(NEW, type.getInternalName());
+                mv.visitInsn(DUP);
+                emitArguments(e, arguments, constructor);
+                mv.visitMethodInsn(INVOKESPECIAL, type.getInternalName(), "<init>", constructor.getDescriptor(), false);
+            }
+        };
+    }
+
+    @NotNull
+    private static List<Type> getTypes(@NotNull MethodEmitter e, @NotNull List<Code> expressions) {
+        List<Type> result = Lists.newArrayListWithCapacity(expressions.size());
+        for (Code expression : expressions) {
+            result.add(expression.getType(e));
+        }
+        return result;
+    }
+
+    private static void emitArguments(@NotNull MethodEmitter e, @NotNull List<Code> arguments, @NotNull MethodInfo method) {
+        for (int i = 0; i < arguments.size(); i++) {
+            Code argument = arguments.get(i);
+            argument.emit(e);
+            e.coerce(argument.getType(e), method.getParameterTypes().get(i));
+        }
+    }
+
+    @Override
+    public Code classReference(final ClassModel classModel) {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return Type.getObjectType(JvmTypes.internalName(classModel.getPackageFqName(), classModel.getName()));
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                throw new IllegalStateException("A class is not a value: " + classModel.getName());
+            }
+
+            @Override
+            public boolean isClassReference() {
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public Code assignment(final Code lhs, final Code rhs) {
+        return new Statement() {
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                lhs.emitAssignment(e, rhs);
+            }
+        };
+    }
+
+    @Override
+    public Code _return(@Nullable final Code subj) {
+        return new Statement() {
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                if (subj == null) {
+                    e.getMethodVisitor().visitInsn(RETURN);
+                }
+                else {
+                    subj.emit(e);
+                    e.coerce(subj.getType(e), e.getReturnType());
+                    e.getMethodVisitor().visitInsn(e.getReturnType().getOpcode(IRETURN));
+                }
+            }
+        };
+    }
+
+    @Override
+    public Code string(final String s) {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return STRING;
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                e.getMethodVisitor().visitLdcInsn(s);
+            }
+        };
+    }
+
+    @Override
+    public Code integer(final int i) {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return Type.INT_TYPE;
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                MethodVisitor mv = e.getMethodVisitor();
+                if (i >= -1 && i <= 5) {
+                    mv.visitInsn(ICONST_0 + i);
+                }
+                else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
+                    mv.visitIntInsn(BIPUSH, i);
+                }
+                else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) {
+                    mv.visitIntInsn(SIPUSH, i);
+                }
+                else {
+                    mv.visitLdcInsn(i);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Code _boolean(final boolean b) {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return Type.BOOLEAN_TYPE;
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                e.getMethodVisitor().visitInsn(b ? ICONST_1 : ICONST_0);
+            }
+        };
+    }
+
+    @Override
+    public Code binary(final Code lhs, final BinaryOperation op, final Code rhs) {
+        switch (op) {
+            case EQ:
+            case NEQ:
+                return comparison(lhs, op == BinaryOperation.EQ, rhs);
+            default:
+                return arithmetic(lhs, op, rhs);
+        }
+    }
+
+    @NotNull
+    private static Code comparison(final Code lhs, final boolean equal, final Code rhs) {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return Type.BOOLEAN_TYPE;
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                MethodVisitor mv = e.getMethodVisitor();
+                Label falseLabel = new Label();
+                Label end = new Label();
+                emitJumpIfFalse(e, falseLabel);
+                mv.visitInsn(ICONST_1);
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(falseLabel);
+                mv.visitInsn(ICONST_0);
+                mv.visitLabel(end);
+            }
+
+            @Override
+            public void emitJumpIfFalse(@NotNull MethodEmitter e, @NotNull Label label) {
+                MethodVisitor mv = e.getMethodVisitor();
+                Type lhsType = lhs.getType(e);
+                Type rhsType = rhs.getType(e);
+                if (rhsType.equals(MethodEmitter.NULL) || lhsType.equals(MethodEmitter.NULL)) {
+                    Code operand = rhsType.equals(MethodEmitter.NULL) ? lhs : rhs;
+                    operand.emit(e);
+                    mv.visitJumpInsn(equal ? IFNONNULL : IFNULL, label);
+                }
+                else if (!JvmTypes.isPrimitive(lhsType) && !JvmTypes.isPrimitive(rhsType)) {
+                    lhs.emit(e);
+                    rhs.emit(e);
+                    mv.visitJumpInsn(equal ? IF_ACMPNE : IF_ACMPEQ, label);
+                }
+                else {
+                    Type operandType = getNumericType(lhsType, rhsType);
+                    lhs.emit(e);
+                    e.coerce(lhsType, operandType);
+                    rhs.emit(e);
+                    e.coerce(rhsType, operandType);
+                    switch (operandType.getSort()) {
+                        case Type.LONG:
+                            mv.visitInsn(LCMP);
+                            break;
+                        case Type.FLOAT:
+                            mv.visitInsn(FCMPL);
+                            break;
+                        case Type.DOUBLE:
+                            mv.visitInsn(DCMPL);
+                            break;
+                        default:
+                            mv.visitJumpInsn(equal ? IF_ICMPNE : IF_ICMPEQ, label);
+                            return;
+                    }
+                    mv.visitJumpInsn(equal ? IFNE : IFEQ, label);
+                }
+            }
+        };
+    }
+
+    @NotNull
+    private static Code arithmetic(final Code lhs, final BinaryOperation op, final Code rhs) {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                if (isConcatenation(e)) {
+                    return STRING;
+                }
+                return getNumericType(lhs.getType(e), rhs.getType(e));
+            }
+
+            private boolean isConcatenation(@NotNull MethodEmitter e) {
+                return op == BinaryOperation.PLUS && (lhs.getType(e).equals(STRING) || rhs.getType(e).equals(STRING));
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                MethodVisitor mv = e.getMethodVisitor();
+                if (isConcatenation(e)) {
+                    mv.visitTypeInsn(NEW, STRING_BUILDER.getInternalName());
+                    mv.visitInsn(DUP);
+                    mv.visitMethodInsn(INVOKESPECIAL, STRING_BUILDER.getInternalName(), "<init>", "()V", false);
+                    append(e, lhs);
+                    append(e, rhs);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, STRING_BUILDER.getInternalName(), "toString", "()Ljava/lang/String;", false);
+                    return;
+                }
+                Type type = getType(e);
+                lhs.emit(e);
+                e.coerce(lhs.getType(e), type);
+                rhs.emit(e);
+                e.coerce(rhs.getType(e), type);
+                mv.visitInsn(type.getOpcode(getOpcode(op)));
+            }
+
+            private void append(@NotNull MethodEmitter e, @NotNull Code operand) {
+                operand.emit(e);
+                MethodInfo append = e.resolveMethod(STRING_BUILDER, "append", Lists.newArrayList(operand.getType(e)));
+                e.coerce(operand.getType(e), append.getParameterTypes().get(0));
+                e.invoke(append, STRING_BUILDER);
+            }
+        };
+    }
+
+    private static int getOpcode(@NotNull BinaryOperation op) {
+        switch (op) {
+            case PLUS:
+                return IADD;
+            case MINUS:
+                return ISUB;
+            case TIMES:
+                return IMUL;
+            case DIV:
+                return IDIV;
+            case AND:
+                return IAND;
+            case OR:
+                return IOR;
+        }
+        throw new IllegalArgumentException("Not an arithmetic operation: " + op);
+    }
+
+    /**
+     * Binary numeric promotion: both operands are unboxed and widened to int at least
+     */
+    @NotNull
+    private static Type getNumericType(@NotNull Type lhsType, @NotNull Type rhsType) {
+        Type lhs = MethodEmitter.unbox(lhsType);
+        Type rhs = MethodEmitter.unbox(rhsType);
+        for (Type type : new Type[] {Type.DOUBLE_TYPE, Type.FLOAT_TYPE, Type.LONG_TYPE}) {
+            if (lhs.equals(type) || rhs.equals(type)) {
+                return type;
+            }
+        }
+        return Type.INT_TYPE;
+    }
+
+    @Override
+    public Code _throw(final Code expression) {
+        return new Statement() {
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                expression.emit(e);
+                e.getMethodVisitor().visitInsn(ATHROW);
+            }
+        };
+    }
+
+    @Override
+    public Code _this() {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return e.getClassType();
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                assert !e.isStatic() : "No 'this' in a static method";
+                e.getMethodVisitor().visitVarInsn(ALOAD, 0);
+            }
+        };
+    }
+
+    @Override
+    public Code _null() {
+        return new Code() {
+            @NotNull
+            @Override
+            public Type getType(@NotNull MethodEmitter e) {
+                return MethodEmitter.NULL;
+            }
+
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                e.getMethodVisitor().visitInsn(ACONST_NULL);
+            }
+        };
+    }
+
+    @Override
+    public Code _for(final Code variableDeclaration, final Code rangeExpression, final Code body) {
+        return new Statement() {
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                MethodVisitor mv = e.getMethodVisitor();
+                e.pushScope();
+
+                Type rangeType = rangeExpression.getType(e);
+                if (rangeType.getSort() == Type.ARRAY) {
+                    throw new IllegalStateException("Loops over arrays are not supported");
+                }
+                rangeExpression.emit(e);
+                mv.visitMethodInsn(INVOKEINTERFACE, "java/lang/Iterable", "iterator", "()Ljava/util/Iterator;", true);
+                MethodEmitter.Local iterator = e.declareLocal("$iterator", Type.getObjectType("java/util/Iterator"));
+                mv.visitVarInsn(ASTORE, iterator.getIndex());
+                MethodEmitter.Local variable = ((VariableDeclaration) variableDeclaration).declare(e);
+
+                Label loop = new Label();
+                Label end = new Label();
+                mv.visitLabel(loop);
+                mv.visitVarInsn(ALOAD, iterator.getIndex());
+                mv.visitMethodInsn(INVOKEINTERFACE, "java/util/Iterator", "hasNext", "()Z", true);
+                mv.visitJumpInsn(IFEQ, end);
+                mv.visitVarInsn(ALOAD, iterator.getIndex());
+                mv.visitMethodInsn(INVOKEINTERFACE, "java/util/Iterator", "next", "()Ljava/lang/Object;", true);
+                e.coerce(JvmTypes.OBJECT, variable.getType());
+                mv.visitVarInsn(variable.getType().getOpcode(ISTORE), variable.getIndex());
+                body.emit(e);
+                mv.visitJumpInsn(GOTO, loop);
+                mv.visitLabel(end);
+
+                e.popScope();
+            }
+        };
+    }
+
+    @Override
+    public Code _if(final Code condition, final Code body) {
+        return new Statement() {
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+                Label end = new Label();
+                condition.emitJumpIfFalse(e, end);
+                body.emit(e);
+                e.getMethodVisitor().visitLabel(end);
+            }
+        };
+    }
+
+    @Override
+    public Code singleLineComment(@NotNull String text) {
+        return new Statement() {
+            @Override
+            public void emit(@NotNull MethodEmitter e) {
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public Code template(@NotNull CodeTemplate template, @NotNull List<String> values) {
+        return template.expand(this, values);
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.java.bytecode;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.java.code.PieceOfCode;
+import org.jetbrains.jet.buildergen.java.declarations.*;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.objectweb.asm.*;
+
+import java.lang.annotation.RetentionPolicy;
+import java.util.List;
+import java.util.Set;
+
+import static org.jetbrains.jet.buildergen.java.ClassPrinter.FIELD_INITIALIZER;
+import static org.jetbrains.jet.buildergen.java.ClassPrinter.METHOD_BODY;
+
+/**
+ * Writes class files for class models: the counterpart of {@link org.jetbrains.jet.buildergen.java.ClassPrinter}
+ * that needs no compilation step
+ *
+ * @author abreslav
+ */
+public class ClassFileWriter implements Opcodes {
+
+    public static byte[] writeClass(@NotNull ClassModel classModel, @NotNull final ClassHierarchy hierarchy) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                // The default implementation loads the classes, but generated ones can't be loaded
+                if (hierarchy.isInterface(type1) || hierarchy.isInterface(type2)) {
+                    return JvmTypes.OBJECT.getInternalName();
+                }
+                for (String superclass = type1; superclass != null; superclass = hierarchy.getSuperName(superclass)) {
+                    if (hierarchy.isSubclass(type2, superclass)) {
+                        return superclass;
+                    }
+                }
+                return JvmTypes.OBJECT.getInternalName();
+            }
+        };
+        new ClassFileWriter(classModel, hierarchy, cw).writeClass();
+        return cw.toByteArray();
+    }
+
+    private final ClassModel classModel;
+    private final ClassHierarchy hierarchy;
+    private final ClassVisitor cv;
+    private final Type classType;
+    private final boolean isInterface;
+
+    private ClassFileWriter(@NotNull ClassModel classModel, @NotNull ClassHierarchy hierarchy, @NotNull ClassVisitor cv) {
+        this.classModel = classModel;
+        this.hierarchy = hierarchy;
+        this.cv = cv;
+        this.classType = Type.getObjectType(JvmTypes.internalName(classModel.getPackageFqName(), classModel.getName()));
+        this.isInterface = classModel.getKind() == ClassKind.INTERFACE;
+    }
+
+    private void writeClass() {
+        int access = getAccess(classModel.getVisibility());
+        if (isInterface) {
+            access |= ACC_INTERFACE | ACC_ABSTRACT;
+        }
+        else {
+            access |= ACC_SUPER;
+            if (classModel.isAbstract()) {
+                access |= ACC_ABSTRACT;
+            }
+        }
+
+        TypeData superClass = classModel.getSuperClass();
+        String superName = superClass == null ? JvmTypes.OBJECT.getInternalName() : JvmTypes.erasure(superClass).getInternalName();
+        List<TypeData> superInterfaces = classModel.getSuperInterfaces();
+        String[] interfaceNames = new String[superInterfaces.size()];
+        StringBuilder signature = new StringBuilder(superClass == null ? JvmTypes.OBJECT.getDescriptor() : JvmTypes.signature(superClass));
+        StringBuilder erasedSignature = new StringBuilder("L" + superName + ";");
+        for (int i = 0; i < superInterfaces.size(); i++) {
+            interfaceNames[i] = JvmTypes.erasure(superInterfaces.get(i)).getInternalName();
+            signature.append(JvmTypes.signature(superInterfaces.get(i)));
+            erasedSignature.append("L").append(interfaceNames[i]).append(";");
+        }
+
+        cv.visit(V1_6, access, classType.getInternalName(), nullIfErased(signature.toString(), erasedSignature.toString()),
+                 superName, interfaceNames);
+        cv.visitSource(classModel.getName() + ".java", null);
+
+        for (TypeData annotation : classModel.getAnnotations()) {
+            Boolean visible = isVisibleAtRuntime(annotation);
+            if (visible != null) {
+                cv.visitAnnotation(JvmTypes.erasure(annotation).getDescriptor(), visible).visitEnd();
+            }
+        }
+
+        List<FieldModel> initializedFields = Lists.newArrayList();
+        for (FieldModel fieldModel : classModel.getFields()) {
+            writeField(fieldModel);
+            if (fieldModel.getData(FIELD_INITIALIZER) != null) {
+                initializedFields.add(fieldModel);
+            }
+        }
+
+        if (isInterface) {
+            writeStaticInitializer(initializedFields);
+        }
+        else if (classModel.getConstructors().isEmpty()) {
+            writeDefaultConstructor(initializedFields);
+        }
+        for (MethodModel constructorModel : classModel.getConstructors()) {
+            writeConstructor(constructorModel, initializedFields);
+        }
+
+        for (MethodModel methodModel : classModel.getMethods()) {
+            writeMethod(methodModel);
+            if (!isInterface && !methodModel.isStatic() && !methodModel.isAbstract()) {
+                writeBridges(methodModel);
+            }
+        }
+
+        cv.visitEnd();
+    }
+
+    private void writeField(@NotNull FieldModel model) {
+        int access = isInterface ? ACC_PUBLIC | ACC_STATIC | ACC_FINAL : getAccess(model.getVisibility());
+        if (model.isFinal()) {
+            access |= ACC_FINAL;
+        }
+        FieldVisitor fv = cv.visitField(access, model.getName(), JvmTypes.erasure(model.getType()).getDescriptor(),
+                                        getSignature(model.getType()), null);
+        for (TypeData annotation : model.getAnnotations()) {
+            Boolean visible = isVisibleAtRuntime(annotation);
+            if (visible != null) {
+                fv.visitAnnotation(JvmTypes.erasure(annotation).getDescriptor(), visible).visitEnd();
+            }
+        }
+        fv.visitEnd();
+    }
+
+    private void writeStaticInitializer(@NotNull List<FieldModel> initializedFields) {
+        if (initializedFields.isEmpty()) return;
+        MethodVisitor mv = cv.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        mv.visitCode();
+        MethodEmitter e = new MethodEmitter(mv, hierarchy, classType, true, Type.VOID_TYPE, null);
+        writeFieldInitializers(e, initializedFields, true);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void writeDefaultConstructor(@NotNull List<FieldModel> initializedFields) {
+        MethodVisitor mv = cv.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        MethodEmitter e = new MethodEmitter(mv, hierarchy, classType, false, Type.VOID_TYPE, null);
+        callSuperConstructor(e);
+        writeFieldInitializers(e, initializedFields, false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void writeConstructor(@NotNull MethodModel model, @NotNull final List<FieldModel> initializedFields) {
+        MethodVisitor mv = visitMethod(model, getAccess(model.getVisibility()), "<init>", Type.VOID_TYPE);
+        MethodEmitter e = new MethodEmitter(mv, hierarchy, classType, false, Type.VOID_TYPE, new MethodEmitter.FieldInitializer() {
+            @Override
+            public void initializeFields(@NotNull MethodEmitter e) {
+                writeFieldInitializers(e, initializedFields, false);
+            }
+        });
+        declareParameters(e, model);
+
+        BytecodeFactory.Code body = getBody(model);
+        if (!body.isConstructorCall()) {
+            callSuperConstructor(e);
+            writeFieldInitializers(e, initializedFields, false);
+        }
+        body.emit(e);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private void callSuperConstructor(@NotNull MethodEmitter e) {
+        e.getMethodVisitor().visitVarInsn(ALOAD, 0);
+        String superName = hierarchy.getSuperName(classType.getInternalName());
+        e.getMethodVisitor().visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+    }
+
+    private void writeFieldInitializers(@NotNull MethodEmitter e, @NotNull List<FieldModel> initializedFields, boolean isStatic) {
+        MethodVisitor mv = e.getMethodVisitor();
+        for (FieldModel field : initializedFields) {
+            PieceOfCode initializer = field.getData(FIELD_INITIALIZER);
+            assert initializer != null;
+            BytecodeFactory.Code value = initializer.create(BytecodeFactory.INSTANCE);
+            Type fieldType = JvmTypes.erasure(field.getType());
+            if (!isStatic) {
+                mv.visitVarInsn(ALOAD, 0);
+            }
+            value.emit(e);
+            e.coerce(value.getType(e), fieldType);
+            mv.visitFieldInsn(isStatic ? PUTSTATIC : PUTFIELD, classType.getInternalName(), field.getName(), fieldType.getDescriptor());
+        }
+    }
+
+    private void writeMethod(@NotNull MethodModel model) {
+        int access = isInterface ? ACC_PUBLIC : getAccess(model.getVisibility());
+        if (isInterface || model.isAbstract()) {
+            access |= ACC_ABSTRACT;
+        }
+        if (model.isStatic()) {
+            access |= ACC_STATIC;
+        }
+        Type returnType = JvmTypes.erasure(model.getReturnType());
+        MethodVisitor mv = visitMethod(model, access, model.getName(), returnType);
+        if ((access & ACC_ABSTRACT) == 0) {
+            MethodEmitter e = new MethodEmitter(mv, hierarchy, classType, model.isStatic(), returnType, null);
+            declareParameters(e, model);
+            getBody(model).emit(e);
+            if (returnType.getSort() == Type.VOID) {
+                mv.visitInsn(RETURN);
+            }
+            mv.visitMaxs(0, 0);
+        }
+        mv.visitEnd();
+    }
+
+    /**
+     * Overridden methods with other return types are implemented by bridges delegating to the overriding one, as javac does
+     */
+    private void writeBridges(@NotNull MethodModel model) {
+        Type returnType = JvmTypes.erasure(model.getReturnType());
+        List<Type> parameterTypes = Lists.newArrayList();
+        for (ParameterModel parameter : model.getParameters()) {
+            parameterTypes.add(JvmTypes.erasure(parameter.getType()));
+        }
+        String descriptor = Type.getMethodDescriptor(returnType, parameterTypes.toArray(new Type[parameterTypes.size()]));
+
+        Set<String> bridgeDescriptors = Sets.newLinkedHashSet();
+        for (ClassHierarchy.MethodInfo overridden : hierarchy.findMethods(classType.getInternalName(), model.getName())) {
+            if (!overridden.isStatic() && !overridden.isPrivate()
+                && overridden.getParameterTypes().equals(parameterTypes)
+                && !overridden.getReturnType().equals(returnType)) {
+                bridgeDescriptors.add(overridden.getDescriptor());
+            }
+        }
+
+        for (String bridgeDescriptor : bridgeDescriptors) {
+            MethodVisitor mv = cv.visitMethod(ACC_PUBLIC | ACC_SYNTHETIC | ACC_BRIDGE, model.getName(), bridgeDescriptor, null, null);
+            mv.visitCode();
+            mv.visitVarInsn(ALOAD, 0);
+            int index = 1;
+            for (Type parameterType : parameterTypes) {
+                mv.visitVarInsn(parameterType.getOpcode(ILOAD), index);
+                index += parameterType.getSize();
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, classType.getInternalName(), model.getName(), descriptor, false);
+            mv.visitInsn(Type.getReturnType(bridgeDescriptor).getOpcode(IRETURN));
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    @NotNull
+    private MethodVisitor visitMethod(@NotNull MethodModel model, int access, @NotNull String name, @NotNull Type returnType) {
+        List<ParameterModel> parameters = model.getParameters();
+        Type[] parameterTypes = new Type[parameters.size()];
+        StringBuilder signature = new StringBuilder("(");
+        for (int i = 0; i < parameters.size(); i++) {
+            TypeData type = parameters.get(i).getType();
+            parameterTypes[i] = JvmTypes.erasure(type);
+            signature.append(JvmTypes.signature(type));
+        }
+        signature.append(")").append(name.equals("<init>") ? "V" : JvmTypes.signature(model.getReturnType()));
+        String descriptor = Type.getMethodDescriptor(returnType, parameterTypes);
+
+        MethodVisitor mv = cv.visitMethod(access, name, descriptor, nullIfErased(signature.toString(), descriptor), null);
+        for (TypeData annotation : model.getAnnotations()) {
+            Boolean visible = isVisibleAtRuntime(annotation);
+            if (visible != null) {
+                mv.visitAnnotation(JvmTypes.erasure(annotation).getDescriptor(), visible).visitEnd();
+            }
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            for (TypeData annotation : parameters.get(i).getAnnotations()) {
+                Boolean visible = isVisibleAtRuntime(annotation);
+                if (visible != null) {
+                    mv.visitParameterAnnotation(i, JvmTypes.erasure(annotation).getDescriptor(), visible).visitEnd();
+                }
+            }
+        }
+        if ((access & ACC_ABSTRACT) == 0) {
+            mv.visitCode();
+        }
+        return mv;
+    }
+
+    private static void declareParameters(@NotNull MethodEmitter e, @NotNull MethodModel model) {
+        for (ParameterModel parameter : model.getParameters()) {
+            e.declareLocal(parameter.getName(), JvmTypes.erasure(parameter.getType()));
+        }
+    }
+
+    @NotNull
+    private static BytecodeFactory.Code getBody(@NotNull MethodModel model) {
+        PieceOfCode body = model.getData(METHOD_BODY);
+        if (body == null) {
+            throw new IllegalStateException("No body for method " + model.getName());
+        }
+        return body.create(BytecodeFactory.INSTANCE);
+    }
+
+    /**
+     * @return null if the annotation is not retained in class files
+     */
+    @Nullable
+    private Boolean isVisibleAtRuntime(@NotNull TypeData annotation) {
+        RetentionPolicy retention = hierarchy.getRetention(JvmTypes.erasure(annotation).getInternalName());
+        return retention == RetentionPolicy.SOURCE ? null : retention == RetentionPolicy.RUNTIME;
+    }
+
+    @Nullable
+    private static String getSignature(@NotNull TypeData type) {
+        return nullIfErased(JvmTypes.signature(type), JvmTypes.erasure(type).getDescriptor());
+    }
+
+    // Signature attributes are only needed for generic types
+    @Nullable
+    private static String nullIfErased(@NotNull String signature, @NotNull String erasedSignature) {
+        return signature.equals(erasedSignature) ? null : signature;
+    }
+
+    private static int getAccess(@NotNull Visibility visibility) {
+        switch (visibility) {
+            case PRIVATE:
+                return ACC_PRIVATE;
+            case PROTECTED:
+                return ACC_PROTECTED;
+            case PUBLIC:
+                return ACC_PUBLIC;
+        }
+        throw new IllegalStateException("Unknown visibility: " + visibility);
+    }
+}
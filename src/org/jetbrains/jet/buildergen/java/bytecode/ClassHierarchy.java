@@ -0,0 +1,358 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.java.bytecode;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.java.declarations.*;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.objectweb.asm.Type;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Members and supertypes of the classes referred to from generated code: the generated classes themselves are taken
+ * from their models, all the others are loaded through the class loader
+ *
+ * @author abreslav
+ */
+public class ClassHierarchy {
+
+    public static class MethodInfo {
+        private final String owner;
+        private final String name;
+        private final List<Type> parameterTypes;
+        private final Type returnType;
+        private final boolean isStatic;
+        private final boolean isPrivate;
+
+        public MethodInfo(
+                @NotNull String owner,
+                @NotNull String name,
+                @NotNull List<Type> parameterTypes,
+                @NotNull Type returnType,
+                boolean isStatic,
+                boolean isPrivate
+        ) {
+            this.owner = owner;
+            this.name = name;
+            this.parameterTypes = parameterTypes;
+            this.returnType = returnType;
+            this.isStatic = isStatic;
+            this.isPrivate = isPrivate;
+        }
+
+        @NotNull
+        public String getOwner() {
+            return owner;
+        }
+
+        @NotNull
+        public String getName() {
+            return name;
+        }
+
+        @NotNull
+        public List<Type> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        @NotNull
+        public Type getReturnType() {
+            return returnType;
+        }
+
+        public boolean isStatic() {
+            return isStatic;
+        }
+
+        public boolean isPrivate() {
+            return isPrivate;
+        }
+
+        @NotNull
+        public String getDescriptor() {
+            return Type.getMethodDescriptor(returnType, parameterTypes.toArray(new Type[parameterTypes.size()]));
+        }
+    }
+
+    public static class FieldInfo {
+        private final String owner;
+        private final String name;
+        private final Type type;
+        private final boolean isStatic;
+
+        public FieldInfo(@NotNull String owner, @NotNull String name, @NotNull Type type, boolean isStatic) {
+            this.owner = owner;
+            this.name = name;
+            this.type = type;
+            this.isStatic = isStatic;
+        }
+
+        @NotNull
+        public String getOwner() {
+            return owner;
+        }
+
+        @NotNull
+        public String getName() {
+            return name;
+        }
+
+        @NotNull
+        public Type getType() {
+            return type;
+        }
+
+        public boolean isStatic() {
+            return isStatic;
+        }
+    }
+
+    private static class ClassInfo {
+        private final String internalName;
+        private final boolean isInterface;
+        private final String superName;
+        private final List<String> interfaceNames;
+        private final List<MethodInfo> methods;
+        private final List<FieldInfo> fields;
+
+        private ClassInfo(
+                @NotNull String internalName,
+                boolean isInterface,
+                @Nullable String superName,
+                @NotNull List<String> interfaceNames,
+                @NotNull List<MethodInfo> methods,
+                @NotNull List<FieldInfo> fields
+        ) {
+            this.internalName = internalName;
+            this.isInterface = isInterface;
+            this.superName = superName;
+            this.interfaceNames = interfaceNames;
+            this.methods = methods;
+            this.fields = fields;
+        }
+    }
+
+    private final Map<String, ClassModel> generatedClasses = Maps.newHashMap();
+    private final ClassLoader classLoader;
+    // Class files are written concurrently
+    private final Map<String, ClassInfo> classInfos = new ConcurrentHashMap<String, ClassInfo>();
+    private final Map<String, RetentionPolicy> retentions = new ConcurrentHashMap<String, RetentionPolicy>();
+
+    public ClassHierarchy(@NotNull Collection<? extends ClassModel> generatedClasses, @NotNull ClassLoader classLoader) {
+        for (ClassModel classModel : generatedClasses) {
+            this.generatedClasses.put(JvmTypes.internalName(classModel.getPackageFqName(), classModel.getName()), classModel);
+        }
+        this.classLoader = classLoader;
+    }
+
+    @NotNull
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    public boolean isInterface(@NotNull String internalName) {
+        return getClassInfo(internalName).isInterface;
+    }
+
+    /**
+     * @return the superclass, {@code java/lang/Object} for interfaces, null for {@code java/lang/Object} itself
+     */
+    @Nullable
+    public String getSuperName(@NotNull String internalName) {
+        return getClassInfo(internalName).superName;
+    }
+
+    @NotNull
+    public RetentionPolicy getRetention(@NotNull String annotationInternalName) {
+        RetentionPolicy retention = retentions.get(annotationInternalName);
+        if (retention == null) {
+            retention = RetentionPolicy.CLASS;
+            try {
+                Retention annotation = Class.forName(annotationInternalName.replace('/', '.'), false, classLoader).getAnnotation(Retention.class);
+                if (annotation != null) {
+                    retention = annotation.value();
+                }
+            }
+            catch (ClassNotFoundException e) {
+                // The annotation is not available to the generator: default retention
+            }
+            retentions.put(annotationInternalName, retention);
+        }
+        return retention;
+    }
+
+    public boolean isSubclass(@NotNull String subclass, @NotNull String superclass) {
+        if (subclass.equals(superclass) || superclass.equals(JvmTypes.OBJECT.getInternalName())) return true;
+        ClassInfo info = getClassInfo(subclass);
+        if (info.superName != null && isSubclass(info.superName, superclass)) return true;
+        for (String interfaceName : info.interfaceNames) {
+            if (isSubclass(interfaceName, superclass)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Methods (or constructors, named {@code <init>}) with the given name declared in the class or inherited by it,
+     * the ones declared closer to the class come first
+     */
+    @NotNull
+    public List<MethodInfo> findMethods(@NotNull String internalName, @NotNull String name) {
+        List<MethodInfo> result = Lists.newArrayList();
+        collectMethods(internalName, name, result);
+        return result;
+    }
+
+    private void collectMethods(String internalName, String name, List<MethodInfo> result) {
+        ClassInfo info = getClassInfo(internalName);
+        for (MethodInfo method : info.methods) {
+            if (method.name.equals(name)) {
+                result.add(method);
+            }
+        }
+        if ("<init>".equals(name)) return;
+        if (info.superName != null) {
+            collectMethods(info.superName, name, result);
+        }
+        for (String interfaceName : info.interfaceNames) {
+            collectMethods(interfaceName, name, result);
+        }
+    }
+
+    @Nullable
+    public FieldInfo findField(@NotNull String internalName, @NotNull String name) {
+        ClassInfo info = getClassInfo(internalName);
+        for (FieldInfo field : info.fields) {
+            if (field.name.equals(name)) {
+                return field;
+            }
+        }
+        return info.superName == null ? null : findField(info.superName, name);
+    }
+
+    @NotNull
+    private ClassInfo getClassInfo(@NotNull String internalName) {
+        ClassInfo info = classInfos.get(internalName);
+        if (info == null) {
+            ClassModel classModel = generatedClasses.get(internalName);
+            info = classModel != null ? createClassInfo(internalName, classModel) : loadClassInfo(internalName);
+            classInfos.put(internalName, info);
+        }
+        return info;
+    }
+
+    @NotNull
+    private static ClassInfo createClassInfo(@NotNull String internalName, @NotNull ClassModel classModel) {
+        boolean isInterface = classModel.getKind() == ClassKind.INTERFACE;
+        // Interfaces inherit the members of Object
+        String superName = classModel.getSuperClass() != null
+                           ? JvmTypes.erasure(classModel.getSuperClass()).getInternalName()
+                           : JvmTypes.OBJECT.getInternalName();
+        List<String> interfaceNames = Lists.newArrayList();
+        for (TypeData superInterface : classModel.getSuperInterfaces()) {
+            interfaceNames.add(JvmTypes.erasure(superInterface).getInternalName());
+        }
+
+        List<MethodInfo> methods = Lists.newArrayList();
+        for (MethodModel method : classModel.getMethods()) {
+            methods.add(new MethodInfo(internalName, method.getName(), getParameterTypes(method), JvmTypes.erasure(method.getReturnType()),
+                                       method.isStatic(), method.getVisibility() == Visibility.PRIVATE));
+        }
+        if (classModel.getConstructors().isEmpty() && !isInterface) {
+            // Default constructor
+            methods.add(new MethodInfo(internalName, "<init>", ImmutableList.<Type>of(), Type.VOID_TYPE, false, false));
+        }
+        for (MethodModel constructor : classModel.getConstructors()) {
+            methods.add(new MethodInfo(internalName, "<init>", getParameterTypes(constructor), Type.VOID_TYPE, false,
+                                       constructor.getVisibility() == Visibility.PRIVATE));
+        }
+
+        List<FieldInfo> fields = Lists.newArrayList();
+        for (FieldModel field : classModel.getFields()) {
+            fields.add(new FieldInfo(internalName, field.getName(), JvmTypes.erasure(field.getType()), isInterface));
+        }
+        return new ClassInfo(internalName, isInterface, superName, interfaceNames, methods, fields);
+    }
+
+    @NotNull
+    private static List<Type> getParameterTypes(@NotNull MethodModel method) {
+        List<Type> result = Lists.newArrayList();
+        for (ParameterModel parameter : method.getParameters()) {
+            result.add(JvmTypes.erasure(parameter.getType()));
+        }
+        return result;
+    }
+
+    @NotNull
+    private ClassInfo loadClassInfo(@NotNull String internalName) {
+        Class<?> theClass;
+        try {
+            theClass = Class.forName(internalName.replace('/', '.'), false, classLoader);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Class is neither generated nor available to the generator: " + internalName, e);
+        }
+        Class<?> superclass = theClass.getSuperclass();
+        List<String> interfaceNames = Lists.newArrayList();
+        for (Class<?> anInterface : theClass.getInterfaces()) {
+            interfaceNames.add(Type.getInternalName(anInterface));
+        }
+
+        List<MethodInfo> methods = Lists.newArrayList();
+        for (Method method : theClass.getDeclaredMethods()) {
+            if (method.isBridge() || method.isSynthetic()) continue;
+            int modifiers = method.getModifiers();
+            methods.add(new MethodInfo(internalName, method.getName(), getTypes(method.getParameterTypes()), Type.getType(method.getReturnType()),
+                                       Modifier.isStatic(modifiers), Modifier.isPrivate(modifiers)));
+        }
+        for (Constructor<?> constructor : theClass.getDeclaredConstructors()) {
+            methods.add(new MethodInfo(internalName, "<init>", getTypes(constructor.getParameterTypes()), Type.VOID_TYPE,
+                                       false, Modifier.isPrivate(constructor.getModifiers())));
+        }
+
+        List<FieldInfo> fields = Lists.newArrayList();
+        for (Field field : theClass.getDeclaredFields()) {
+            fields.add(new FieldInfo(internalName, field.getName(), Type.getType(field.getType()), Modifier.isStatic(field.getModifiers())));
+        }
+
+        String superName = superclass != null ? Type.getInternalName(superclass)
+                                              : theClass.isInterface() ? JvmTypes.OBJECT.getInternalName() : null;
+        return new ClassInfo(internalName, theClass.isInterface(), superName, interfaceNames, methods, fields);
+    }
+
+    @NotNull
+    private static List<Type> getTypes(@NotNull Class<?>[] classes) {
+        List<Type> result = Lists.newArrayListWithCapacity(classes.length);
+        for (Class<?> aClass : classes) {
+            result.add(Type.getType(aClass));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.java.bytecode;
+
+import com.google.common.collect.ImmutableMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.java.declarations.WildcardKind;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.jetbrains.jet.buildergen.java.types.TypeFactory;
+import org.objectweb.asm.Type;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Erased JVM types and generic signatures of {@link TypeData}
+ *
+ * @author abreslav
+ */
+public class JvmTypes {
+
+    public static final Type OBJECT = Type.getObjectType("java/lang/Object");
+
+    private static final Map<String, Type> PRIMITIVES = ImmutableMap.<String, Type>builder()
+            .put("void", Type.VOID_TYPE)
+            .put("boolean", Type.BOOLEAN_TYPE)
+            .put("byte", Type.BYTE_TYPE)
+            .put("short", Type.SHORT_TYPE)
+            .put("char", Type.CHAR_TYPE)
+            .put("int", Type.INT_TYPE)
+            .put("long", Type.LONG_TYPE)
+            .put("float", Type.FLOAT_TYPE)
+            .put("double", Type.DOUBLE_TYPE)
+            .build();
+
+    private static final TypeFactory<Type> ERASURE = new TypeFactory<Type>() {
+        @Override
+        public Type constructedType(@NotNull String packageName, @NotNull String className, @NotNull List<Type> arguments) {
+            if (packageName.isEmpty()) {
+                Type primitive = PRIMITIVES.get(className);
+                if (primitive != null) {
+                    return primitive;
+                }
+            }
+            return Type.getObjectType(internalName(packageName, className));
+        }
+
+        @Override
+        public Type wildcardType(@NotNull WildcardKind kind, @Nullable Type bound) {
+            return kind == WildcardKind.EXTENDS && bound != null ? bound : OBJECT;
+        }
+    };
+
+    private static final TypeFactory<String> SIGNATURE = new TypeFactory<String>() {
+        @Override
+        public String constructedType(@NotNull String packageName, @NotNull String className, @NotNull List<String> arguments) {
+            if (packageName.isEmpty()) {
+                Type primitive = PRIMITIVES.get(className);
+                if (primitive != null) {
+                    return primitive.getDescriptor();
+                }
+            }
+            StringBuilder sb = new StringBuilder("L").append(internalName(packageName, className));
+            if (!arguments.isEmpty()) {
+                sb.append("<");
+                for (String argument : arguments) {
+                    sb.append(argument);
+                }
+                sb.append(">");
+            }
+            return sb.append(";").toString();
+        }
+
+        @Override
+        public String wildcardType(@NotNull WildcardKind kind, @Nullable String bound) {
+            switch (kind) {
+                case BARE:
+                    return "*";
+                case EXTENDS:
+                    return "+" + bound;
+                case SUPER:
+                    return "-" + bound;
+            }
+            throw new IllegalStateException("Unknown wildcard kind: " + kind);
+        }
+    };
+
+    @NotNull
+    public static Type erasure(@NotNull TypeData type) {
+        return type.create(ERASURE);
+    }
+
+    @NotNull
+    public static String signature(@NotNull TypeData type) {
+        return type.create(SIGNATURE);
+    }
+
+    @NotNull
+    public static String internalName(@NotNull String packageName, @NotNull String className) {
+        // Nested classes are referred to as Outer.Inner
+        String binaryName = className.replace('.', '$');
+        return packageName.isEmpty() ? binaryName : packageName.replace('.', '/') + "/" + binaryName;
+    }
+
+    public static boolean isPrimitive(@NotNull Type type) {
+        return type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.java.bytecode;
+
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.java.bytecode.ClassHierarchy.MethodInfo;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of a method body being emitted: local variables in scope, the enclosing class and the expected return type.
+ * Also resolves calls and converts values between types the way javac does it for the constructs the generators use.
+ *
+ * @author abreslav
+ */
+public class MethodEmitter implements Opcodes {
+
+    // The type of the null literal
+    public static final Type NULL = Type.getObjectType("null");
+
+    private static final ImmutableBiMap<Type, Type> BOXES = ImmutableBiMap.<Type, Type>builder()
+            .put(Type.BOOLEAN_TYPE, Type.getObjectType("java/lang/Boolean"))
+            .put(Type.BYTE_TYPE, Type.getObjectType("java/lang/Byte"))
+            .put(Type.SHORT_TYPE, Type.getObjectType("java/lang/Short"))
+            .put(Type.CHAR_TYPE, Type.getObjectType("java/lang/Character"))
+            .put(Type.INT_TYPE, Type.getObjectType("java/lang/Integer"))
+            .put(Type.LONG_TYPE, Type.getObjectType("java/lang/Long"))
+            .put(Type.FLOAT_TYPE, Type.getObjectType("java/lang/Float"))
+            .put(Type.DOUBLE_TYPE, Type.getObjectType("java/lang/Double"))
+            .build();
+
+    private static final Map<Type, Type> UNBOXED = BOXES.inverse();
+
+    public interface FieldInitializer {
+        void initializeFields(@NotNull MethodEmitter e);
+    }
+
+    public static class Local {
+        private final int index;
+        private final Type type;
+
+        private Local(int index, @NotNull Type type) {
+            this.index = index;
+            this.type = type;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @NotNull
+        public Type getType() {
+            return type;
+        }
+    }
+
+    private final MethodVisitor mv;
+    private final ClassHierarchy hierarchy;
+    private final Type classType;
+    private final boolean isStatic;
+    private final Type returnType;
+    private final FieldInitializer fieldInitializer;
+
+    private final List<Map<String, Local>> scopes = Lists.newArrayList();
+    private int nextLocalIndex;
+
+    public MethodEmitter(
+            @NotNull MethodVisitor mv,
+            @NotNull ClassHierarchy hierarchy,
+            @NotNull Type classType,
+            boolean isStatic,
+            @NotNull Type returnType,
+            @Nullable FieldInitializer fieldInitializer
+    ) {
+        this.mv = mv;
+        this.hierarchy = hierarchy;
+        this.classType = classType;
+        this.isStatic = isStatic;
+        this.returnType = returnType;
+        this.fieldInitializer = fieldInitializer;
+        this.nextLocalIndex = isStatic ? 0 : 1;
+        pushScope();
+    }
+
+    @NotNull
+    public MethodVisitor getMethodVisitor() {
+        return mv;
+    }
+
+    @NotNull
+    public ClassHierarchy getHierarchy() {
+        return hierarchy;
+    }
+
+    @NotNull
+    public Type getClassType() {
+        return classType;
+    }
+
+    public boolean isStatic() {
+        return isStatic;
+    }
+
+    @NotNull
+    public Type getReturnType() {
+        return returnType;
+    }
+
+    /**
+     * Instance fields are initialized right after the superclass constructor is called
+     */
+    public void afterSuperConstructorCall() {
+        if (fieldInitializer != null) {
+            fieldInitializer.initializeFields(this);
+        }
+    }
+
+    public void pushScope() {
+        scopes.add(Maps.<String, Local>newHashMap());
+    }
+
+    public void popScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    @NotNull
+    public Local declareLocal(@NotNull String name, @NotNull Type type) {
+        Local local = new Local(nextLocalIndex, type);
+        nextLocalIndex += type.getSize();
+        scopes.get(scopes.size() - 1).put(name, local);
+        return local;
+    }
+
+    @Nullable
+    public Local findLocal(@NotNull String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).get(name);
+            if (local != null) {
+                return local;
+            }
+        }
+        return null;
+    }
+
+    @NotNull
+    public MethodInfo resolveMethod(@NotNull Type owner, @NotNull String name, @NotNull List<Type> argumentTypes) {
+        List<MethodInfo> candidates = Lists.newArrayList();
+        for (MethodInfo method : hierarchy.findMethods(owner.getInternalName(), name)) {
+            if (method.getParameterTypes().size() == argumentTypes.size()) {
+                candidates.add(method);
+            }
+        }
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException("Cannot resolve " + owner.getClassName() + "." + name + argumentTypes);
+        }
+
+        // Strict invocation first, then with boxing, the same as javac does
+        for (boolean allowBoxing : new boolean[] {false, true}) {
+            MethodInfo mostSpecific = null;
+            for (MethodInfo candidate : candidates) {
+                if (isApplicable(candidate.getParameterTypes(), argumentTypes, allowBoxing)
+                    && (mostSpecific == null || isMoreSpecific(candidate, mostSpecific))) {
+                    mostSpecific = candidate;
+                }
+            }
+            if (mostSpecific != null) {
+                return mostSpecific;
+            }
+        }
+
+        // Generic methods are seen erased: the arguments will be cast
+        if (candidates.size() == 1 || allHaveSameSignature(candidates)) {
+            return candidates.get(0);
+        }
+        throw new IllegalStateException("Ambiguous call " + owner.getClassName() + "." + name + argumentTypes);
+    }
+
+    // Overriding methods have the same parameters: the first one found, i.e. the most derived, is kept
+    private boolean isMoreSpecific(MethodInfo method, MethodInfo than) {
+        return isApplicable(than.getParameterTypes(), method.getParameterTypes(), false)
+               && !isApplicable(method.getParameterTypes(), than.getParameterTypes(), false);
+    }
+
+    private static boolean allHaveSameSignature(List<MethodInfo> methods) {
+        for (MethodInfo method : methods) {
+            if (!method.getParameterTypes().equals(methods.get(0).getParameterTypes())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isApplicable(List<Type> parameterTypes, List<Type> argumentTypes, boolean allowBoxing) {
+        for (int i = 0; i < parameterTypes.size(); i++) {
+            if (!isAssignable(argumentTypes.get(i), parameterTypes.get(i), allowBoxing)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isAssignable(@NotNull Type from, @NotNull Type to, boolean allowBoxing) {
+        if (from.equals(to)) return true;
+        boolean fromPrimitive = JvmTypes.isPrimitive(from);
+        boolean toPrimitive = JvmTypes.isPrimitive(to);
+        if (from.equals(NULL)) return !toPrimitive;
+        if (fromPrimitive && toPrimitive) {
+            return isWidening(from, to);
+        }
+        if (!fromPrimitive && !toPrimitive) {
+            if (to.equals(JvmTypes.OBJECT)) return true;
+            if (from.getSort() == Type.ARRAY || to.getSort() == Type.ARRAY) return false;
+            return hierarchy.isSubclass(from.getInternalName(), to.getInternalName());
+        }
+        if (!allowBoxing) return false;
+        if (fromPrimitive) {
+            return isAssignable(BOXES.get(from), to, false);
+        }
+        Type unboxed = UNBOXED.get(from);
+        return unboxed != null && isAssignable(unboxed, to, false);
+    }
+
+    private static boolean isWidening(Type from, Type to) {
+        if (to.getSort() == Type.CHAR || from.getSort() == Type.CHAR && to.getSort() == Type.SHORT) return false;
+        int fromRank = getWideningRank(from);
+        int toRank = getWideningRank(to);
+        return fromRank >= 0 && toRank >= 0 && fromRank <= toRank;
+    }
+
+    private static int getWideningRank(Type type) {
+        switch (type.getSort()) {
+            case Type.BYTE: return 0;
+            case Type.SHORT: case Type.CHAR: return 1;
+            case Type.INT: return 2;
+            case Type.LONG: return 3;
+            case Type.FLOAT: return 4;
+            case Type.DOUBLE: return 5;
+        }
+        return -1;
+    }
+
+    /**
+     * Converts the value on top of the stack: widening, boxing, unboxing or a cast
+     */
+    public void coerce(@NotNull Type from, @NotNull Type to) {
+        if (from.equals(to) || from.equals(NULL)) return;
+        if (to.getSort() == Type.VOID || from.getSort() == Type.VOID) {
+            throw new IllegalStateException("Cannot convert " + from + " to " + to);
+        }
+        boolean fromPrimitive = JvmTypes.isPrimitive(from);
+        boolean toPrimitive = JvmTypes.isPrimitive(to);
+        if (fromPrimitive && toPrimitive) {
+            widen(from, to);
+        }
+        else if (fromPrimitive) {
+            Type box = BOXES.get(from);
+            mv.visitMethodInsn(INVOKESTATIC, box.getInternalName(), "valueOf", Type.getMethodDescriptor(box, from), false);
+            coerce(box, to);
+        }
+        else if (toPrimitive) {
+            Type unboxed = UNBOXED.get(from);
+            if (unboxed == null) {
+                Type box = BOXES.get(to);
+                mv.visitTypeInsn(CHECKCAST, box.getInternalName());
+                from = box;
+                unboxed = to;
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, from.getInternalName(), unboxed.getClassName() + "Value",
+                               Type.getMethodDescriptor(unboxed), false);
+            widen(unboxed, to);
+        }
+        else if (!isAssignable(from, to, false)) {
+            mv.visitTypeInsn(CHECKCAST, to.getInternalName());
+        }
+    }
+
+    private void widen(Type from, Type to) {
+        if (from.equals(to)) return;
+        int fromSort = from.getSort() == Type.LONG || from.getSort() == Type.FLOAT || from.getSort() == Type.DOUBLE ? from.getSort() : Type.INT;
+        switch (fromSort) {
+            case Type.INT:
+                switch (to.getSort()) {
+                    case Type.LONG: mv.visitInsn(I2L); return;
+                    case Type.FLOAT: mv.visitInsn(I2F); return;
+                    case Type.DOUBLE: mv.visitInsn(I2D); return;
+                    case Type.INT: case Type.SHORT: return;
+                }
+                break;
+            case Type.LONG:
+                switch (to.getSort()) {
+                    case Type.FLOAT: mv.visitInsn(L2F); return;
+                    case Type.DOUBLE: mv.visitInsn(L2D); return;
+                }
+                break;
+            case Type.FLOAT:
+                if (to.getSort() == Type.DOUBLE) {
+                    mv.visitInsn(F2D);
+                    return;
+                }
+                break;
+        }
+        throw new IllegalStateException("Cannot convert " + from + " to " + to);
+    }
+
+    /**
+     * @return the primitive type for a box, the type itself otherwise
+     */
+    @NotNull
+    public static Type unbox(@NotNull Type type) {
+        Type unboxed = UNBOXED.get(type);
+        return unboxed == null ? type : unboxed;
+    }
+
+    public void pop(@NotNull Type type) {
+        if (type.getSort() == Type.VOID) return;
+        mv.visitInsn(type.getSize() == 2 ? POP2 : POP);
+    }
+
+    public void invoke(@NotNull MethodInfo method, @NotNull Type receiverType) {
+        if (method.isStatic()) {
+            boolean isInterface = hierarchy.isInterface(method.getOwner());
+            mv.visitMethodInsn(INVOKESTATIC, method.getOwner(), method.getName(), method.getDescriptor(), isInterface);
+        }
+        else if (method.isPrivate()) {
+            mv.visitMethodInsn(INVOKESPECIAL, method.getOwner(), method.getName(), method.getDescriptor(), false);
+        }
+        else if (!hierarchy.isInterface(receiverType.getInternalName())) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, receiverType.getInternalName(), method.getName(), method.getDescriptor(), false);
+        }
+        else if (hierarchy.isInterface(method.getOwner())) {
+            mv.visitMethodInsn(INVOKEINTERFACE, receiverType.getInternalName(), method.getName(), method.getDescriptor(), true);
+        }
+        else {
+            // A member of Object called on an interface
+            mv.visitMethodInsn(INVOKEVIRTUAL, method.getOwner(), method.getName(), method.getDescriptor(), false);
+        }
+    }
+}
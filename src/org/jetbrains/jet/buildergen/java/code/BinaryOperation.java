@@ -20,20 +20,31 @@ package org.jetbrains.jet.buildergen.java.code;
 * @author abreslav
 */
 public enum BinaryOperation {
-    PLUS("+"),
-    MINUS("-"),
-    TIMES("*"),
-    DIV("/"),
-    EQ("=="),
-    NEQ("!=");
+    PLUS("+", 11),
+    MINUS("-", 11),
+    TIMES("*", 12),
+    DIV("/", 12),
+    EQ("==", 8),
+    NEQ("!=", 8),
+    AND("&", 7),
+    OR("|", 5);
 
     private final String representation;
+    private final int precedence;
 
-    BinaryOperation(String representation) {
+    BinaryOperation(String representation, int precedence) {
         this.representation = representation;
+        this.precedence = precedence;
     }
 
     public String getRepresentation() {
         return representation;
     }
+
+    /**
+     * As in Java: operations with higher precedence bind tighter
+     */
+    public int getPrecedence() {
+        return precedence;
+    }
 }
@@ -41,6 +41,11 @@ public interface CodeFactory<E> {
 
     E constructorCall(ClassModel classBeingInstantiated, List<TypeData> typeArguments, List<E> arguments);
 
+    /**
+     * A class as the receiver of a static method call
+     */
+    E classReference(ClassModel classModel);
+
     E assignment(E lhs, E rhs);
 
     E _return(@Nullable E subj);
@@ -49,6 +54,8 @@ public interface CodeFactory<E> {
 
     E integer(int i);
 
+    E _boolean(boolean b);
+
     E binary(E lhs, BinaryOperation op, E rhs);
 
     E _throw(E expression);
@@ -62,4 +69,6 @@ public interface CodeFactory<E> {
     E _if(E condition, E body);
 
     E singleLineComment(@NotNull String text);
+
+    E template(@NotNull CodeTemplate template, @NotNull List<String> values);
 }
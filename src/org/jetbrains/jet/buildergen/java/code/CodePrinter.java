@@ -20,11 +20,10 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jet.buildergen.java.declarations.ClassModel;
 import org.jetbrains.jet.buildergen.java.types.TypeData;
-import org.jetbrains.jet.buildergen.java.types.TypeFactory;
 import org.jetbrains.jet.buildergen.java.types.TypeRenderer;
+import org.jetbrains.jet.buildergen.java.types.TypeUtil;
 import org.jetbrains.jet.utils.Printer;
 
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -138,16 +137,7 @@ public class CodePrinter implements CodeFactory<PrintAction> {
         return new PrintAction() {
             @Override
             public void print(Printer p) {
-                p.printWithNoIndent("new ",
-                                    typeRenderer.renderType(new TypeData() {
-                                        @Override
-                                        public <E> E create(@NotNull TypeFactory<E> f) {
-                                            return f.constructedType(classBeingInstantiated.getPackageFqName(),
-                                                                     classBeingInstantiated.getName(),
-                                                                     Collections.<E>emptyList());
-                                        }
-                                    })
-                );
+                p.printWithNoIndent("new ", typeRenderer.renderType(TypeUtil.simpleType(classBeingInstantiated)));
                 if (!typeArguments.isEmpty()) {
                     p.printWithNoIndent("<");
                     for (Iterator<TypeData> iterator = typeArguments.iterator(); iterator.hasNext(); ) {
@@ -172,6 +162,17 @@ public class CodePrinter implements CodeFactory<PrintAction> {
         };
     }
 
+    @NotNull
+    @Override
+    public PrintAction classReference(@NotNull final ClassModel classModel) {
+        return new PrintAction() {
+            @Override
+            public void print(Printer p) {
+                p.printWithNoIndent(typeRenderer.renderType(TypeUtil.simpleType(classModel)));
+            }
+        };
+    }
+
     @NotNull
     @Override
     public PrintAction assignment(@NotNull final PrintAction lhs, @NotNull final PrintAction rhs) {
@@ -227,18 +228,50 @@ public class CodePrinter implements CodeFactory<PrintAction> {
 
     @NotNull
     @Override
-    public PrintAction binary(@NotNull final PrintAction lhs, @NotNull final BinaryOperation op, @NotNull final PrintAction rhs) {
+    public PrintAction _boolean(final boolean b) {
         return new PrintAction() {
+            @Override
+            public void print(Printer p) {
+                p.printWithNoIndent(b);
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public PrintAction binary(@NotNull final PrintAction lhs, @NotNull final BinaryOperation op, @NotNull final PrintAction rhs) {
+        return new BinaryPrintAction(op) {
             @Override
             public void print(Printer p) {
                 p.printWithNoIndent();
-                lhs.print(p);
+                printOperand(p, lhs, op.getPrecedence());
                 p.printWithNoIndent(" ", op.getRepresentation(), " ");
-                rhs.print(p);
+                // Binary operations are left-associative: a right operand of the same precedence needs parentheses
+                printOperand(p, rhs, op.getPrecedence() + 1);
             }
         };
     }
 
+    private static void printOperand(Printer p, PrintAction operand, int minPrecedence) {
+        boolean parenthesize = operand instanceof BinaryPrintAction
+                               && ((BinaryPrintAction) operand).op.getPrecedence() < minPrecedence;
+        if (parenthesize) {
+            p.printWithNoIndent("(");
+        }
+        operand.print(p);
+        if (parenthesize) {
+            p.printWithNoIndent(")");
+        }
+    }
+
+    private static abstract class BinaryPrintAction implements PrintAction {
+        private final BinaryOperation op;
+
+        private BinaryPrintAction(BinaryOperation op) {
+            this.op = op;
+        }
+    }
+
     @Override
     public PrintAction _throw(final PrintAction expression) {
         return new PrintAction() {
@@ -318,4 +351,15 @@ public class CodePrinter implements CodeFactory<PrintAction> {
             }
         };
     }
+
+    @NotNull
+    @Override
+    public PrintAction template(@NotNull final CodeTemplate template, @NotNull final List<String> values) {
+        return new PrintAction() {
+            @Override
+            public void print(Printer p) {
+                template.print(p, typeRenderer, values);
+            }
+        };
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.java.code;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jet.buildergen.java.types.TypeData;
+import org.jetbrains.jet.buildergen.java.types.TypeNode;
+import org.jetbrains.jet.buildergen.java.types.TypeRenderer;
+import org.jetbrains.jet.utils.Printer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A statement-level shape of code shared by many methods, e.g. a getter body, with named holes for the names
+ * that differ from method to method. {@link CodePrinter} renders the shape once into text fragments
+ * and only fills in the holes afterwards, other factories build the code as usual.
+ *
+ * @author abreslav
+ */
+public abstract class CodeTemplate {
+    // Hole values are names: they can't contain it
+    private static final char HOLE_MARK = '\u0001';
+
+    private final List<String> holeNames;
+
+    // Lines of text, each a list of literal strings and hole indices
+    private volatile List<Object[]> lines;
+    // Types mentioned in the text: they must be imported wherever the template is used
+    private volatile List<TypeData> types;
+
+    protected CodeTemplate(@NotNull String... holeNames) {
+        this.holeNames = Arrays.asList(holeNames);
+    }
+
+    /**
+     * Builds the code with {@code values} mapping hole names to their values
+     */
+    @NotNull
+    protected abstract <E> E create(@NotNull CodeFactory<E> f, @NotNull Map<String, String> values);
+
+    /**
+     * Builds the code with the values given in the order of the hole names
+     */
+    @NotNull
+    public <E> E expand(@NotNull CodeFactory<E> f, @NotNull List<String> values) {
+        checkValues(values);
+        Map<String, String> valueMap = Maps.newHashMap();
+        for (int i = 0; i < holeNames.size(); i++) {
+            valueMap.put(holeNames.get(i), values.get(i));
+        }
+        return create(f, valueMap);
+    }
+
+    void print(@NotNull Printer p, @NotNull TypeRenderer typeRenderer, @NotNull List<String> values) {
+        checkValues(values);
+        if (lines == null) {
+            compile();
+        }
+        for (TypeData type : types) {
+            typeRenderer.renderType(type);
+        }
+        for (Object[] line : lines) {
+            p.print();
+            for (Object fragment : line) {
+                p.printWithNoIndent(fragment instanceof Integer ? values.get((Integer) fragment) : fragment);
+            }
+            p.printlnWithNoIndent();
+        }
+    }
+
+    private void checkValues(@NotNull List<String> values) {
+        if (values.size() != holeNames.size()) {
+            throw new IllegalArgumentException("Expected values for " + holeNames + ", got " + values);
+        }
+    }
+
+    // Racing threads compile the same text, any result will do
+    private void compile() {
+        final List<TypeData> typesInText = Lists.newArrayList();
+        CodePrinter codePrinter = new CodePrinter(new TypeRenderer() {
+            @NotNull
+            @Override
+            public String renderType(@NotNull TypeData type) {
+                typesInText.add(type);
+                return TypeNode.of(type).getRenderedText();
+            }
+        });
+
+        Map<String, String> marks = Maps.newHashMap();
+        for (String holeName : holeNames) {
+            marks.put(holeName, HOLE_MARK + holeName + HOLE_MARK);
+        }
+        StringBuilder text = new StringBuilder();
+        create(codePrinter, marks).print(new Printer(text));
+
+        List<Object[]> compiledLines = Lists.newArrayList();
+        for (String line : text.toString().split("\n")) {
+            List<Object> fragments = Lists.newArrayList();
+            String[] parts = line.split(String.valueOf(HOLE_MARK), -1);
+            for (int i = 0; i < parts.length; i++) {
+                if (i % 2 == 0) {
+                    if (!parts[i].isEmpty()) {
+                        fragments.add(parts[i]);
+                    }
+                }
+                else {
+                    fragments.add(holeNames.indexOf(parts[i]));
+                }
+            }
+            compiledLines.add(fragments.toArray());
+        }
+        types = Collections.unmodifiableList(typesInText);
+        lines = compiledLines;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2010-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetbrains.jet.buildergen.java.types;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.intellij.openapi.util.Pair;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jet.buildergen.java.declarations.WildcardKind;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Interned type: structurally equal types are represented by the same instance,
+ * which caches its rendered text and the set of types to import
+ *
+ * @author abreslav
+ */
+public final class TypeNode implements TypeData {
+
+    // Weak, so that types nobody refers to any more are not kept for the life of the JVM
+    private static final Interner<TypeNode> INTERNER = Interners.newWeakInterner();
+
+    public static final TypeFactory<TypeNode> FACTORY = new TypeFactory<TypeNode>() {
+        @Override
+        public TypeNode constructedType(@NotNull String packageName, @NotNull String className, @NotNull List<TypeNode> arguments) {
+            return constructed(packageName, className, arguments);
+        }
+
+        @Override
+        public TypeNode wildcardType(@NotNull WildcardKind kind, @Nullable TypeNode bound) {
+            return wildcard(kind, bound);
+        }
+    };
+
+    @NotNull
+    public static TypeNode of(@NotNull TypeData type) {
+        if (type instanceof TypeNode) {
+            return (TypeNode) type;
+        }
+        return type.create(FACTORY);
+    }
+
+    @NotNull
+    public static TypeNode constructed(@NotNull String packageName, @NotNull String className, @NotNull TypeNode... arguments) {
+        return constructed(packageName, className, ImmutableList.copyOf(arguments));
+    }
+
+    @NotNull
+    public static TypeNode constructed(@NotNull String packageName, @NotNull String className, @NotNull List<TypeNode> arguments) {
+        return intern(new TypeNode(packageName, className, null, ImmutableList.copyOf(arguments)));
+    }
+
+    @NotNull
+    public static TypeNode wildcard(@NotNull WildcardKind kind, @Nullable TypeNode bound) {
+        assert (kind == WildcardKind.BARE) == (bound == null) : "Only bare wildcards have no bound: " + kind;
+        return intern(new TypeNode(null, null, kind, bound == null ? ImmutableList.<TypeNode>of() : ImmutableList.of(bound)));
+    }
+
+    @NotNull
+    private static TypeNode intern(@NotNull TypeNode node) {
+        return INTERNER.intern(node);
+    }
+
+    // Both are null for wildcards
+    private final String packageName;
+    private final String className;
+    // Null for constructed types
+    private final WildcardKind wildcardKind;
+    // Type arguments of a constructed type or the bound of a wildcard
+    private final List<TypeNode> arguments;
+    private final int hashCode;
+
+    // Computed lazily, races are benign
+    private volatile String renderedText;
+    private volatile Set<Pair<String, String>> importedTypes;
+
+    private TypeNode(
+            @Nullable String packageName,
+            @Nullable String className,
+            @Nullable WildcardKind wildcardKind,
+            @NotNull List<TypeNode> arguments
+    ) {
+        this.packageName = packageName;
+        this.className = className;
+        this.wildcardKind = wildcardKind;
+        this.arguments = arguments;
+        this.hashCode = computeHashCode();
+    }
+
+    @Override
+    public <E> E create(@NotNull TypeFactory<E> f) {
+        if (wildcardKind != null) {
+            return f.wildcardType(wildcardKind, arguments.isEmpty() ? null : arguments.get(0).create(f));
+        }
+        List<E> createdArguments = Lists.newArrayListWithCapacity(arguments.size());
+        for (TypeNode argument : arguments) {
+            createdArguments.add(argument.create(f));
+        }
+        return f.constructedType(packageName, className, createdArguments);
+    }
+
+    public boolean isWildcard() {
+        return wildcardKind != null;
+    }
+
+    @Nullable
+    public WildcardKind getWildcardKind() {
+        return wildcardKind;
+    }
+
+    @Nullable
+    public String getPackageName() {
+        return packageName;
+    }
+
+    @Nullable
+    public String getClassName() {
+        return className;
+    }
+
+    @NotNull
+    public List<TypeNode> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * The way this type is written in a class that imports all of {@link #getImportedTypes()}
+     */
+    @NotNull
+    public String getRenderedText() {
+        String result = renderedText;
+        if (result == null) {
+            result = render(false);
+            renderedText = result;
+        }
+        return result;
+    }
+
+    /**
+     * (package, class name) pairs for this type and all types it is built of
+     */
+    @NotNull
+    public Set<Pair<String, String>> getImportedTypes() {
+        Set<Pair<String, String>> result = importedTypes;
+        if (result == null) {
+            ImmutableSet.Builder<Pair<String, String>> builder = ImmutableSet.builder();
+            if (wildcardKind == null) {
+                builder.add(Pair.create(packageName, className));
+            }
+            for (TypeNode argument : arguments) {
+                builder.addAll(argument.getImportedTypes());
+            }
+            result = builder.build();
+            importedTypes = result;
+        }
+        return result;
+    }
+
+    @NotNull
+    private String render(boolean qualified) {
+        StringBuilder sb = new StringBuilder();
+        if (wildcardKind != null) {
+            sb.append("?");
+            switch (wildcardKind) {
+                case BARE:
+                    break;
+                case EXTENDS:
+                    sb.append(" extends ").append(arguments.get(0).render(qualified));
+                    break;
+                case SUPER:
+                    sb.append(" super ").append(arguments.get(0).render(qualified));
+                    break;
+            }
+            return sb.toString();
+        }
+        if (qualified && !packageName.isEmpty()) {
+            sb.append(packageName).append(".");
+        }
+        sb.append(className);
+        if (!arguments.isEmpty()) {
+            sb.append("<");
+            for (Iterator<TypeNode> iterator = arguments.iterator(); iterator.hasNext(); ) {
+                sb.append(qualified ? iterator.next().render(true) : iterator.next().getRenderedText());
+                if (iterator.hasNext()) {
+                    sb.append(", ");
+                }
+            }
+            sb.append(">");
+        }
+        return sb.toString();
+    }
+
+    private int computeHashCode() {
+        int result = packageName != null ? packageName.hashCode() : 0;
+        result = 31 * result + (className != null ? className.hashCode() : 0);
+        result = 31 * result + (wildcardKind != null ? wildcardKind.hashCode() : 0);
+        result = 31 * result + arguments.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TypeNode)) return false;
+
+        TypeNode other = (TypeNode) o;
+        return hashCode == other.hashCode
+               && wildcardKind == other.wildcardKind
+               && (packageName == null ? other.packageName == null : packageName.equals(other.packageName))
+               && (className == null ? other.className == null : className.equals(other.className))
+               && arguments.equals(other.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * Fully qualified text of the type
+     */
+    @Override
+    public String toString() {
+        return render(true);
+    }
+}
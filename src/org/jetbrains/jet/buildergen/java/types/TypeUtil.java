@@ -34,24 +34,19 @@ public class TypeUtil {
         return factory.constructedType(packageName, className, Arrays.asList(arguments));
     }
 
-    public static TypeData simpleType(@NotNull final ClassModel classModel) {
+    public static TypeNode simpleType(@NotNull ClassModel classModel) {
         return simpleType(classModel.getPackageFqName(), classModel.getName());
     }
 
-    public static TypeData simpleType(@NotNull final String packageName, @NotNull final String className) {
-        return new TypeData() {
-            @Override
-            public <E> E create(@NotNull TypeFactory<E> f) {
-                return constructedType(f, packageName, className);
-            }
-        };
+    public static TypeNode simpleType(@NotNull String packageName, @NotNull String className) {
+        return TypeNode.constructed(packageName, className);
     }
 
-    public static TypeData _void() {
+    public static TypeNode _void() {
         return simpleType("", "void");
     }
 
-    public static TypeData getDataType(Entity entity) {
+    public static TypeNode getDataType(Entity entity) {
         EntityBuilder.ClassName dataClassName = entity.getData(EntityBuilder.DATA_CLASS);
         return simpleType(dataClassName.getPackageFqName(), dataClassName.getClassName());
     }